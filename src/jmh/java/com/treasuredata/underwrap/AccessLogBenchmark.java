@@ -0,0 +1,88 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.Protocols;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Formatting and writing access logs through AccessLogHandlerFactory with the default format
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessLogBenchmark
+{
+    @Param({"LTSV", "JSON", "BINARY"})
+    public AccessLogFormatter.OutputFormat outputFormat;
+
+    private Path logDirectory;
+    private AccessLogFormatter formatter;
+    private AsyncAccessLogReceiver receiver;
+    private HttpServerExchange exchange;
+
+    @Setup
+    public void setUp()
+            throws IOException
+    {
+        logDirectory = Files.createTempDirectory("underwrap-jmh");
+        AccessLogHandlerFactory factory = new AccessLogHandlerFactory(BenchmarkApplication.class, logDirectory, logDirectory, null);
+        factory.setOutputFormat(outputFormat);
+        // Measure the writer's throughput instead of the cost of dropping lines
+        factory.setOverflowPolicy(AsyncAccessLogReceiver.OverflowPolicy.BLOCK);
+        formatter = factory.createFormatter();
+        receiver = factory.createReceiver();
+
+        exchange = new HttpServerExchange(null);
+        exchange.setSourceAddress(new InetSocketAddress("127.0.0.1", 12345));
+        exchange.setRequestMethod(Methods.GET);
+        exchange.setProtocol(Protocols.HTTP_1_1);
+        exchange.setRequestURI("/v3/job/show/12345");
+        exchange.setQueryString("format=json");
+        exchange.setStatusCode(200);
+        exchange.getRequestHeaders().put(new HttpString("X-Forwarded-For"), "10.0.0.1");
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        receiver.close();
+        try (Stream<Path> files = Files.walk(logDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public byte[] format()
+    {
+        return formatter.format(exchange);
+    }
+
+    @Benchmark
+    public void formatAndWrite()
+    {
+        receiver.log(formatter.format(exchange));
+    }
+}
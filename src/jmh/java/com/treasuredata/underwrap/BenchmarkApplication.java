@@ -0,0 +1,40 @@
+package com.treasuredata.underwrap;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import java.util.Set;
+
+public class BenchmarkApplication
+    extends UnderwrapServer.UnderwrapApplication
+{
+    @Path("/")
+    public static class BenchmarkResource
+    {
+        @GET
+        @Path("/hello")
+        @Produces("text/plain")
+        public String hello()
+        {
+            return "hello";
+        }
+
+        @POST
+        @Path("/echo")
+        @Consumes("application/json")
+        @Produces("application/json")
+        public String echo(String body)
+        {
+            return body;
+        }
+    }
+
+    @Override
+    protected void registerResources(Set<Class<?>> classes)
+    {
+        classes.add(BenchmarkResource.class);
+    }
+}
@@ -0,0 +1,148 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Methods;
+import io.undertow.util.Protocols;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// The handlers UnderwrapServer puts in front of the servlet deployment, invoked in-process without a connection.
+//
+// The servlet deployment needs a real connection, so it is replaced with a handler that only sets the status code
+// (LoopbackBenchmark covers it). Completion listeners are invoked directly, so the access log and the metrics
+// recorded on completion are included.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerChainBenchmark
+{
+    private static final MethodHandle INVOKE_COMPLETION_LISTENERS;
+    // Stops the listener chain before it reaches the (null) connection
+    private static final ExchangeCompletionListener LAST_LISTENER = (exchange, nextListener) -> {};
+
+    static {
+        try {
+            Method method = HttpServerExchange.class.getDeclaredMethod("invokeExchangeCompleteListeners");
+            method.setAccessible(true);
+            INVOKE_COMPLETION_LISTENERS = MethodHandles.lookup().unreflect(method);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final EndpointMetrics.Endpoint endpoint = new EndpointMetrics.Endpoint("BenchmarkResource#hello()", "GET", "/hello");
+    private final HttpHandler application = exchange -> {
+        exchange.putAttachment(EndpointMetrics.ENDPOINT, endpoint);
+        exchange.setStatusCode(200);
+    };
+
+    private XnioWorker worker;
+    private Path logDirectory;
+    private AsyncAccessLogReceiver receiver;
+    private HttpHandler chain;
+
+    @Setup
+    public void setUp()
+            throws IOException
+    {
+        worker = Xnio.getInstance().createWorker(OptionMap.builder()
+                .set(Options.WORKER_TASK_CORE_THREADS, 8)
+                .set(Options.WORKER_TASK_MAX_THREADS, 8)
+                .getMap());
+        logDirectory = Files.createTempDirectory("underwrap-jmh");
+
+        // Built by the same methods as UnderwrapServer#deploy(). Only the path handler is skipped
+        UnderwrapServer server = new UnderwrapServer(BenchmarkApplication.class, logDirectory);
+        server.setAccessLogEnabled(true);
+        server.setAccessLogPath(logDirectory);
+        server.setEndpointMetricsEnabled(true);
+        server.setLoadSheddingPolicy(LoadSheddingPolicy.builder().setMaxBusyRatio(1.0).build());
+        server.setConcurrencyLimit(AdaptiveConcurrencyLimit.builder().setInitialLimit(1000).build());
+        server.createProviders();
+        AccessLogHandlerFactory factory = server.createAccessLogHandlerFactory();
+        receiver = factory.createReceiver();
+        UnderwrapMetrics metrics = new UnderwrapMetrics(worker);
+        HttpHandler handler = server.wrapServletHandler(application, null, () -> metrics);
+        chain = server.wrapRootHandler(handler, base -> base, factory, receiver);
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        receiver.close();
+        worker.shutdownNow();
+        try (Stream<Path> files = Files.walk(logDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static HttpServerExchange newExchange()
+    {
+        HttpServerExchange exchange = new HttpServerExchange(null);
+        exchange.setSourceAddress(new InetSocketAddress("127.0.0.1", 12345));
+        exchange.setRequestMethod(Methods.GET);
+        exchange.setProtocol(Protocols.HTTP_1_1);
+        exchange.setRequestURI("/hello");
+        exchange.setRequestPath("/hello");
+        exchange.addExchangeCompleteListener(LAST_LISTENER);
+        return exchange;
+    }
+
+    private static void complete(HttpServerExchange exchange)
+            throws Throwable
+    {
+        INVOKE_COMPLETION_LISTENERS.invokeExact(exchange);
+    }
+
+    // Cost of the exchange itself, to be subtracted from `chain`
+    @Benchmark
+    public HttpServerExchange baseline()
+            throws Throwable
+    {
+        HttpServerExchange exchange = newExchange();
+        application.handleRequest(exchange);
+        complete(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public HttpServerExchange chain()
+            throws Throwable
+    {
+        HttpServerExchange exchange = newExchange();
+        chain.handleRequest(exchange);
+        complete(exchange);
+        return exchange;
+    }
+}
@@ -0,0 +1,111 @@
+package com.treasuredata.underwrap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// StreamingJsonProvider compared with serializing to a byte[] and copying it to the output stream, which is what
+// most JSON providers built on ObjectMapper#writeValueAsBytes() do
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonProviderBenchmark
+{
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    @Param({"10", "10000"})
+    public int size;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final StreamingJsonProvider provider = new StreamingJsonProvider(mapper);
+    // Stands for the servlet output stream. Counts bytes so that writes aren't eliminated
+    private final CountingOutputStream out = new CountingOutputStream();
+    private List<Item> items;
+
+    public static class Item
+    {
+        public long id;
+        public String name;
+        public double score;
+        public boolean active;
+    }
+
+    @Setup
+    public void setUp()
+    {
+        items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Item item = new Item();
+            item.id = i;
+            item.name = "item-" + i;
+            item.score = i * 0.5;
+            item.active = i % 2 == 0;
+            items.add(item);
+        }
+    }
+
+    @Benchmark
+    public long streaming()
+            throws IOException
+    {
+        provider.writeTo(items, List.class, List.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long streamingIterator()
+            throws IOException
+    {
+        provider.writeTo(items.iterator(), Iterator.class, Iterator.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long copy()
+            throws IOException
+    {
+        byte[] bytes = mapper.writeValueAsBytes(items);
+        out.write(bytes, 0, bytes.length);
+        return out.count;
+    }
+
+    private static class CountingOutputStream
+        extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+}
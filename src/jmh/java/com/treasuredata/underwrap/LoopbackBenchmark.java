@@ -0,0 +1,125 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.Undertow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// End-to-end GET/POST over loopback through the whole handler chain built by UnderwrapServer.
+// `instrumented` enables access logging, endpoint metrics and load shedding (with limits that never reject)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark
+{
+    private static final byte[] POST_BODY = "{\"id\":12345,\"name\":\"underwrap\",\"tags\":[\"a\",\"b\",\"c\"]}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    private UnderwrapServer server;
+    private Path logDirectory;
+    private URL helloUrl;
+    private URL echoUrl;
+
+    @Setup
+    public void setUp()
+            throws IOException
+    {
+        server = new UnderwrapServer(BenchmarkApplication.class);
+        if (instrumented) {
+            logDirectory = Files.createTempDirectory("underwrap-jmh");
+            server.setAccessLogEnabled(true);
+            server.setAccessLogPath(logDirectory);
+            server.setEndpointMetricsEnabled(true);
+            server.setLoadSheddingPolicy(LoadSheddingPolicy.builder().setMaxBusyRatio(1.0).build());
+        }
+        server.start(Collections.emptyMap(), null, builder -> builder.addHttpListener(0, "127.0.0.1"));
+
+        Undertow.ListenerInfo listenerInfo = server.getListenerInfo().get(0);
+        int port = ((InetSocketAddress) listenerInfo.getAddress()).getPort();
+        helloUrl = new URL("http://127.0.0.1:" + port + "/hello");
+        echoUrl = new URL("http://127.0.0.1:" + port + "/echo");
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        server.stop();
+        if (logDirectory != null) {
+            try (Stream<Path> files = Files.walk(logDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public int get()
+            throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) helloUrl.openConnection();
+        return readResponse(conn);
+    }
+
+    @Benchmark
+    public int post()
+            throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) echoUrl.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(POST_BODY.length);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(POST_BODY);
+        }
+        return readResponse(conn);
+    }
+
+    // Reads the whole body so that HttpURLConnection reuses the keep-alive connection
+    private static int readResponse(HttpURLConnection conn)
+            throws IOException
+    {
+        int status = conn.getResponseCode();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        try (InputStream in = conn.getInputStream()) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                body.write(buf, 0, n);
+            }
+        }
+        if (status != 200) {
+            throw new IllegalStateException("Unexpected status: " + status);
+        }
+        return body.size();
+    }
+}
@@ -0,0 +1,99 @@
+package com.treasuredata.underwrap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// UnderwrapMetrics getters, and the per-request cost of endpoint metrics
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+{
+    private XnioWorker worker;
+    private UnderwrapMetrics metrics;
+    private LatencyHistogram histogram;
+    private EndpointMetrics.Endpoint endpoint;
+    private final StringBuilder prometheusBuffer = new StringBuilder();
+
+    @Setup
+    public void setUp()
+            throws IOException
+    {
+        worker = Xnio.getInstance().createWorker(OptionMap.builder()
+                .set(Options.WORKER_TASK_CORE_THREADS, 8)
+                .set(Options.WORKER_TASK_MAX_THREADS, 8)
+                .getMap());
+        metrics = new UnderwrapMetrics(worker);
+        histogram = new LatencyHistogram();
+        endpoint = new EndpointMetrics.Endpoint("BenchmarkResource#hello()", "GET", "/hello");
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        worker.shutdownNow();
+    }
+
+    @Benchmark
+    public int getCoreWorkerPoolSize()
+    {
+        return metrics.getCoreWorkerPoolSize();
+    }
+
+    @Benchmark
+    public int getBusyWorkerThreadCount()
+    {
+        return metrics.getBusyWorkerThreadCount();
+    }
+
+    @Benchmark
+    public int getWorkerQueueSize()
+    {
+        return metrics.getWorkerQueueSize();
+    }
+
+    @Benchmark
+    public WorkerPoolSnapshot snapshot()
+    {
+        return metrics.snapshot();
+    }
+
+    @Benchmark
+    public int renderPrometheus()
+    {
+        prometheusBuffer.setLength(0);
+        PrometheusMetricsHandler.render(metrics, prometheusBuffer);
+        return prometheusBuffer.length();
+    }
+
+    @Benchmark
+    public void recordLatency()
+    {
+        histogram.record(System.nanoTime() & 0xffffff);
+    }
+
+    @Benchmark
+    public void recordEndpoint()
+    {
+        endpoint.record(System.nanoTime() & 0xffffff, 200);
+    }
+}
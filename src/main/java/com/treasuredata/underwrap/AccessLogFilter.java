@@ -0,0 +1,184 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides whether a completed exchange is written to the access log, before any formatting work.
+//
+// - Requests whose path starts with an excluded prefix are never logged
+// - Responses with a status code >= `alwaysLogStatusCode` and requests slower than `alwaysLogSlowerThan` are
+//   always logged. The latter needs UndertowOptions.RECORD_REQUEST_START_TIME
+// - Other requests are logged with the sample rate of the longest matching path prefix (1.0 by default)
+//
+// Sampled-out requests are counted per prefix so that the totals can be estimated from the logs.
+public final class AccessLogFilter
+{
+    private final String[] excludedPathPrefixes;
+    private final SampleRule[] sampleRules;
+    private final double defaultSampleRate;
+    private final int alwaysLogStatusCode;
+    private final long alwaysLogSlowerThanNanos;
+
+    private final LongAdder excluded = new LongAdder();
+    private final LongAdder defaultSampledOut = new LongAdder();
+
+    private AccessLogFilter(Builder builder)
+    {
+        this.excludedPathPrefixes = builder.excludedPathPrefixes.toArray(new String[0]);
+        List<SampleRule> rules = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : builder.sampleRates.entrySet()) {
+            rules.add(new SampleRule(entry.getKey(), entry.getValue()));
+        }
+        // Longest prefix first
+        rules.sort(Comparator.comparingInt((SampleRule rule) -> rule.pathPrefix.length()).reversed());
+        this.sampleRules = rules.toArray(new SampleRule[0]);
+        this.defaultSampleRate = builder.defaultSampleRate;
+        this.alwaysLogStatusCode = builder.alwaysLogStatusCode;
+        this.alwaysLogSlowerThanNanos = builder.alwaysLogSlowerThanNanos;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public boolean shouldLog(HttpServerExchange exchange)
+    {
+        String path = exchange.getRequestPath();
+        for (String prefix : excludedPathPrefixes) {
+            if (path.startsWith(prefix)) {
+                excluded.increment();
+                return false;
+            }
+        }
+
+        if (exchange.getStatusCode() >= alwaysLogStatusCode) {
+            return true;
+        }
+        if (alwaysLogSlowerThanNanos > 0) {
+            long start = exchange.getRequestStartTime();
+            if (start != -1 && System.nanoTime() - start >= alwaysLogSlowerThanNanos) {
+                return true;
+            }
+        }
+
+        for (SampleRule rule : sampleRules) {
+            if (path.startsWith(rule.pathPrefix)) {
+                return sample(rule.sampleRate, rule.sampledOut);
+            }
+        }
+        return sample(defaultSampleRate, defaultSampledOut);
+    }
+
+    private static boolean sample(double rate, LongAdder sampledOut)
+    {
+        if (rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate) {
+            return true;
+        }
+        sampledOut.increment();
+        return false;
+    }
+
+    public long getExcludedCount()
+    {
+        return excluded.sum();
+    }
+
+    public long getSampledOutCount()
+    {
+        long count = defaultSampledOut.sum();
+        for (SampleRule rule : sampleRules) {
+            count += rule.sampledOut.sum();
+        }
+        return count;
+    }
+
+    // Sampled-out counts keyed by path prefix. Requests that matched no prefix are counted under "".
+    public Map<String, Long> getSampledOutCountsByPathPrefix()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (SampleRule rule : sampleRules) {
+            counts.put(rule.pathPrefix, rule.sampledOut.sum());
+        }
+        counts.merge("", defaultSampledOut.sum(), Long::sum);
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private static class SampleRule
+    {
+        final String pathPrefix;
+        final double sampleRate;
+        final LongAdder sampledOut = new LongAdder();
+
+        SampleRule(String pathPrefix, double sampleRate)
+        {
+            this.pathPrefix = pathPrefix;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    public static class Builder
+    {
+        private final List<String> excludedPathPrefixes = new ArrayList<>();
+        private final Map<String, Double> sampleRates = new LinkedHashMap<>();
+        private double defaultSampleRate = 1.0;
+        private int alwaysLogStatusCode = 400;
+        private long alwaysLogSlowerThanNanos;
+
+        private Builder()
+        {
+        }
+
+        public Builder addExcludedPathPrefix(String pathPrefix)
+        {
+            excludedPathPrefixes.add(pathPrefix);
+            return this;
+        }
+
+        public Builder setSampleRate(String pathPrefix, double sampleRate)
+        {
+            sampleRates.put(pathPrefix, checkSampleRate(sampleRate));
+            return this;
+        }
+
+        public Builder setDefaultSampleRate(double defaultSampleRate)
+        {
+            this.defaultSampleRate = checkSampleRate(defaultSampleRate);
+            return this;
+        }
+
+        public Builder setAlwaysLogStatusCode(int alwaysLogStatusCode)
+        {
+            this.alwaysLogStatusCode = alwaysLogStatusCode;
+            return this;
+        }
+
+        public Builder setAlwaysLogSlowerThan(long duration, TimeUnit unit)
+        {
+            this.alwaysLogSlowerThanNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public AccessLogFilter build()
+        {
+            return new AccessLogFilter(this);
+        }
+
+        private static double checkSampleRate(double sampleRate)
+        {
+            if (sampleRate < 0.0 || sampleRate > 1.0) {
+                throw new IllegalArgumentException("sample rate must be between 0.0 and 1.0: " + sampleRate);
+            }
+            return sampleRate;
+        }
+    }
+}
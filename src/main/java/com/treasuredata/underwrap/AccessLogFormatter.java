@@ -0,0 +1,454 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.attribute.ExchangeAttribute;
+import io.undertow.attribute.ExchangeAttributeParser;
+import io.undertow.attribute.ExchangeAttributes;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.HttpString;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Renders access log records from a format string that is parsed only once.
+//
+// The format string uses Undertow's access log syntax (`%t`, `%a`, `%{i,Header}`, ...), plus `%{phase,<name>}` for
+// PhaseTimings. Frequently used attributes are rendered directly into a per-thread byte buffer, and the others fall
+// back to Undertow's ExchangeAttribute. JSON and BINARY output need a LTSV style format string (`label:pattern` separated by tabs)
+// to name the fields.
+//
+// BINARY record layout (big endian):
+//   int32 payload length, followed by one entry per field in the order of `getFieldNames()`
+//   - 0x00                              : absent value
+//   - 0x01 int64                        : numeric value
+//   - 0x02 uint16 length, UTF-8 bytes   : string value
+public final class AccessLogFormatter
+{
+    public enum OutputFormat
+    {
+        LTSV,
+        JSON,
+        BINARY,
+    }
+
+    private static final Pattern LTSV_LABEL = Pattern.compile("[0-9A-Za-z_.\\-]+");
+    private static final int MAX_BINARY_STRING_LENGTH = 0xffff;
+    private static final byte TYPE_ABSENT = 0;
+    private static final byte TYPE_NUMBER = 1;
+    private static final byte TYPE_STRING = 2;
+
+    private static final ThreadLocal<AccessLogRecordBuffer> BUFFERS = ThreadLocal.withInitial(AccessLogRecordBuffer::new);
+
+    private final OutputFormat outputFormat;
+    private final Element[] elements;
+    private final Field[] fields;
+
+    private AccessLogFormatter(OutputFormat outputFormat, Element[] elements, Field[] fields)
+    {
+        this.outputFormat = outputFormat;
+        this.elements = elements;
+        this.fields = fields;
+    }
+
+    public static AccessLogFormatter compile(String format, OutputFormat outputFormat, ClassLoader classLoader)
+    {
+        format = handleCommonNames(format);
+        ExchangeAttributeParser parser = ExchangeAttributes.parser(classLoader);
+
+        if (outputFormat == OutputFormat.LTSV) {
+            return new AccessLogFormatter(outputFormat, parseElements(format, parser), new Field[0]);
+        }
+
+        List<Field> fields = new ArrayList<>();
+        for (String part : format.split("\t")) {
+            int separator = part.indexOf(':');
+            if (separator <= 0 || !LTSV_LABEL.matcher(part.substring(0, separator)).matches()) {
+                throw new IllegalArgumentException(
+                        String.format("%s output needs a LTSV style format (`label:pattern` separated by tabs): %s", outputFormat, format));
+            }
+            String label = part.substring(0, separator);
+            fields.add(new Field(label, parseElements(part.substring(separator + 1), parser)));
+        }
+        return new AccessLogFormatter(outputFormat, new Element[0], fields.toArray(new Field[0]));
+    }
+
+    public OutputFormat getOutputFormat()
+    {
+        return outputFormat;
+    }
+
+    public List<String> getFieldNames()
+    {
+        List<String> names = new ArrayList<>(fields.length);
+        for (Field field : fields) {
+            names.add(field.label);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    // Returns a complete record including the trailing newline (LTSV and JSON) or the length prefix (BINARY)
+    public byte[] format(HttpServerExchange exchange)
+    {
+        AccessLogRecordBuffer out = BUFFERS.get();
+        out.reset();
+        switch (outputFormat) {
+            case LTSV:
+                for (Element element : elements) {
+                    element.write(exchange, out);
+                }
+                out.appendByte('\n');
+                break;
+            case JSON:
+                formatJson(exchange, out);
+                break;
+            case BINARY:
+                formatBinary(exchange, out);
+                break;
+            default:
+                throw new AssertionError(outputFormat);
+        }
+        return out.toByteArray();
+    }
+
+    private void formatJson(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        out.appendByte('{');
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            if (i > 0) {
+                out.appendByte(',');
+            }
+            out.appendBytes(field.jsonKey);
+            if (field.numeric != null) {
+                long value = field.numeric.value(exchange);
+                if (value < 0) {
+                    out.appendBytes(Field.JSON_NULL);
+                }
+                else {
+                    out.appendLong(value);
+                }
+            }
+            else {
+                out.appendByte('"');
+                out.escapeJson = true;
+                for (Element element : field.elements) {
+                    element.write(exchange, out);
+                }
+                out.escapeJson = false;
+                out.appendByte('"');
+            }
+        }
+        out.appendByte('}');
+        out.appendByte('\n');
+    }
+
+    private void formatBinary(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        int lengthPosition = out.reserve(4);
+        for (Field field : fields) {
+            if (field.numeric != null) {
+                long value = field.numeric.value(exchange);
+                if (value < 0) {
+                    out.appendByte(TYPE_ABSENT);
+                }
+                else {
+                    out.appendByte(TYPE_NUMBER);
+                    out.appendLongBinary(value);
+                }
+            }
+            else {
+                out.appendByte(TYPE_STRING);
+                int stringLengthPosition = out.reserve(2);
+                int start = out.length();
+                for (Element element : field.elements) {
+                    element.write(exchange, out);
+                }
+                if (out.length() - start > MAX_BINARY_STRING_LENGTH) {
+                    out.truncate(start + MAX_BINARY_STRING_LENGTH);
+                }
+                out.putShort(stringLengthPosition, out.length() - start);
+            }
+        }
+        out.putInt(lengthPosition, out.length() - lengthPosition - 4);
+    }
+
+    private static String handleCommonNames(String format)
+    {
+        // Same aliases as io.undertow.server.handlers.accesslog.AccessLogHandler
+        if (format.equals("common")) {
+            return "%h %l %u %t \"%r\" %s %b";
+        }
+        else if (format.equals("combined")) {
+            return "%h %l %u %t \"%r\" %s %b \"%{i,Referer}\" \"%{i,User-Agent}\"";
+        }
+        return format;
+    }
+
+    private static Element[] parseElements(String pattern, ExchangeAttributeParser parser)
+    {
+        List<Element> elements = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c != '%' || i + 1 >= pattern.length()) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            String token;
+            char next = pattern.charAt(i + 1);
+            if (next == '%') {
+                literal.append('%');
+                i += 2;
+                continue;
+            }
+            else if (next == '{') {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated token in access log format: " + pattern);
+                }
+                token = pattern.substring(i, end + 1);
+                i = end + 1;
+            }
+            else {
+                token = pattern.substring(i, i + 2);
+                i += 2;
+            }
+
+            if (literal.length() > 0) {
+                elements.add(new LiteralElement(literal.toString()));
+                literal.setLength(0);
+            }
+            elements.add(compileToken(token, parser));
+        }
+        if (literal.length() > 0) {
+            elements.add(new LiteralElement(literal.toString()));
+        }
+        return elements.toArray(new Element[0]);
+    }
+
+    private static Element compileToken(String token, ExchangeAttributeParser parser)
+    {
+        switch (token) {
+            case "%t":
+                return AccessLogFormatter::writeDateTime;
+            case "%a":
+                return AccessLogFormatter::writeRemoteIp;
+            case "%h":
+                return (exchange, out) -> out.appendString(exchange.getSourceAddress().getHostString());
+            case "%r":
+                return AccessLogFormatter::writeRequestLine;
+            case "%m":
+                return (exchange, out) -> out.appendString(exchange.getRequestMethod().toString());
+            case "%U":
+                return (exchange, out) -> writeOrDash(out, exchange.getRequestURI());
+            case "%q":
+                return (exchange, out) -> {
+                    if (!exchange.getQueryString().isEmpty()) {
+                        out.appendByte('?');
+                        out.appendString(exchange.getQueryString());
+                    }
+                };
+            case "%H":
+                return (exchange, out) -> out.appendString(exchange.getProtocol().toString());
+            case "%s":
+                return (NumericElement) HttpServerExchange::getStatusCode;
+            case "%B":
+                return (NumericElement) HttpServerExchange::getResponseBytesSent;
+            case "%b":
+                return new NumericElement()
+                {
+                    @Override
+                    public long value(HttpServerExchange exchange)
+                    {
+                        return exchange.getResponseBytesSent();
+                    }
+
+                    @Override
+                    public void write(HttpServerExchange exchange, AccessLogRecordBuffer out)
+                    {
+                        long bytesSent = exchange.getResponseBytesSent();
+                        if (bytesSent == 0) {
+                            out.appendByte('-');
+                        }
+                        else {
+                            out.appendLong(bytesSent);
+                        }
+                    }
+                };
+            case "%D":
+                return (NumericElement) exchange -> {
+                    long start = exchange.getRequestStartTime();
+                    return start == -1 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                };
+            case "%T":
+                return AccessLogFormatter::writeResponseTimeSeconds;
+        }
+
+        if (token.startsWith("%{phase,")) {
+            // PhaseTimings in microseconds
+            String name = token.substring(8, token.length() - 1).trim();
+            final PhaseTimings.Phase phase;
+            try {
+                phase = PhaseTimings.Phase.valueOf(name.toUpperCase(Locale.ENGLISH));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown phase in access log format: " + token, e);
+            }
+            return (NumericElement) exchange -> {
+                long nanos = PhaseTimings.phaseNanos(exchange, phase);
+                return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+            };
+        }
+
+        if (token.startsWith("%{i,") || token.startsWith("%{o,")) {
+            final HttpString header = HttpString.tryFromString(token.substring(4, token.length() - 1).trim());
+            if (token.charAt(2) == 'i') {
+                return (exchange, out) -> writeOrDash(out, exchange.getRequestHeaders().getFirst(header));
+            }
+            return (exchange, out) -> writeOrDash(out, exchange.getResponseHeaders().getFirst(header));
+        }
+
+        final ExchangeAttribute attribute = parser.parse(token);
+        return (exchange, out) -> writeOrDash(out, attribute.readAttribute(exchange));
+    }
+
+    private static void writeOrDash(AccessLogRecordBuffer out, String value)
+    {
+        if (value == null || value.isEmpty()) {
+            out.appendByte('-');
+        }
+        else {
+            out.appendString(value);
+        }
+    }
+
+    private static void writeDateTime(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        if (second != out.cachedDateSecond) {
+            out.cachedDate = DateUtils.toCommonLogFormat(new Date(now)).getBytes(StandardCharsets.UTF_8);
+            out.cachedDateSecond = second;
+        }
+        out.appendBytes(out.cachedDate);
+    }
+
+    private static void writeRemoteIp(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        InetAddress address = exchange.getSourceAddress().getAddress();
+        if (address == null) {
+            // Unresolved X-Forwarded-For address. Use the peer address instead as Undertow does
+            address = ((InetSocketAddress) exchange.getConnection().getPeerAddress()).getAddress();
+        }
+        writeOrDash(out, address == null ? null : address.getHostAddress());
+    }
+
+    private static void writeRequestLine(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        out.appendString(exchange.getRequestMethod().toString());
+        out.appendByte(' ');
+        out.appendString(exchange.getRequestURI());
+        if (!exchange.getQueryString().isEmpty()) {
+            out.appendByte('?');
+            out.appendString(exchange.getQueryString());
+        }
+        out.appendByte(' ');
+        out.appendString(exchange.getProtocol().toString());
+    }
+
+    private static void writeResponseTimeSeconds(HttpServerExchange exchange, AccessLogRecordBuffer out)
+    {
+        long start = exchange.getRequestStartTime();
+        if (start == -1) {
+            out.appendByte('-');
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        out.appendLong(millis / 1000);
+        out.appendByte('.');
+        int remains = (int) (millis % 1000);
+        out.appendByte('0' + remains / 100);
+        out.appendByte('0' + (remains / 10) % 10);
+        out.appendByte('0' + remains % 10);
+    }
+
+    @FunctionalInterface
+    interface Element
+    {
+        void write(HttpServerExchange exchange, AccessLogRecordBuffer out);
+    }
+
+    @FunctionalInterface
+    interface NumericElement
+        extends Element
+    {
+        // Returns a negative value when the value is absent
+        long value(HttpServerExchange exchange);
+
+        @Override
+        default void write(HttpServerExchange exchange, AccessLogRecordBuffer out)
+        {
+            long value = value(exchange);
+            if (value < 0) {
+                out.appendByte('-');
+            }
+            else {
+                out.appendLong(value);
+            }
+        }
+    }
+
+    private static class LiteralElement
+        implements Element
+    {
+        private final String value;
+        private final byte[] bytes;
+
+        LiteralElement(String value)
+        {
+            this.value = value;
+            this.bytes = value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(HttpServerExchange exchange, AccessLogRecordBuffer out)
+        {
+            if (out.escapeJson) {
+                out.appendString(value);
+            }
+            else {
+                out.appendBytes(bytes);
+            }
+        }
+    }
+
+    private static class Field
+    {
+        static final byte[] JSON_NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+        final String label;
+        final byte[] jsonKey;
+        final Element[] elements;
+        // Set when the field consists of a single numeric attribute
+        final NumericElement numeric;
+
+        Field(String label, Element[] elements)
+        {
+            this.label = label;
+            this.jsonKey = ("\"" + label + "\":").getBytes(StandardCharsets.UTF_8);
+            this.elements = elements;
+            this.numeric = elements.length == 1 && elements[0] instanceof NumericElement ? (NumericElement) elements[0] : null;
+        }
+    }
+}
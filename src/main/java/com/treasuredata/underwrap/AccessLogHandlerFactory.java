@@ -1,25 +1,31 @@
 package com.treasuredata.underwrap;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.undertow.predicate.Predicate;
+import io.undertow.predicate.Predicates;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.handlers.accesslog.AccessLogHandler;
-import io.undertow.server.handlers.accesslog.AccessLogReceiver;
-import io.undertow.server.handlers.accesslog.DefaultAccessLogReceiver;
 
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 public class AccessLogHandlerFactory
 {
     private static final String DEFAULT_LOG_FORMAT = "time:%t\thost:%a\tforwardedfor:%{i,X-Forwarded-For}\treq:%r\tstatus:%s\tsize:%b\tduration:%D.%T";
+    // PhaseTimings in microseconds
+    public static final String PHASE_TIMING_FIELDS = "\tqueue_us:%{phase,queue}\tdispatch_us:%{phase,dispatch}\tresource_us:%{phase,resource}\twrite_us:%{phase,write}";
 
     private final Class applicationClass;
     private final String logFormat;
     private final Path accessLogPath;
+    private AccessLogFormatter.OutputFormat outputFormat = AccessLogFormatter.OutputFormat.LTSV;
+    private AccessLogFilter filter;
+    private AccessLogRotationPolicy rotationPolicy = AccessLogRotationPolicy.DAILY;
+    private int queueCapacity = AsyncAccessLogReceiver.DEFAULT_QUEUE_CAPACITY;
+    private AsyncAccessLogReceiver.OverflowPolicy overflowPolicy = AsyncAccessLogReceiver.OverflowPolicy.DROP;
+    private int overflowSampleRate = AsyncAccessLogReceiver.DEFAULT_OVERFLOW_SAMPLE_RATE;
+    private boolean phaseTimingFieldsEnabled;
 
     public AccessLogHandlerFactory(Class<? extends UnderwrapServer.UnderwrapApplication> applicationClass, Path serverRootPath, Path accessLogPath, String logFormat)
     {
@@ -55,24 +61,76 @@ public class AccessLogHandlerFactory
         this(applicationClass, serverRootPath, accessLogPath, null);
     }
 
-    public AccessLogHandler create(HttpHandler next)
+    public void setOutputFormat(AccessLogFormatter.OutputFormat outputFormat)
     {
-        Executor logWriterExecutor = Executors.newCachedThreadPool(
-                new ThreadFactoryBuilder()
-                        .setDaemon(false)  // non-daemon
-                        .setNameFormat("access-log-%d")
-                        .build()
-        );
+        this.outputFormat = outputFormat;
+    }
+
+    // null means every request is logged
+    public void setFilter(AccessLogFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    public void setRotationPolicy(AccessLogRotationPolicy rotationPolicy)
+    {
+        this.rotationPolicy = rotationPolicy;
+    }
+
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOverflowPolicy(AsyncAccessLogReceiver.OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setOverflowSampleRate(int overflowSampleRate)
+    {
+        this.overflowSampleRate = overflowSampleRate;
+    }
 
+    // Appends PHASE_TIMING_FIELDS to the format
+    public void setPhaseTimingFieldsEnabled(boolean phaseTimingFieldsEnabled)
+    {
+        this.phaseTimingFieldsEnabled = phaseTimingFieldsEnabled;
+    }
+
+    public AsyncAccessLogReceiver createReceiver()
+    {
         File accessLogPath = accessLogPath();
         if (!accessLogPath.isDirectory()) {
             if (!accessLogPath.mkdir()) {
                 throw new RuntimeException("Failed to create a directory for access log files");
             }
         }
-        AccessLogReceiver logReceiver = new DefaultAccessLogReceiver(logWriterExecutor, accessLogPath, "access.", "log");
+        return new AsyncAccessLogReceiver(accessLogPath.toPath(), "access.", "log", queueCapacity, overflowPolicy, overflowSampleRate, rotationPolicy);
+    }
+
+    public AccessLogFormatter createFormatter()
+    {
+        String format = phaseTimingFieldsEnabled ? logFormat + PHASE_TIMING_FIELDS : logFormat;
+        return AccessLogFormatter.compile(format, outputFormat, applicationClass.getClassLoader());
+    }
 
-        return new AccessLogHandler(next, logReceiver, logFormat, applicationClass.getClassLoader());
+    // Undertow's AccessLogHandler, kept for existing callers. It renders the text format through ExchangeAttribute,
+    // so the output format and phase timing fields don't apply
+    public AccessLogHandler create(HttpHandler next)
+    {
+        Predicate predicate = filter == null ? Predicates.truePredicate() : filter::shouldLog;
+        return new AccessLogHandler(next, createReceiver(), logFormat, applicationClass.getClassLoader(), predicate);
+    }
+
+    public UnderwrapAccessLogHandler createHandler(HttpHandler next)
+    {
+        return createHandler(next, createReceiver());
+    }
+
+    public UnderwrapAccessLogHandler createHandler(HttpHandler next, AsyncAccessLogReceiver logReceiver)
+    {
+        return new UnderwrapAccessLogHandler(next, logReceiver, createFormatter(), filter);
     }
 
     @VisibleForTesting File accessLogPath()
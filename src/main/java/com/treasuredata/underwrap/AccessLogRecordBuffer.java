@@ -0,0 +1,189 @@
+package com.treasuredata.underwrap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A growable byte buffer reused per thread while rendering one access log record
+class AccessLogRecordBuffer
+{
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes = new byte[512];
+    private int length;
+
+    // Set while writing a JSON string value
+    boolean escapeJson;
+
+    // Cache of the formatted `%t` value, refreshed once per second
+    long cachedDateSecond = Long.MIN_VALUE;
+    byte[] cachedDate;
+
+    void reset()
+    {
+        length = 0;
+        escapeJson = false;
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    void appendByte(int b)
+    {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+    }
+
+    void appendBytes(byte[] src)
+    {
+        ensureCapacity(src.length);
+        System.arraycopy(src, 0, bytes, length, src.length);
+        length += src.length;
+    }
+
+    void appendString(String s)
+    {
+        if (s == null) {
+            appendByte('-');
+            return;
+        }
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escapeJson && (c < 0x20 || c == '"' || c == '\\')) {
+                    appendJsonEscape(c);
+                }
+                else {
+                    appendByte(c);
+                }
+            }
+            else if (c < 0x800) {
+                appendByte(0xc0 | (c >> 6));
+                appendByte(0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(0xf0 | (cp >> 18));
+                appendByte(0x80 | ((cp >> 12) & 0x3f));
+                appendByte(0x80 | ((cp >> 6) & 0x3f));
+                appendByte(0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                appendByte('?');
+            }
+            else {
+                appendByte(0xe0 | (c >> 12));
+                appendByte(0x80 | ((c >> 6) & 0x3f));
+                appendByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    void appendLong(long value)
+    {
+        if (value == Long.MIN_VALUE) {
+            appendBytes(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            appendByte('-');
+            value = -value;
+        }
+        ensureCapacity(19);
+        int start = length;
+        do {
+            bytes[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+        // reverse the digits
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+    }
+
+    void appendLongBinary(long value)
+    {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    // Reserves `size` bytes to be filled later with `putInt`/`putShort`, and returns their position
+    int reserve(int size)
+    {
+        ensureCapacity(size);
+        int position = length;
+        length += size;
+        return position;
+    }
+
+    void putInt(int position, int value)
+    {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    void putShort(int position, int value)
+    {
+        bytes[position] = (byte) (value >>> 8);
+        bytes[position + 1] = (byte) value;
+    }
+
+    void truncate(int newLength)
+    {
+        // Don't cut a multi-byte UTF-8 sequence in the middle
+        while (newLength > 0 && (bytes[newLength] & 0xc0) == 0x80) {
+            newLength--;
+        }
+        length = newLength;
+    }
+
+    private void appendJsonEscape(char c)
+    {
+        appendByte('\\');
+        switch (c) {
+            case '"':
+                appendByte('"');
+                break;
+            case '\\':
+                appendByte('\\');
+                break;
+            case '\n':
+                appendByte('n');
+                break;
+            case '\r':
+                appendByte('r');
+                break;
+            case '\t':
+                appendByte('t');
+                break;
+            default:
+                appendByte('u');
+                appendByte('0');
+                appendByte('0');
+                appendByte(HEX[c >> 4]);
+                appendByte(HEX[c & 0xf]);
+        }
+    }
+
+    private void ensureCapacity(int additional)
+    {
+        if (length + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+    }
+}
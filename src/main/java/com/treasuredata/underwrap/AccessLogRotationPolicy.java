@@ -0,0 +1,138 @@
+package com.treasuredata.underwrap;
+
+import java.time.Duration;
+
+// How access log files are rotated, compressed and retained.
+// The default policy rotates the file daily and keeps every rotated file uncompressed.
+public final class AccessLogRotationPolicy
+{
+    public static final AccessLogRotationPolicy DAILY = builder().build();
+
+    private final long maxFileSize;
+    private final Duration rotationInterval;
+    private final boolean compressionEnabled;
+    private final long compressionBytesPerSecond;
+    private final int maxRetainedFiles;
+    private final long maxRetainedBytes;
+
+    private AccessLogRotationPolicy(Builder builder)
+    {
+        this.maxFileSize = builder.maxFileSize;
+        this.rotationInterval = builder.rotationInterval;
+        this.compressionEnabled = builder.compressionEnabled;
+        this.compressionBytesPerSecond = builder.compressionBytesPerSecond;
+        this.maxRetainedFiles = builder.maxRetainedFiles;
+        this.maxRetainedBytes = builder.maxRetainedBytes;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    // 0 means the file is never rotated by size. Checked before each chunk drained by the writer is written, so records
+    // logged together may be split across files, and a file is larger only when a single chunk is
+    public long getMaxFileSize()
+    {
+        return maxFileSize;
+    }
+
+    // Rotation boundaries are aligned to local midnight
+    public Duration getRotationInterval()
+    {
+        return rotationInterval;
+    }
+
+    public boolean isCompressionEnabled()
+    {
+        return compressionEnabled;
+    }
+
+    // 0 means compression isn't throttled
+    public long getCompressionBytesPerSecond()
+    {
+        return compressionBytesPerSecond;
+    }
+
+    // 0 means no limit
+    public int getMaxRetainedFiles()
+    {
+        return maxRetainedFiles;
+    }
+
+    // 0 means no limit
+    public long getMaxRetainedBytes()
+    {
+        return maxRetainedBytes;
+    }
+
+    public static class Builder
+    {
+        private long maxFileSize;
+        private Duration rotationInterval = Duration.ofDays(1);
+        private boolean compressionEnabled;
+        private long compressionBytesPerSecond;
+        private int maxRetainedFiles;
+        private long maxRetainedBytes;
+
+        private Builder()
+        {
+        }
+
+        public Builder setMaxFileSize(long maxFileSize)
+        {
+            if (maxFileSize < 0) {
+                throw new IllegalArgumentException("maxFileSize must not be negative: " + maxFileSize);
+            }
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        public Builder setRotationInterval(Duration rotationInterval)
+        {
+            if (rotationInterval.compareTo(Duration.ofSeconds(1)) < 0) {
+                throw new IllegalArgumentException("rotationInterval must be 1 second or longer: " + rotationInterval);
+            }
+            this.rotationInterval = rotationInterval;
+            return this;
+        }
+
+        public Builder setCompressionEnabled(boolean compressionEnabled)
+        {
+            this.compressionEnabled = compressionEnabled;
+            return this;
+        }
+
+        public Builder setCompressionBytesPerSecond(long compressionBytesPerSecond)
+        {
+            if (compressionBytesPerSecond < 0) {
+                throw new IllegalArgumentException("compressionBytesPerSecond must not be negative: " + compressionBytesPerSecond);
+            }
+            this.compressionBytesPerSecond = compressionBytesPerSecond;
+            return this;
+        }
+
+        public Builder setMaxRetainedFiles(int maxRetainedFiles)
+        {
+            if (maxRetainedFiles < 0) {
+                throw new IllegalArgumentException("maxRetainedFiles must not be negative: " + maxRetainedFiles);
+            }
+            this.maxRetainedFiles = maxRetainedFiles;
+            return this;
+        }
+
+        public Builder setMaxRetainedBytes(long maxRetainedBytes)
+        {
+            if (maxRetainedBytes < 0) {
+                throw new IllegalArgumentException("maxRetainedBytes must not be negative: " + maxRetainedBytes);
+            }
+            this.maxRetainedBytes = maxRetainedBytes;
+            return this;
+        }
+
+        public AccessLogRotationPolicy build()
+        {
+            return new AccessLogRotationPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Decides when the active access log file is rotated and moves it aside. Compression and retention of rotated
+// files run on a low priority background thread so that they never block the writer thread.
+// Only the access log writer thread may call the methods except `close()`.
+class AccessLogRotator
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AccessLogRotator.class);
+
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int COMPRESSION_CHUNK_SIZE = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final Path outputDirectory;
+    private final String logBaseName;
+    private final String logNameSuffix;
+    private final Path activeFile;
+    private final AccessLogRotationPolicy policy;
+    private final long intervalMillis;
+    private final String periodPattern;
+    private final ExecutorService housekeeper;
+    private final RateLimiter compressionRateLimiter;
+
+    private long periodStart;
+    private long nextRotation;
+
+    AccessLogRotator(Path outputDirectory, String logBaseName, String logNameSuffix, AccessLogRotationPolicy policy)
+    {
+        this.outputDirectory = outputDirectory;
+        this.logBaseName = logBaseName;
+        this.logNameSuffix = logNameSuffix;
+        this.activeFile = outputDirectory.resolve(logBaseName + logNameSuffix);
+        this.policy = policy;
+        this.intervalMillis = policy.getRotationInterval().toMillis();
+        this.periodPattern = intervalMillis >= TimeUnit.DAYS.toMillis(1) ? "yyyy-MM-dd" : "yyyy-MM-dd-HH-mm-ss";
+        this.compressionRateLimiter = policy.getCompressionBytesPerSecond() > 0 ? RateLimiter.create(policy.getCompressionBytesPerSecond()) : null;
+        this.housekeeper = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setPriority(Thread.MIN_PRIORITY)
+                        .setNameFormat("access-log-housekeeper-%d")
+                        .build());
+
+        calculatePeriod(System.currentTimeMillis());
+    }
+
+    Path getActiveFile()
+    {
+        return activeFile;
+    }
+
+    // Rotates a file left by a previous process if it belongs to an earlier period, and takes care of rotated
+    // files that a previous process didn't finish compressing.
+    void start()
+    {
+        if (Files.exists(activeFile)) {
+            try {
+                long lastModified = Files.getLastModifiedTime(activeFile).toMillis();
+                if (lastModified < periodStart) {
+                    moveActiveFile(periodStartOf(lastModified));
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to rotate access log file {}", activeFile, e);
+            }
+        }
+        housekeeper.execute(this::housekeep);
+    }
+
+    boolean shouldRotate(long now, long activeFileSize, int pendingBytes)
+    {
+        if (now >= nextRotation) {
+            return true;
+        }
+        return policy.getMaxFileSize() > 0 && activeFileSize > 0 && activeFileSize + pendingBytes > policy.getMaxFileSize();
+    }
+
+    // The caller must close the active file before calling this
+    void rotate(long now)
+            throws IOException
+    {
+        try {
+            if (Files.exists(activeFile)) {
+                moveActiveFile(periodStart);
+                housekeeper.execute(this::housekeep);
+            }
+        }
+        finally {
+            calculatePeriod(now);
+        }
+    }
+
+    // Interrupts a running compression. The rotated file is compressed again at the next start.
+    void close()
+    {
+        housekeeper.shutdownNow();
+        try {
+            if (!housekeeper.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Access log housekeeper didn't terminate in {} ms", CLOSE_TIMEOUT_MILLIS);
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted when waiting access log housekeeper termination", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void calculatePeriod(long now)
+    {
+        periodStart = periodStartOf(now);
+        nextRotation = periodStart + intervalMillis;
+    }
+
+    private long periodStartOf(long time)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        long midnight = calendar.getTimeInMillis();
+        return midnight + ((time - midnight) / intervalMillis) * intervalMillis;
+    }
+
+    private void moveActiveFile(long period)
+            throws IOException
+    {
+        String periodString = new SimpleDateFormat(periodPattern, Locale.US).format(new Date(period));
+        Path newFile = outputDirectory.resolve(logBaseName + periodString + "." + logNameSuffix);
+        int count = 0;
+        while (Files.exists(newFile) || Files.exists(compressedPathOf(newFile))) {
+            ++count;
+            newFile = outputDirectory.resolve(logBaseName + periodString + "-" + count + "." + logNameSuffix);
+        }
+        Files.move(activeFile, newFile);
+    }
+
+    private static Path compressedPathOf(Path file)
+    {
+        return file.resolveSibling(file.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    private void housekeep()
+    {
+        try {
+            if (policy.isCompressionEnabled()) {
+                for (Path file : listRotatedFiles()) {
+                    if (file.getFileName().toString().endsWith("." + logNameSuffix)) {
+                        compress(file);
+                    }
+                }
+            }
+            applyRetention();
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to clean up rotated access log files in {}", outputDirectory, e);
+        }
+    }
+
+    private void compress(Path file)
+            throws IOException
+    {
+        Path compressed = compressedPathOf(file);
+        Path temporary = compressed.resolveSibling(compressed.getFileName() + TEMPORARY_SUFFIX);
+        byte[] buffer = new byte[COMPRESSION_CHUNK_SIZE];
+        try (InputStream in = Files.newInputStream(file);
+                OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary), COMPRESSION_CHUNK_SIZE)) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                if (compressionRateLimiter != null) {
+                    compressionRateLimiter.acquire(length);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted while compressing " + file);
+                }
+                out.write(buffer, 0, length);
+            }
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, compressed, StandardCopyOption.ATOMIC_MOVE);
+        // Keep the original timestamp so that retention removes files in the order they were written
+        Files.setLastModifiedTime(compressed, Files.getLastModifiedTime(file));
+        Files.delete(file);
+    }
+
+    private void applyRetention()
+            throws IOException
+    {
+        int maxFiles = policy.getMaxRetainedFiles();
+        long maxBytes = policy.getMaxRetainedBytes();
+        if (maxFiles == 0 && maxBytes == 0) {
+            return;
+        }
+
+        List<Path> files = listRotatedFiles();
+        List<Long> sizes = new ArrayList<>(files.size());
+        long totalBytes = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            sizes.add(size);
+            totalBytes += size;
+        }
+
+        // `files` is sorted from the oldest
+        for (int i = 0; i < files.size(); i++) {
+            int remaining = files.size() - i;
+            boolean tooMany = maxFiles > 0 && remaining > maxFiles;
+            boolean tooLarge = maxBytes > 0 && totalBytes > maxBytes;
+            if (!tooMany && !tooLarge) {
+                break;
+            }
+            Files.deleteIfExists(files.get(i));
+            totalBytes -= sizes.get(i);
+        }
+    }
+
+    private List<Path> listRotatedFiles()
+            throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDirectory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (file.equals(activeFile) || !name.startsWith(logBaseName)) {
+                    continue;
+                }
+                if (name.endsWith("." + logNameSuffix) || name.endsWith("." + logNameSuffix + COMPRESSED_SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(AccessLogRotator::lastModified).thenComparing(Path::toString));
+        return files;
+    }
+
+    private static long lastModified(Path file)
+    {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
+
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A concurrency limit that adapts itself to the request latency, based on the gradient algorithm.
+//
+// Latencies (from the admission to the completion, excluding the time in the queue) are averaged per window.
+// At the end of each window, the short-term average is compared with a long-term average:
+//
+//   gradient = clamp(rttTolerance * longRtt / shortRtt, 0.5, 1.0)
+//   newLimit = limit * gradient + sqrt(limit)
+//
+// so the limit grows by sqrt(limit) while the latency is stable, and shrinks when the latency goes up.
+// The limit doesn't grow while less than half of it is used.
+//
+// Requests over the limit wait in a bounded queue and are dispatched when other requests complete, in the same
+// way as io.undertow.server.handlers.RequestLimit. They are rejected with 503 when the queue is full.
+//
+// Completions don't lock. Latencies are added to striped counters, and the thread that finds the window over closes
+// it, while others skip the update. A request queued after its permit check drains the queue itself, so that it isn't
+// left there after the requests it waited for complete.
+public final class AdaptiveConcurrencyLimit
+{
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final double smoothing;
+    private final long windowNanos;
+    private final int minWindowSamples;
+    private final int longWindows;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final boolean queueEnabled;
+    private final Queue<SuspendedRequest> queue;
+    private final LongAdder rejected = new LongAdder();
+    private volatile int limit;
+
+    private final LongAdder windowRttSum = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAccumulator windowMaxInFlight = new LongAccumulator(Math::max, 0);
+    private volatile long windowStart = System.nanoTime();
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // Guarded by `updating`
+    private double estimatedLimit;
+    private double longRtt;
+
+    private AdaptiveConcurrencyLimit(Builder builder)
+    {
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.rttTolerance = builder.rttTolerance;
+        this.smoothing = builder.smoothing;
+        this.windowNanos = builder.windowNanos;
+        this.minWindowSamples = builder.minWindowSamples;
+        this.longWindows = builder.longWindows;
+        this.queueEnabled = builder.maxQueueSize > 0;
+        this.queue = new LinkedBlockingQueue<>(queueEnabled ? builder.maxQueueSize : 1);
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, builder.initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public void handleRequest(HttpServerExchange exchange, HttpHandler next)
+            throws Exception
+    {
+        if (tryAcquire()) {
+            exchange.addExchangeCompleteListener(new Admission(System.nanoTime()));
+            next.handleRequest(exchange);
+            return;
+        }
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+            if (tryAcquire()) {
+                dispatch(exchange, next);
+            }
+            else if (!queueEnabled || !queue.offer(new SuspendedRequest(exchange, next))) {
+                rejected.increment();
+                Connectors.executeRootHandler(ExecutorDispatch.REJECTION_HANDLER, exchange);
+            }
+            else {
+                // Requests may have completed between tryAcquire() and offer(), without seeing this one in the queue
+                drainQueue();
+            }
+        });
+    }
+
+    private boolean tryAcquire()
+    {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dispatch(HttpServerExchange exchange, HttpHandler next)
+    {
+        exchange.addExchangeCompleteListener(new Admission(System.nanoTime()));
+        exchange.dispatch(next);
+    }
+
+    private void release(long rttNanos)
+    {
+        update(rttNanos, inFlight.getAndDecrement(), System.nanoTime());
+        drainQueue();
+    }
+
+    private void drainQueue()
+    {
+        while (!queue.isEmpty() && tryAcquire()) {
+            SuspendedRequest request = queue.poll();
+            if (request == null) {
+                // Taken by another thread. Return the permit and check the queue again
+                inFlight.decrementAndGet();
+                continue;
+            }
+            dispatch(request.exchange, request.next);
+        }
+    }
+
+    // Visible for testing
+    void update(long rttNanos, int currentInFlight, long now)
+    {
+        windowRttSum.add(rttNanos);
+        windowSamples.increment();
+        windowMaxInFlight.accumulate(currentInFlight);
+        if (now - windowStart < windowNanos || windowSamples.sum() < minWindowSamples || !updating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (now - windowStart >= windowNanos) {
+                updateLimit(now);
+            }
+        }
+        finally {
+            updating.set(false);
+        }
+    }
+
+    // Samples added while the window is being reset may be counted in the next window
+    private void updateLimit(long now)
+    {
+        long samples = windowSamples.sum();
+        if (samples < minWindowSamples) {
+            return;
+        }
+        double shortRtt = Math.max(1.0, (double) windowRttSum.sumThenReset() / samples);
+        windowSamples.add(-samples);
+        int maxInFlight = (int) windowMaxInFlight.getThenReset();
+        windowStart = now;
+
+        if (longRtt == 0) {
+            longRtt = shortRtt;
+        }
+        else {
+            longRtt += (shortRtt - longRtt) / longWindows;
+        }
+        if (longRtt > shortRtt * 2) {
+            // Latency dropped a lot. Let the long-term average catch up quickly so that the limit can grow again
+            longRtt *= 0.95;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        if (newLimit > estimatedLimit && maxInFlight < estimatedLimit / 2) {
+            // Not limited by the concurrency limit. Latency under this load says nothing about a higher limit
+            return;
+        }
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - smoothing) + newLimit * smoothing));
+        limit = (int) estimatedLimit;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlight.get();
+    }
+
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    private class Admission
+        implements ExchangeCompletionListener
+    {
+        private final long start;
+
+        Admission(long start)
+        {
+            this.start = start;
+        }
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+        {
+            try {
+                release(System.nanoTime() - start);
+            }
+            finally {
+                nextListener.proceed();
+            }
+        }
+    }
+
+    private static class SuspendedRequest
+    {
+        final HttpServerExchange exchange;
+        final HttpHandler next;
+
+        SuspendedRequest(HttpServerExchange exchange, HttpHandler next)
+        {
+            this.exchange = exchange;
+            this.next = next;
+        }
+    }
+
+    public static class Builder
+    {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 1000;
+        private int maxQueueSize = 100;
+        private double rttTolerance = 1.5;
+        private double smoothing = 0.2;
+        private long windowNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private int minWindowSamples = 10;
+        private int longWindows = 100;
+
+        private Builder()
+        {
+        }
+
+        public Builder setInitialLimit(int initialLimit)
+        {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder setMinLimit(int minLimit)
+        {
+            if (minLimit < 1) {
+                throw new IllegalArgumentException("minLimit must be at least 1: " + minLimit);
+            }
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder setMaxLimit(int maxLimit)
+        {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        // Requests over the limit are rejected immediately when 0
+        public Builder setMaxQueueSize(int maxQueueSize)
+        {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        // How much the latency can grow (as a ratio to the long-term average) before the limit shrinks
+        public Builder setRttTolerance(double rttTolerance)
+        {
+            if (rttTolerance < 1.0) {
+                throw new IllegalArgumentException("rttTolerance must be at least 1.0: " + rttTolerance);
+            }
+            this.rttTolerance = rttTolerance;
+            return this;
+        }
+
+        public Builder setSmoothing(double smoothing)
+        {
+            if (smoothing <= 0.0 || smoothing > 1.0) {
+                throw new IllegalArgumentException("smoothing must be in (0.0, 1.0]: " + smoothing);
+            }
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        public Builder setWindow(long duration, TimeUnit unit, int minSamples)
+        {
+            this.windowNanos = unit.toNanos(duration);
+            this.minWindowSamples = minSamples;
+            return this;
+        }
+
+        // Number of windows the long-term average latency spans
+        public Builder setLongWindows(int longWindows)
+        {
+            this.longWindows = longWindows;
+            return this;
+        }
+
+        public AdaptiveConcurrencyLimit build()
+        {
+            if (minLimit > maxLimit) {
+                throw new IllegalArgumentException("minLimit must not be greater than maxLimit: " + minLimit + " > " + maxLimit);
+            }
+            return new AdaptiveConcurrencyLimit(this);
+        }
+    }
+}
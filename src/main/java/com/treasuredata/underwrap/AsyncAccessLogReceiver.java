@@ -0,0 +1,271 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.handlers.accesslog.AccessLogReceiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// An AccessLogReceiver that hands log records to a single writer thread through a bounded lock-free ring buffer.
+// The writer drains records in batches into a reused direct buffer and writes each batch with one FileChannel call.
+// Files are rotated by AccessLogRotator according to an AccessLogRotationPolicy. With the default policy, files are
+// rotated daily into `<baseName><yyyy-MM-dd>.<suffix>` in the same way as DefaultAccessLogReceiver.
+public class AsyncAccessLogReceiver
+    implements AccessLogReceiver, Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncAccessLogReceiver.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_OVERFLOW_SAMPLE_RATE = 10;
+
+    private static final int MAX_BATCH_LINES = 4096;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    public enum OverflowPolicy
+    {
+        // Wait until the writer makes room. Note that this blocks the calling IO/worker thread.
+        BLOCK,
+        // Drop the record and count it.
+        DROP,
+        // Once the queue is half full, keep only one of every `overflowSampleRate` records. Drop records when full.
+        SAMPLE,
+    }
+
+    private final Path defaultLogFile;
+    private final AccessLogRotator rotator;
+    private final OverflowPolicy overflowPolicy;
+    private final int overflowSampleRate;
+    private final int sampleThreshold;
+
+    private final MpscRingBuffer<byte[]> queue;
+    private final ByteBuffer writeBuffer;
+    private final Thread writerThread;
+
+    private final LongAdder writtenLines = new LongAdder();
+    private final LongAdder droppedLines = new LongAdder();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private volatile boolean closed;
+
+    // Accessed only by the writer thread
+    private FileChannel channel;
+    private long fileSize;
+    private int pendingLines;
+
+    public AsyncAccessLogReceiver(Path outputDirectory, String logBaseName, String logNameSuffix)
+    {
+        this(outputDirectory, logBaseName, logNameSuffix, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP, DEFAULT_OVERFLOW_SAMPLE_RATE);
+    }
+
+    public AsyncAccessLogReceiver(Path outputDirectory, String logBaseName, String logNameSuffix,
+            int queueCapacity, OverflowPolicy overflowPolicy, int overflowSampleRate)
+    {
+        this(outputDirectory, logBaseName, logNameSuffix, queueCapacity, overflowPolicy, overflowSampleRate, AccessLogRotationPolicy.DAILY);
+    }
+
+    public AsyncAccessLogReceiver(Path outputDirectory, String logBaseName, String logNameSuffix,
+            int queueCapacity, OverflowPolicy overflowPolicy, int overflowSampleRate, AccessLogRotationPolicy rotationPolicy)
+    {
+        if (overflowSampleRate < 1) {
+            throw new IllegalArgumentException("overflowSampleRate must be positive: " + overflowSampleRate);
+        }
+        this.rotator = new AccessLogRotator(outputDirectory, logBaseName, logNameSuffix, rotationPolicy);
+        this.defaultLogFile = rotator.getActiveFile();
+        this.overflowPolicy = overflowPolicy;
+        this.overflowSampleRate = overflowSampleRate;
+        this.queue = new MpscRingBuffer<>(queueCapacity);
+        this.sampleThreshold = queue.capacity() / 2;
+        this.writeBuffer = ByteBuffer.allocateDirect(DEFAULT_WRITE_BUFFER_SIZE);
+
+        rotator.start();
+
+        this.writerThread = new Thread(this::runWriter, "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void logMessage(String message)
+    {
+        log((message + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+
+    // `record` must contain the line terminator, if any. The array is owned by the receiver after this call.
+    public void log(byte[] record)
+    {
+        if (closed) {
+            droppedLines.increment();
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case SAMPLE:
+                if ((queue.size() >= sampleThreshold && sampleCounter.getAndIncrement() % overflowSampleRate != 0)
+                        || !queue.offer(record)) {
+                    droppedLines.increment();
+                }
+                break;
+            case DROP:
+                if (!queue.offer(record)) {
+                    droppedLines.increment();
+                }
+                break;
+            case BLOCK:
+                while (!queue.offer(record)) {
+                    if (closed || !writerThread.isAlive()) {
+                        droppedLines.increment();
+                        return;
+                    }
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                }
+                break;
+            default:
+                throw new AssertionError(overflowPolicy);
+        }
+    }
+
+    public long getWrittenLineCount()
+    {
+        return writtenLines.sum();
+    }
+
+    public long getDroppedLineCount()
+    {
+        return droppedLines.sum();
+    }
+
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted when waiting access log writer termination", e);
+            Thread.currentThread().interrupt();
+        }
+        rotator.close();
+    }
+
+    private void runWriter()
+    {
+        try {
+            while (true) {
+                int lines;
+                try {
+                    lines = drain();
+                }
+                catch (Throwable e) {
+                    // Keep the writer running, as BLOCK callers would wait for it forever
+                    LOG.error("Access log writer failed unexpectedly. Dropping the current batch", e);
+                    droppedLines.add(pendingLines);
+                    pendingLines = 0;
+                    writeBuffer.clear();
+                    closeChannel();
+                    lines = 0;
+                }
+                if (lines == 0) {
+                    if (closed && queue.size() == 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+        }
+        finally {
+            closeChannel();
+        }
+    }
+
+    private int drain()
+    {
+        int lines = 0;
+        byte[] record;
+        while (lines < MAX_BATCH_LINES && (record = queue.poll()) != null) {
+            if (record.length > writeBuffer.remaining()) {
+                flush();
+            }
+            if (record.length > writeBuffer.capacity()) {
+                pendingLines++;
+                write(ByteBuffer.wrap(record));
+            }
+            else {
+                writeBuffer.put(record);
+                pendingLines++;
+            }
+            lines++;
+        }
+        flush();
+        return lines;
+    }
+
+    private void flush()
+    {
+        writeBuffer.flip();
+        write(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void write(ByteBuffer buffer)
+    {
+        if (!buffer.hasRemaining() && pendingLines == 0) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (rotator.shouldRotate(now, fileSize, buffer.remaining())) {
+                closeChannel();
+                rotator.rotate(now);
+            }
+            if (channel == null) {
+                channel = FileChannel.open(defaultLogFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                fileSize = channel.size();
+            }
+            while (buffer.hasRemaining()) {
+                fileSize += channel.write(buffer);
+            }
+            writtenLines.add(pendingLines);
+        }
+        catch (IOException e) {
+            LOG.error("Failed to write access log to {}", defaultLogFile, e);
+            droppedLines.add(pendingLines);
+            closeChannel();
+        }
+        finally {
+            pendingLines = 0;
+        }
+    }
+
+    private void closeChannel()
+    {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close access log file {}", defaultLogFile, e);
+            }
+            channel = null;
+        }
+    }
+}
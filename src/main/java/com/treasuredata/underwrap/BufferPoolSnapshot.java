@@ -0,0 +1,67 @@
+package com.treasuredata.underwrap;
+
+// Buffer pool gauges and counters read together at one point in time
+public final class BufferPoolSnapshot
+{
+    private final int bufferSize;
+    private final boolean direct;
+    private final long allocatedBufferCount;
+    private final long inUseBufferCount;
+    private final long allocationCount;
+    private final long missCount;
+
+    public BufferPoolSnapshot(int bufferSize, boolean direct, long allocatedBufferCount, long inUseBufferCount, long allocationCount, long missCount)
+    {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.allocatedBufferCount = allocatedBufferCount;
+        this.inUseBufferCount = inUseBufferCount;
+        this.allocationCount = allocationCount;
+        this.missCount = missCount;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    // Buffers owned by the pool, in use or pooled
+    public long getAllocatedBufferCount()
+    {
+        return allocatedBufferCount;
+    }
+
+    public long getInUseBufferCount()
+    {
+        return inUseBufferCount;
+    }
+
+    public long getAllocationCount()
+    {
+        return allocationCount;
+    }
+
+    // Allocations that found no pooled buffer and created a new one
+    public long getMissCount()
+    {
+        return missCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPoolSnapshot{" +
+                "bufferSize=" + bufferSize +
+                ", direct=" + direct +
+                ", allocatedBufferCount=" + allocatedBufferCount +
+                ", inUseBufferCount=" + inUseBufferCount +
+                ", allocationCount=" + allocationCount +
+                ", missCount=" + missCount +
+                '}';
+    }
+}
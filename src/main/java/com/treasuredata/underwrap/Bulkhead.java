@@ -0,0 +1,16 @@
+package com.treasuredata.underwrap;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Runs requests to a resource class or method on the named executor declared by
+// `UnderwrapApplication#registerBulkheads()`, instead of the XNIO worker pool. An annotation on a method takes
+// precedence over one on the class
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Bulkhead
+{
+    String value();
+}
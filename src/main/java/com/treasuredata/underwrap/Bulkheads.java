@@ -0,0 +1,154 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.undertow.server.HttpHandler;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Named executors that isolate resources from each other, so that a slow resource can't take all the threads of
+// the XNIO worker pool.
+//
+// Bulkheads are declared by `UnderwrapApplication#registerBulkheads()`, and resources are assigned to them with
+// @Bulkhead or `route()`. Requests matching a resource are dispatched from the IO thread to its executor, where the
+// servlet deployment runs them in blocking mode as on the worker pool. Other requests use the worker pool.
+// Requests are rejected with 503 when all threads are busy and the queue is full.
+public final class Bulkheads
+{
+    private final Map<String, Pool> pools = new LinkedHashMap<>();
+    private final Map<String, String> routes = new LinkedHashMap<>();
+
+    public Bulkheads add(String name, int threads, int maxQueueSize)
+    {
+        if (pools.containsKey(name)) {
+            throw new IllegalArgumentException("Bulkhead already exists: " + name);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (maxQueueSize < 0) {
+            throw new IllegalArgumentException("maxQueueSize must not be negative: " + maxQueueSize);
+        }
+        pools.put(name, new Pool(name, threads, maxQueueSize));
+        return this;
+    }
+
+    // Assigns requests matching a JAX-RS path template (relative to the context path) to a bulkhead, for resources
+    // that can't be annotated. @Bulkhead takes precedence
+    public Bulkheads route(String pathTemplate, String name)
+    {
+        routes.put(pathTemplate, name);
+        return this;
+    }
+
+    public boolean isEmpty()
+    {
+        return pools.isEmpty();
+    }
+
+    // Requests not assigned to a bulkhead go to `unassigned` on the IO thread
+    HttpHandler handler(HttpHandler next, HttpHandler unassigned, ResourceIndex resourceIndex)
+    {
+        ResourceMatcher<Pool> routeMatcher = new ResourceMatcher<>();
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            routeMatcher.add(route.getKey(), "*", poolOf(route.getValue()));
+        }
+        ResourceMatcher<Pool> resourceMatcher = ResourceMatcher.of(resourceIndex, entry -> {
+            Bulkhead bulkhead = bulkheadOf(entry);
+            return bulkhead == null ? null : poolOf(bulkhead.value());
+        });
+        if (routes.isEmpty() && resourceIndex.getEntries().stream().allMatch(entry -> bulkheadOf(entry) == null)) {
+            return unassigned;
+        }
+
+        return exchange -> {
+            String path = exchange.getRelativePath();
+            String method = exchange.getRequestMethod().toString();
+            Pool pool = resourceMatcher.match(path, method);
+            if (pool == null) {
+                pool = routeMatcher.match(path, method);
+            }
+            if (pool == null) {
+                unassigned.handleRequest(exchange);
+                return;
+            }
+            ExecutorDispatch.dispatch(exchange, next, pool.executor, pool.rejected);
+        };
+    }
+
+    private static Bulkhead bulkheadOf(ResourceIndex.Entry entry)
+    {
+        Bulkhead bulkhead = entry.getMethod().getAnnotation(Bulkhead.class);
+        return bulkhead != null ? bulkhead : entry.getResourceClass().getAnnotation(Bulkhead.class);
+    }
+
+    private Pool poolOf(String name)
+    {
+        Pool pool = pools.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown bulkhead: " + name);
+        }
+        return pool;
+    }
+
+    void shutdown(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        for (Pool pool : pools.values()) {
+            pool.executor.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Pool pool : pools.values()) {
+            if (!pool.executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                pool.executor.shutdownNow();
+            }
+        }
+    }
+
+    // Keyed by bulkhead names
+    public Map<String, WorkerPoolSnapshot> getSnapshots()
+    {
+        Map<String, WorkerPoolSnapshot> snapshots = new TreeMap<>();
+        for (Pool pool : pools.values()) {
+            snapshots.put(pool.name, WorkerPoolSnapshot.of(pool.executor.getCorePoolSize(), pool.executor, pool.queue));
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    // Keyed by bulkhead names
+    public Map<String, Long> getRejectedCounts()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Pool pool : pools.values()) {
+            counts.put(pool.name, pool.rejected.sum());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private static class Pool
+    {
+        final String name;
+        final BlockingQueue<Runnable> queue;
+        final ThreadPoolExecutor executor;
+        final LongAdder rejected = new LongAdder();
+
+        Pool(String name, int threads, int maxQueueSize)
+        {
+            this.name = name;
+            this.queue = maxQueueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(maxQueueSize);
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("underwrap-bulkhead-" + name + "-%d")
+                            .build());
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+}
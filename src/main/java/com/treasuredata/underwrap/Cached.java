@@ -0,0 +1,21 @@
+package com.treasuredata.underwrap;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+// Caches 200 responses of a @GET resource method in ResponseCacheHandler for `ttl`.
+// Enabled by `UnderwrapServer#setResponseCachePolicy()`
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cached
+{
+    long ttl();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    // Request headers that select a different representation, in addition to Accept
+    String[] varyHeaders() default {};
+}
@@ -0,0 +1,151 @@
+package com.treasuredata.underwrap;
+
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Passes a response body through to the next conduit and keeps a copy of it, up to `maxBytes`.
+//
+// The copy is usable only when the body was fully written (`isComplete()`). It isn't when the body is larger than
+// `maxBytes`, or is sent by `transferFrom()`, which this conduit doesn't see.
+class CapturingStreamSinkConduit
+    extends AbstractStreamSinkConduit<StreamSinkConduit>
+{
+    private final int maxBytes;
+    private byte[] bytes = new byte[1024];
+    private int size;
+    private boolean discarded;
+    private boolean finished;
+
+    CapturingStreamSinkConduit(StreamSinkConduit next, int maxBytes)
+    {
+        super(next);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+            throws IOException
+    {
+        int position = src.position();
+        int written = next.write(src);
+        capture(src, position, written);
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len)
+            throws IOException
+    {
+        int[] positions = positions(srcs, offs, len);
+        long written = next.write(srcs, offs, len);
+        capture(srcs, offs, len, positions);
+        return written;
+    }
+
+    @Override
+    public int writeFinal(ByteBuffer src)
+            throws IOException
+    {
+        int position = src.position();
+        int written = next.writeFinal(src);
+        capture(src, position, written);
+        if (!src.hasRemaining()) {
+            finished = true;
+        }
+        return written;
+    }
+
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offset, int length)
+            throws IOException
+    {
+        int[] positions = positions(srcs, offset, length);
+        long written = next.writeFinal(srcs, offset, length);
+        capture(srcs, offset, length, positions);
+        if (!srcs[offset + length - 1].hasRemaining()) {
+            finished = true;
+        }
+        return written;
+    }
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count)
+            throws IOException
+    {
+        discarded = true;
+        return next.transferFrom(src, position, count);
+    }
+
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer)
+            throws IOException
+    {
+        discarded = true;
+        return next.transferFrom(source, count, throughBuffer);
+    }
+
+    @Override
+    public void terminateWrites()
+            throws IOException
+    {
+        next.terminateWrites();
+        finished = true;
+    }
+
+    boolean isComplete()
+    {
+        return finished && !discarded;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private static int[] positions(ByteBuffer[] srcs, int offs, int len)
+    {
+        int[] positions = new int[len];
+        for (int i = 0; i < len; i++) {
+            positions[i] = srcs[offs + i].position();
+        }
+        return positions;
+    }
+
+    private void capture(ByteBuffer[] srcs, int offs, int len, int[] positions)
+    {
+        for (int i = 0; i < len; i++) {
+            ByteBuffer src = srcs[offs + i];
+            capture(src, positions[i], src.position() - positions[i]);
+        }
+    }
+
+    private void capture(ByteBuffer src, int position, int length)
+    {
+        if (discarded || length <= 0) {
+            return;
+        }
+        if (size + length > maxBytes) {
+            discarded = true;
+            bytes = null;
+            return;
+        }
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(maxBytes, Math.max(bytes.length * 2, size + length)));
+        }
+        ByteBuffer written = src.duplicate();
+        written.position(position);
+        written.get(bytes, size, length);
+        size += length;
+    }
+}
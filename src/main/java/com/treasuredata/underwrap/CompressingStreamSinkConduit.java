@@ -0,0 +1,404 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import org.xnio.Buffers;
+import org.xnio.IoUtils;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+import org.xnio.conduits.WriteReadyHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Buffers a response body, and gzips it with GzipCompressor in one pass when the body ends. Bodies smaller than
+// `minBytes` are sent as they are, with Content-Length either way.
+//
+// When the body grows beyond `maxBufferBytes`, or the application flushes it before it ends (e.g. to send a part of a
+// long response), the rest is streamed through a GzipCompressor.Stream, and each flush sends what's written so far.
+//
+// The next conduit is created only when the body is sent, after Content-Length and Content-Encoding are set,
+// because Undertow chooses the transfer encoding from the headers at that time.
+class CompressingStreamSinkConduit
+    implements StreamSinkConduit
+{
+    private final ConduitFactory<StreamSinkConduit> factory;
+    private final HttpServerExchange exchange;
+    private final CompressionPolicy policy;
+    private final GzipCompressor compressor;
+    private final LongAdder streamed;
+
+    private byte[] buffer = new byte[1024];
+    private int size;
+    // Null while buffering
+    private StreamSinkConduit next;
+    // Non-null while streaming, until the body ends
+    private GzipCompressor.Stream stream;
+    private boolean streamFlushed = true;
+    // Written to `next` before anything else
+    private ByteBuffer pending;
+    private boolean shutdown;
+    private boolean nextShutdown;
+    private boolean writesResumed;
+    private WriteReadyHandler writeReadyHandler;
+
+    CompressingStreamSinkConduit(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange, CompressionPolicy policy, GzipCompressor compressor, LongAdder streamed)
+    {
+        this.factory = factory;
+        this.exchange = exchange;
+        this.policy = policy;
+        this.compressor = compressor;
+        this.streamed = streamed;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+            throws IOException
+    {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (next == null) {
+            int length = src.remaining();
+            if ((long) size + length <= policy.getMaxBufferBytes()) {
+                append(src);
+                return length;
+            }
+            startStreaming();
+        }
+        if (!writePending()) {
+            return 0;
+        }
+        int length = src.remaining();
+        pending = stream.write(src);
+        streamFlushed = false;
+        // Counted again as they are written to `next`
+        Connectors.updateResponseBytesSent(exchange, -length);
+        writePending();
+        return length;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len)
+            throws IOException
+    {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        if (next == null) {
+            long length = Buffers.remaining(srcs, offs, len);
+            if (size + length <= policy.getMaxBufferBytes()) {
+                for (int i = offs; i < offs + len; i++) {
+                    append(srcs[i]);
+                }
+                return length;
+            }
+            startStreaming();
+        }
+        long written = 0;
+        for (int i = offs; i < offs + len; i++) {
+            if (!srcs[i].hasRemaining()) {
+                continue;
+            }
+            int n = write(srcs[i]);
+            written += n;
+            if (n == 0) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public int writeFinal(ByteBuffer src)
+            throws IOException
+    {
+        return Conduits.writeFinalBasic(this, src);
+    }
+
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offset, int length)
+            throws IOException
+    {
+        return Conduits.writeFinalBasic(this, srcs, offset, length);
+    }
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count)
+            throws IOException
+    {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        return src.transferTo(position, count, new ConduitWritableByteChannel(this));
+    }
+
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer)
+            throws IOException
+    {
+        if (shutdown) {
+            throw new ClosedChannelException();
+        }
+        return IoUtils.transfer(source, count, throughBuffer, new ConduitWritableByteChannel(this));
+    }
+
+    @Override
+    public void terminateWrites()
+            throws IOException
+    {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        if (next == null) {
+            finishBuffering();
+        }
+        // `next` is terminated by flush() after the pending bytes are written
+    }
+
+    @Override
+    public boolean flush()
+            throws IOException
+    {
+        if (next == null) {
+            // Flushed by the application before the body ends
+            startStreaming();
+        }
+        if (!writePending()) {
+            return false;
+        }
+        if (stream != null && (shutdown || !streamFlushed)) {
+            if (shutdown) {
+                pending = stream.finish();
+                stream.close();
+                stream = null;
+            }
+            else {
+                pending = stream.flush();
+                streamFlushed = true;
+            }
+            if (!writePending()) {
+                return false;
+            }
+        }
+        if (shutdown && !nextShutdown) {
+            next.terminateWrites();
+            nextShutdown = true;
+        }
+        return next.flush();
+    }
+
+    @Override
+    public boolean isWriteShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public void truncateWrites()
+            throws IOException
+    {
+        shutdown = true;
+        buffer = null;
+        pending = null;
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+        if (next == null) {
+            setNext(factory.create());
+        }
+        next.truncateWrites();
+    }
+
+    @Override
+    public void resumeWrites()
+    {
+        if (next == null) {
+            writesResumed = true;
+            queueWriteReady();
+        }
+        else {
+            next.resumeWrites();
+        }
+    }
+
+    @Override
+    public void suspendWrites()
+    {
+        if (next == null) {
+            writesResumed = false;
+        }
+        else {
+            next.suspendWrites();
+        }
+    }
+
+    @Override
+    public void wakeupWrites()
+    {
+        if (next == null) {
+            resumeWrites();
+        }
+        else {
+            next.wakeupWrites();
+        }
+    }
+
+    @Override
+    public boolean isWriteResumed()
+    {
+        return next == null ? writesResumed : next.isWriteResumed();
+    }
+
+    @Override
+    public void awaitWritable()
+            throws IOException
+    {
+        if (next != null) {
+            next.awaitWritable();
+        }
+    }
+
+    @Override
+    public void awaitWritable(long time, TimeUnit timeUnit)
+            throws IOException
+    {
+        if (next != null) {
+            next.awaitWritable(time, timeUnit);
+        }
+    }
+
+    @Override
+    public XnioIoThread getWriteThread()
+    {
+        return exchange.getConnection().getIoThread();
+    }
+
+    @Override
+    public void setWriteReadyHandler(WriteReadyHandler handler)
+    {
+        this.writeReadyHandler = handler;
+        if (next != null) {
+            next.setWriteReadyHandler(handler);
+        }
+    }
+
+    @Override
+    public XnioWorker getWorker()
+    {
+        return exchange.getConnection().getWorker();
+    }
+
+    // Always writable while buffering, so the handler is called on the IO thread until writes are suspended
+    private void queueWriteReady()
+    {
+        getWriteThread().execute(() -> {
+            if (writeReadyHandler != null) {
+                try {
+                    writeReadyHandler.writeReady();
+                }
+                finally {
+                    if (next == null && writesResumed) {
+                        queueWriteReady();
+                    }
+                }
+            }
+        });
+    }
+
+    private void append(ByteBuffer src)
+    {
+        int length = src.remaining();
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(policy.getMaxBufferBytes(), Math.max(buffer.length * 2, size + length)));
+        }
+        src.get(buffer, size, length);
+        size += length;
+        // Counted again as they are written to `next`
+        Connectors.updateResponseBytesSent(exchange, -length);
+    }
+
+    private void finishBuffering()
+    {
+        HeaderMap headers = exchange.getResponseHeaders();
+        if (size >= policy.getMinBytes()) {
+            byte[] compressed = compressor.compress(buffer, 0, size);
+            setEncoded(headers);
+            headers.put(Headers.CONTENT_LENGTH, compressed.length);
+            pending = ByteBuffer.wrap(compressed);
+        }
+        else {
+            headers.put(Headers.CONTENT_LENGTH, size);
+            pending = ByteBuffer.wrap(buffer, 0, size);
+        }
+        buffer = null;
+        setNext(factory.create());
+    }
+
+    private void startStreaming()
+    {
+        streamed.increment();
+        HeaderMap headers = exchange.getResponseHeaders();
+        setEncoded(headers);
+        headers.remove(Headers.CONTENT_LENGTH);
+        stream = compressor.openStream();
+        pending = stream.write(ByteBuffer.wrap(buffer, 0, size));
+        streamFlushed = size == 0;
+        buffer = null;
+        setNext(factory.create());
+    }
+
+    private static void setEncoded(HeaderMap headers)
+    {
+        headers.put(Headers.CONTENT_ENCODING, "gzip");
+        // The gzipped representation needs an entity tag of its own
+        String etag = headers.getFirst(Headers.ETAG);
+        if (etag != null && etag.endsWith("\"")) {
+            headers.put(Headers.ETAG, etag.substring(0, etag.length() - 1) + "-gzip\"");
+        }
+    }
+
+    private void setNext(StreamSinkConduit next)
+    {
+        this.next = next;
+        if (writeReadyHandler != null) {
+            next.setWriteReadyHandler(writeReadyHandler);
+        }
+        if (writesResumed) {
+            next.resumeWrites();
+        }
+    }
+
+    private boolean writePending()
+            throws IOException
+    {
+        if (pending == null) {
+            return true;
+        }
+        int written;
+        do {
+            written = next.write(pending);
+            Connectors.updateResponseBytesSent(exchange, written);
+        }
+        while (written > 0 && pending.hasRemaining());
+        if (pending.hasRemaining()) {
+            return false;
+        }
+        pending = null;
+        return true;
+    }
+}
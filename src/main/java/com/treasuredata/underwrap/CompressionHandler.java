@@ -0,0 +1,113 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Gzips responses for clients accepting gzip. See CompressionPolicy for the responses compressed, and
+// CompressingStreamSinkConduit for how.
+//
+// Whether a response is compressed is decided when its body is first written, so the status and headers set by the
+// application apply. Responses that already have Content-Encoding (e.g. precompressed cache hits) are left as they
+// are. Compressible responses get `Vary: Accept-Encoding` whether they are compressed or not.
+public class CompressionHandler
+    implements HttpHandler
+{
+    private final HttpHandler next;
+    private final CompressionPolicy policy;
+    private final GzipCompressor compressor;
+    private final LongAdder streamed = new LongAdder();
+    private final ConduitWrapper<StreamSinkConduit> wrapper = this::wrap;
+
+    public CompressionHandler(HttpHandler next, CompressionPolicy policy)
+    {
+        this.next = next;
+        this.policy = policy;
+        this.compressor = new GzipCompressor(policy.getLevel());
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        if (!exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.addResponseWrapper(wrapper);
+        }
+        next.handleRequest(exchange);
+    }
+
+    private StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange)
+    {
+        HeaderMap headers = exchange.getResponseHeaders();
+        int status = exchange.getStatusCode();
+        // Content-Range of 206 refers to the identity body
+        if (status < StatusCodes.OK || status == StatusCodes.NO_CONTENT || status == StatusCodes.PARTIAL_CONTENT
+                || status == StatusCodes.NOT_MODIFIED
+                || !policy.isCompressible(headers.getFirst(Headers.CONTENT_TYPE))) {
+            return factory.create();
+        }
+        addVary(headers);
+        if (headers.contains(Headers.CONTENT_ENCODING) || !GzipCompressor.accepts(exchange.getRequestHeaders())
+                || exchange.getResponseContentLength() >= 0 && exchange.getResponseContentLength() < policy.getMinBytes()) {
+            return factory.create();
+        }
+        return new CompressingStreamSinkConduit(factory, exchange, policy, compressor, streamed);
+    }
+
+    private static void addVary(HeaderMap headers)
+    {
+        HeaderValues vary = headers.get(Headers.VARY);
+        if (vary != null) {
+            for (String value : vary) {
+                for (String name : value.split(",")) {
+                    if (name.trim().equalsIgnoreCase(Headers.ACCEPT_ENCODING_STRING)) {
+                        return;
+                    }
+                }
+            }
+        }
+        headers.add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+    }
+
+    // Shared with ResponseCacheHandler to precompress cache entries
+    GzipCompressor getCompressor()
+    {
+        return compressor;
+    }
+
+    // Bodies gzipped in one pass, including precompressed cache entries
+    public long getCompressedCount()
+    {
+        return compressor.getCompressedCount();
+    }
+
+    // Bodies larger than `maxBufferBytes` or flushed before they end, gzipped while streamed
+    public long getStreamedCount()
+    {
+        return streamed.sum();
+    }
+
+    public long getInputBytes()
+    {
+        return compressor.getInputBytes();
+    }
+
+    public long getOutputBytes()
+    {
+        return compressor.getOutputBytes();
+    }
+
+    public long getCpuNanos()
+    {
+        return compressor.getCpuNanos();
+    }
+}
@@ -0,0 +1,153 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+// Configuration of CompressionHandler.
+//
+// Responses are gzipped when the client accepts gzip, the Content-Type matches one of `contentTypes` ("type/subtype",
+// "type/*" or "type/*+suffix", without parameters), and the body has `minBytes` or more. Bodies up to
+// `maxBufferBytes` are compressed in one pass when they end. Larger ones, and ones flushed before they end, are
+// streamed. Text/event-stream isn't in the defaults, as each event would cost a flush of the gzip stream.
+public final class CompressionPolicy
+{
+    public static final List<String> DEFAULT_CONTENT_TYPES = Arrays.asList(
+            "text/html", "text/plain", "text/css", "text/csv", "text/xml",
+            "application/json", "application/*+json", "application/javascript", "application/xml", "application/*+xml");
+
+    private final int minBytes;
+    private final int maxBufferBytes;
+    private final int level;
+    private final String[] contentTypes;
+    private final boolean precompressCachedResponses;
+
+    private CompressionPolicy(Builder builder)
+    {
+        this.minBytes = builder.minBytes;
+        this.maxBufferBytes = builder.maxBufferBytes;
+        this.level = builder.level;
+        this.contentTypes = builder.contentTypes.toArray(new String[0]);
+        this.precompressCachedResponses = builder.precompressCachedResponses;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public int getMinBytes()
+    {
+        return minBytes;
+    }
+
+    public int getMaxBufferBytes()
+    {
+        return maxBufferBytes;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    public boolean isPrecompressCachedResponses()
+    {
+        return precompressCachedResponses;
+    }
+
+    boolean isCompressible(String contentType)
+    {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mediaType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+        for (String pattern : contentTypes) {
+            if (matches(pattern, mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String pattern, String mediaType)
+    {
+        int wildcard = pattern.indexOf('*');
+        if (wildcard < 0) {
+            return pattern.equals(mediaType);
+        }
+        // "type/*" or "type/*+suffix"
+        String type = pattern.substring(0, wildcard);
+        String suffix = pattern.substring(wildcard + 1);
+        return mediaType.length() > type.length() + suffix.length() && mediaType.startsWith(type) && mediaType.endsWith(suffix);
+    }
+
+    public static class Builder
+    {
+        private int minBytes = 1024;
+        private int maxBufferBytes = 1024 * 1024;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private List<String> contentTypes = new ArrayList<>(DEFAULT_CONTENT_TYPES);
+        private boolean precompressCachedResponses;
+
+        private Builder()
+        {
+        }
+
+        // Smaller bodies are sent as they are, as gzip doesn't make them smaller enough to pay for the CPU time
+        public Builder setMinBytes(int minBytes)
+        {
+            if (minBytes < 0) {
+                throw new IllegalArgumentException("minBytes must not be negative: " + minBytes);
+            }
+            this.minBytes = minBytes;
+            return this;
+        }
+
+        public Builder setMaxBufferBytes(int maxBufferBytes)
+        {
+            if (maxBufferBytes <= 0) {
+                throw new IllegalArgumentException("maxBufferBytes must be positive: " + maxBufferBytes);
+            }
+            this.maxBufferBytes = maxBufferBytes;
+            return this;
+        }
+
+        // 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION
+        public Builder setLevel(int level)
+        {
+            if ((level < 1 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("level must be between 1 and 9: " + level);
+            }
+            this.level = level;
+            return this;
+        }
+
+        // Replaces DEFAULT_CONTENT_TYPES
+        public Builder setContentTypes(String... contentTypes)
+        {
+            List<String> list = new ArrayList<>();
+            for (String contentType : contentTypes) {
+                list.add(contentType.trim().toLowerCase(Locale.ENGLISH));
+            }
+            this.contentTypes = list;
+            return this;
+        }
+
+        // Makes ResponseCacheHandler keep a gzipped copy of each compressible entry, and serve it to clients
+        // accepting gzip without compressing it again
+        public Builder setPrecompressCachedResponses(boolean value)
+        {
+            this.precompressCachedResponses = value;
+            return this;
+        }
+
+        public CompressionPolicy build()
+        {
+            return new CompressionPolicy(this);
+        }
+    }
+}
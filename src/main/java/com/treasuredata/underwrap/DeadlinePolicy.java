@@ -0,0 +1,114 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Request deadlines for Deadlines.
+//
+// The deadline of a request is its start time plus a timeout. The timeout is taken from the longest matching path
+// prefix, or from `defaultTimeout`. Clients can shorten it with `header` (in milliseconds, like
+// "X-Request-Timeout: 3000"), which applies by itself to routes without a timeout. Header values that aren't
+// positive numbers are ignored. Requests without any timeout have no deadline.
+public final class DeadlinePolicy
+{
+    public static final String DEFAULT_ROUTE = "default";
+
+    private final String header;
+    private final Route[] routes;
+    private final Route defaultRoute;
+
+    private DeadlinePolicy(Builder builder)
+    {
+        this.header = builder.header;
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(builder.timeouts.entrySet());
+        // Longest prefix first
+        entries.sort(Comparator.comparingInt((Map.Entry<String, Long> entry) -> entry.getKey().length()).reversed());
+        this.routes = new Route[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            routes[i] = new Route(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        this.defaultRoute = new Route(DEFAULT_ROUTE, builder.defaultTimeoutNanos);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public String getHeader()
+    {
+        return header;
+    }
+
+    Route routeOf(String path)
+    {
+        for (Route route : routes) {
+            if (path.startsWith(route.name)) {
+                return route;
+            }
+        }
+        return defaultRoute;
+    }
+
+    static class Route
+    {
+        // The path prefix, or DEFAULT_ROUTE
+        final String name;
+        // 0 if no timeout
+        final long timeoutNanos;
+
+        Route(String name, long timeoutNanos)
+        {
+            this.name = name;
+            this.timeoutNanos = timeoutNanos;
+        }
+    }
+
+    public static class Builder
+    {
+        private String header;
+        private final Map<String, Long> timeouts = new LinkedHashMap<>();
+        private long defaultTimeoutNanos;
+
+        private Builder()
+        {
+        }
+
+        // Disabled when null (the default)
+        public Builder setHeader(String header)
+        {
+            this.header = header;
+            return this;
+        }
+
+        public Builder setTimeout(String pathPrefix, long duration, TimeUnit unit)
+        {
+            timeouts.put(pathPrefix, toTimeoutNanos(duration, unit));
+            return this;
+        }
+
+        // No deadline by default
+        public Builder setDefaultTimeout(long duration, TimeUnit unit)
+        {
+            this.defaultTimeoutNanos = toTimeoutNanos(duration, unit);
+            return this;
+        }
+
+        private static long toTimeoutNanos(long duration, TimeUnit unit)
+        {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("timeout must be positive: " + duration);
+            }
+            return unit.toNanos(duration);
+        }
+
+        public DeadlinePolicy build()
+        {
+            return new DeadlinePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.StatusCodes;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Response;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drops requests whose deadline (see DeadlinePolicy) has passed, or whose client has closed the connection, before
+// spending a worker thread on them.
+//
+// `handler()` sets deadlines when requests arrive. `dispatcher()` wraps the servlet deployment and dispatches
+// requests to the worker pool by itself, so that they are checked when they leave the worker queue (and any queue of
+// the handlers in between, like AdaptiveConcurrencyLimit). They are checked again by `filter()`, which is registered
+// to RESTEasy, before they are dispatched to resources. Dropped requests are answered with 504 without a body.
+//
+// A closed connection is detected only when the IO thread has noticed it, so this is best effort.
+public class Deadlines
+{
+    static final AttachmentKey<RequestDeadline> DEADLINE = AttachmentKey.create(RequestDeadline.class);
+
+    private final DeadlinePolicy policy;
+    private final ConcurrentMap<String, LongAdder> dropped = new ConcurrentHashMap<>();
+
+    public Deadlines(DeadlinePolicy policy)
+    {
+        this.policy = policy;
+    }
+
+    // Wraps the whole handler chain of the servlet deployment, and sets deadlines to requests
+    public HttpHandler handler(HttpHandler next)
+    {
+        return exchange -> {
+            RequestDeadline deadline = deadlineOf(exchange);
+            if (deadline != null) {
+                exchange.putAttachment(DEADLINE, deadline);
+            }
+            next.handleRequest(exchange);
+        };
+    }
+
+    // Wraps the servlet deployment itself, and drops expired requests when they leave the worker queue
+    public HttpHandler dispatcher(HttpHandler next)
+    {
+        HttpHandler checkingHandler = exchange -> {
+            RequestDeadline deadline = exchange.getAttachment(DEADLINE);
+            if (deadline != null && isDroppable(exchange, deadline)) {
+                drop(exchange, deadline);
+                return;
+            }
+            next.handleRequest(exchange);
+        };
+        return exchange -> {
+            if (exchange.isInIoThread() && exchange.getAttachment(DEADLINE) != null) {
+                exchange.dispatch(checkingHandler);
+            }
+            else {
+                checkingHandler.handleRequest(exchange);
+            }
+        };
+    }
+
+    // Registered to RESTEasy. Also makes RequestDeadline injectable with @Context
+    public ContainerRequestFilter filter()
+    {
+        return new DeadlineFilter();
+    }
+
+    // Visible for testing
+    RequestDeadline deadlineOf(HttpServerExchange exchange)
+    {
+        DeadlinePolicy.Route route = policy.routeOf(exchange.getRequestPath());
+        long timeoutNanos = route.timeoutNanos;
+        long headerNanos = headerTimeoutNanos(exchange);
+        if (headerNanos > 0) {
+            // Clients can shorten the timeout of the route, but not extend it
+            timeoutNanos = timeoutNanos > 0 ? Math.min(timeoutNanos, headerNanos) : headerNanos;
+        }
+        if (timeoutNanos <= 0) {
+            return null;
+        }
+        long start = exchange.getRequestStartTime();
+        if (start == -1) {
+            // UndertowOptions.RECORD_REQUEST_START_TIME isn't enabled. This handler is called soon after parsing
+            start = System.nanoTime();
+        }
+        return new RequestDeadline(route.name, start + timeoutNanos);
+    }
+
+    // 0 if the header isn't configured or sent, or isn't a positive number
+    private long headerTimeoutNanos(HttpServerExchange exchange)
+    {
+        if (policy.getHeader() == null) {
+            return 0;
+        }
+        String value = exchange.getRequestHeaders().getFirst(policy.getHeader());
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value.trim())), 0);
+        }
+        catch (NumberFormatException e) {
+            // Ignore the invalid header
+            return 0;
+        }
+    }
+
+    private static boolean isDroppable(HttpServerExchange exchange, RequestDeadline deadline)
+    {
+        return deadline.isExpired() || !exchange.getConnection().isOpen();
+    }
+
+    private void drop(HttpServerExchange exchange, RequestDeadline deadline)
+    {
+        countDropped(deadline);
+        exchange.setStatusCode(StatusCodes.GATEWAY_TIME_OUT);
+        exchange.setPersistent(false);
+        exchange.endExchange();
+    }
+
+    private void countDropped(RequestDeadline deadline)
+    {
+        dropped.computeIfAbsent(deadline.getRoute(), key -> new LongAdder()).increment();
+    }
+
+    // Keyed by the path prefixes of DeadlinePolicy and DeadlinePolicy.DEFAULT_ROUTE
+    public Map<String, Long> getDroppedCountsByRoute()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : dropped.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    public long getDroppedCount()
+    {
+        long count = 0;
+        for (LongAdder adder : dropped.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    @PreMatching
+    private class DeadlineFilter
+        implements ContainerRequestFilter
+    {
+        @Override
+        public void filter(ContainerRequestContext requestContext)
+        {
+            ServletRequestContext servletRequestContext = ServletRequestContext.current();
+            if (servletRequestContext == null) {
+                return;
+            }
+            HttpServerExchange exchange = servletRequestContext.getExchange();
+            RequestDeadline deadline = exchange.getAttachment(DEADLINE);
+            if (deadline == null) {
+                return;
+            }
+            if (isDroppable(exchange, deadline)) {
+                countDropped(deadline);
+                exchange.setPersistent(false);
+                requestContext.abortWith(Response.status(StatusCodes.GATEWAY_TIME_OUT).build());
+                return;
+            }
+            ResteasyProviderFactory.pushContext(RequestDeadline.class, deadline);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.Connectors;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.util.AttachmentKey;
+
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request count, error count and latency per JAX-RS resource method.
+//
+// `feature()` is registered to RESTEasy and binds a filter to each resource method when the application is
+// deployed, so a request only stores its Endpoint to the exchange. `handler()` wraps the servlet deployment and
+// records the latency from the request start to the completion of the exchange.
+public class EndpointMetrics
+{
+    static final AttachmentKey<Endpoint> ENDPOINT = AttachmentKey.create(Endpoint.class);
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ExchangeCompletionListener completionListener = this::exchangeCompleted;
+
+    public DynamicFeature feature()
+    {
+        return this::configure;
+    }
+
+    public HttpHandler handler(HttpHandler next)
+    {
+        return exchange -> {
+            if (exchange.getRequestStartTime() == -1) {
+                // UndertowOptions.RECORD_REQUEST_START_TIME isn't enabled
+                Connectors.setRequestStartTime(exchange);
+            }
+            exchange.addExchangeCompleteListener(completionListener);
+            next.handleRequest(exchange);
+        };
+    }
+
+    // Keyed by `ResourceClass#method(ParameterTypes)`
+    public Map<String, Snapshot> getSnapshots()
+    {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    private void configure(ResourceInfo resourceInfo, FeatureContext context)
+    {
+        Class<?> resourceClass = resourceInfo.getResourceClass();
+        Method method = resourceInfo.getResourceMethod();
+        String name = nameOf(resourceClass, method);
+        Endpoint endpoint = endpoints.computeIfAbsent(name,
+                key -> new Endpoint(key, ResourcePaths.httpMethodOf(method), ResourcePaths.pathTemplateOf(resourceClass, method)));
+        context.register((ContainerRequestFilter) requestContext -> bind(endpoint));
+    }
+
+    // With parameter types, so that overloaded methods get their own endpoints
+    static String nameOf(Class<?> resourceClass, Method method)
+    {
+        StringJoiner parameters = new StringJoiner(",", "(", ")");
+        for (Class<?> type : method.getParameterTypes()) {
+            parameters.add(type.getTypeName());
+        }
+        return resourceClass.getName() + "#" + method.getName() + parameters;
+    }
+
+    private static void bind(Endpoint endpoint)
+    {
+        ServletRequestContext servletRequestContext = ServletRequestContext.current();
+        if (servletRequestContext != null) {
+            servletRequestContext.getExchange().putAttachment(ENDPOINT, endpoint);
+        }
+    }
+
+    private void exchangeCompleted(HttpServerExchange exchange, ExchangeCompletionListener.NextListener nextListener)
+    {
+        try {
+            Endpoint endpoint = exchange.getAttachment(ENDPOINT);
+            if (endpoint != null) {
+                endpoint.record(System.nanoTime() - exchange.getRequestStartTime(), exchange.getStatusCode());
+            }
+        }
+        finally {
+            nextListener.proceed();
+        }
+    }
+
+    static class Endpoint
+    {
+        private final String name;
+        private final String httpMethod;
+        private final String pathTemplate;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Endpoint(String name, String httpMethod, String pathTemplate)
+        {
+            this.name = name;
+            this.httpMethod = httpMethod;
+            this.pathTemplate = pathTemplate;
+        }
+
+        void record(long nanos, int statusCode)
+        {
+            requests.increment();
+            if (statusCode >= 500) {
+                errors.increment();
+            }
+            latency.record(nanos);
+        }
+
+        Snapshot snapshot()
+        {
+            return new Snapshot(name, httpMethod, pathTemplate, requests.sum(), errors.sum(), latency.snapshot());
+        }
+    }
+
+    public static final class Snapshot
+    {
+        private final String name;
+        private final String httpMethod;
+        private final String pathTemplate;
+        private final long requestCount;
+        private final long errorCount;
+        private final LatencyHistogram.Snapshot latency;
+
+        Snapshot(String name, String httpMethod, String pathTemplate, long requestCount, long errorCount, LatencyHistogram.Snapshot latency)
+        {
+            this.name = name;
+            this.httpMethod = httpMethod;
+            this.pathTemplate = pathTemplate;
+            this.requestCount = requestCount;
+            this.errorCount = errorCount;
+            this.latency = latency;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getHttpMethod()
+        {
+            return httpMethod;
+        }
+
+        public String getPathTemplate()
+        {
+            return pathTemplate;
+        }
+
+        public long getRequestCount()
+        {
+            return requestCount;
+        }
+
+        // Responses with 5xx status codes
+        public long getErrorCount()
+        {
+            return errorCount;
+        }
+
+        // In nanoseconds
+        public LatencyHistogram.Snapshot getLatency()
+        {
+            return latency;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Snapshot{" +
+                    "name='" + name + '\'' +
+                    ", httpMethod='" + httpMethod + '\'' +
+                    ", pathTemplate='" + pathTemplate + '\'' +
+                    ", requestCount=" + requestCount +
+                    ", errorCount=" + errorCount +
+                    ", latency=" + latency +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Dispatches requests from the IO thread to executors managed by Underwrap (Bulkheads and PriorityScheduler)
+final class ExecutorDispatch
+{
+    // Answers requests that aren't run because of a full queue or a limit
+    static final HttpHandler REJECTION_HANDLER = exchange -> {
+        exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        exchange.endExchange();
+    };
+
+    private ExecutorDispatch()
+    {
+    }
+
+    static void dispatch(HttpServerExchange exchange, HttpHandler next, Executor executor, LongAdder rejected)
+    {
+        // Submit after the current handler returns, as Connectors.executeRootHandler does, but answer with 503
+        // instead of 500 when the executor is full
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+            try {
+                executor.execute(() -> Connectors.executeRootHandler(next, exchange));
+            }
+            catch (RejectedExecutionException e) {
+                rejected.increment();
+                Connectors.executeRootHandler(REJECTION_HANDLER, exchange);
+            }
+        });
+    }
+}
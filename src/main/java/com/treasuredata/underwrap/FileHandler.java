@@ -0,0 +1,420 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ByteRange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.MimeMappings;
+import io.undertow.util.StatusCodes;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Serves files under a directory on the IO thread, without dispatching to the XNIO worker pool.
+//
+// Small files are cached in direct buffers (see FileMountPolicy) and written like any other response. Other files
+// are opened on the IO thread and sent with FileChannel.transferTo, which the HTTP/1.1 connection turns into
+// sendfile(2), resuming writes whenever the socket buffer is full. Opening and stat(2) block the IO thread
+// briefly, which is fine for local disks but not for network file systems.
+//
+// GET and HEAD only. Single byte ranges get 206, and multiple ranges are ignored (200 with the whole file). ETag and
+// Last-Modified come from the size and modification time, and are used for conditional requests and If-Range.
+// Directories aren't listed, and symbolic links are followed only within the directory. Files that can't be read for
+// permissions get 403, and other file system errors (e.g. a path through a file) 404.
+public class FileHandler
+    implements HttpHandler
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FileHandler.class);
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    // Rough size of a cached file besides its body
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final Path directory;
+    // With symbolic links resolved, to check where links in the directory point
+    private final Path realDirectory;
+    private final FileMountPolicy policy;
+    private final Cache<Path, CachedFile> cache;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder transferredBytes = new LongAdder();
+    private final LongAdder cacheBytes = new LongAdder();
+
+    public FileHandler(Path directory, FileMountPolicy policy)
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+        try {
+            this.realDirectory = this.directory.toRealPath();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Directory can't be read: " + directory, e);
+        }
+        this.policy = policy;
+        if (policy.getMaxCacheBytes() > 0 && policy.getMaxCachedFileBytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(policy.getMaxCacheBytes())
+                    .weigher((Path key, CachedFile file) -> file.body.capacity() + ENTRY_OVERHEAD_BYTES)
+                    .removalListener((RemovalListener<Path, CachedFile>) notification ->
+                            cacheBytes.add(-notification.getValue().body.capacity()))
+                    .build();
+        }
+        else {
+            this.cache = null;
+        }
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        if (!exchange.getRequestMethod().equals(Methods.GET) && !exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+            exchange.getResponseHeaders().put(Headers.ALLOW, "GET, HEAD");
+            exchange.endExchange();
+            return;
+        }
+        Path file = resolve(exchange.getRelativePath());
+        if (file == null) {
+            notFound(exchange);
+            return;
+        }
+
+        CachedFile cached = cache == null ? null : cache.getIfPresent(file);
+        long now = System.nanoTime();
+        if (cached != null && now - cached.checkedAt < policy.getRevalidateIntervalNanos()) {
+            cacheHits.increment();
+            serveCached(exchange, file, cached);
+            return;
+        }
+
+        Path realFile;
+        BasicFileAttributes attributes;
+        try {
+            // Symbolic links can point out of the directory
+            realFile = file.toRealPath();
+            attributes = realFile.startsWith(realDirectory) ? Files.readAttributes(realFile, BasicFileAttributes.class) : null;
+        }
+        catch (AccessDeniedException e) {
+            forbidden(exchange, file, cached);
+            return;
+        }
+        catch (FileSystemException e) {
+            // Also a file in the middle of the path (ENOTDIR)
+            realFile = null;
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            if (cached != null) {
+                cache.invalidate(file);
+            }
+            notFound(exchange);
+            return;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (cached != null && cached.body.capacity() == size && cached.lastModified == lastModified) {
+            cached.checkedAt = now;
+            cacheHits.increment();
+            serveCached(exchange, file, cached);
+            return;
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(realFile, StandardOpenOption.READ);
+        }
+        catch (AccessDeniedException e) {
+            forbidden(exchange, file, cached);
+            return;
+        }
+        catch (FileSystemException e) {
+            // Removed or replaced since the attributes were read
+            if (cached != null) {
+                cache.invalidate(file);
+            }
+            notFound(exchange);
+            return;
+        }
+        try {
+            if (cache != null && size <= policy.getMaxCachedFileBytes()) {
+                ByteBuffer body = read(channel, (int) size);
+                if (body != null) {
+                    CachedFile entry = new CachedFile(body, lastModified, now);
+                    cacheBytes.add(size);
+                    cache.put(file, entry);
+                    serveCached(exchange, file, entry);
+                    return;
+                }
+            }
+            if (transfer(exchange, file, channel, size, lastModified)) {
+                // Closed when the transfer ends
+                channel = null;
+            }
+        }
+        finally {
+            IoUtils.safeClose(channel);
+        }
+    }
+
+    public long getCacheHitCount()
+    {
+        return cacheHits.sum();
+    }
+
+    // Responses sent from the file instead of the cache, including HEAD and 304
+    public long getTransferCount()
+    {
+        return transfers.sum();
+    }
+
+    public long getTransferredBytes()
+    {
+        return transferredBytes.sum();
+    }
+
+    public long getCacheBytes()
+    {
+        return cacheBytes.sum();
+    }
+
+    private Path resolve(String relativePath)
+    {
+        if (relativePath.isEmpty() || relativePath.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path file;
+        try {
+            file = directory.resolve(relativePath.charAt(0) == '/' ? relativePath.substring(1) : relativePath).normalize();
+        }
+        catch (InvalidPathException e) {
+            return null;
+        }
+        return file.startsWith(directory) && !file.equals(directory) ? file : null;
+    }
+
+    // Returns null if the file is shorter than `size`, as it is being written
+    private static ByteBuffer read(FileChannel channel, int size)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void serveCached(HttpServerExchange exchange, Path file, CachedFile cached)
+    {
+        long[] range = prepare(exchange, file, cached.body.capacity(), cached.lastModified);
+        if (range == null) {
+            return;
+        }
+        ByteBuffer body = cached.body.duplicate();
+        body.position((int) range[0]).limit((int) (range[0] + range[1]));
+        exchange.getResponseSender().send(body);
+    }
+
+    // Returns true if the transfer took over `channel`
+    private boolean transfer(HttpServerExchange exchange, Path file, FileChannel channel, long size, long lastModified)
+    {
+        transfers.increment();
+        long[] range = prepare(exchange, file, size, lastModified);
+        if (range == null) {
+            return false;
+        }
+        // Also closes the file when the connection is closed during the transfer
+        exchange.addExchangeCompleteListener((ex, nextListener) -> {
+            IoUtils.safeClose(channel);
+            nextListener.proceed();
+        });
+        new Transfer(exchange, channel, range[0], range[1]).handleEvent(exchange.getResponseChannel());
+        return true;
+    }
+
+    // Sets the status and headers, and returns the offset and length of the body to send. Returns null if the
+    // exchange has ended without a body (HEAD, 304 or 416)
+    private long[] prepare(HttpServerExchange exchange, Path file, long size, long lastModified)
+    {
+        HeaderMap headers = exchange.getResponseHeaders();
+        ETag etag = new ETag(false, Long.toHexString(size) + '-' + Long.toHexString(lastModified));
+        Date lastModifiedDate = new Date(lastModified);
+        headers.put(Headers.ETAG, etag.toString());
+        headers.put(Headers.LAST_MODIFIED, DateUtils.toDateString(lastModifiedDate));
+        headers.put(Headers.ACCEPT_RANGES, "bytes");
+        if (policy.getCacheControl() != null) {
+            headers.put(Headers.CACHE_CONTROL, policy.getCacheControl());
+        }
+        if (!ETagUtils.handleIfNoneMatch(exchange, etag, true) || !DateUtils.handleIfModifiedSince(exchange, lastModifiedDate)) {
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return null;
+        }
+        headers.put(Headers.CONTENT_TYPE, contentType(file));
+
+        long offset = 0;
+        long length = size;
+        ByteRange.RangeResponseResult result = null;
+        String rangeHeader = exchange.getRequestHeaders().getFirst(Headers.RANGE);
+        if (rangeHeader != null) {
+            ByteRange range = ByteRange.parse(rangeHeader);
+            if (range != null && range.getRanges() == 1) {
+                result = range.getResponseResult(size, exchange.getRequestHeaders().getFirst(Headers.IF_RANGE), lastModifiedDate, etag.toString());
+            }
+        }
+        if (result != null) {
+            exchange.setStatusCode(result.getStatusCode());
+            headers.put(Headers.CONTENT_RANGE, result.getContentRange());
+            if (result.getStatusCode() == StatusCodes.REQUEST_RANGE_NOT_SATISFIABLE) {
+                exchange.endExchange();
+                return null;
+            }
+            offset = result.getStart();
+            length = result.getContentLength();
+        }
+        exchange.setResponseContentLength(length);
+        if (exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.endExchange();
+            return null;
+        }
+        return new long[] {offset, length};
+    }
+
+    private static String contentType(Path file)
+    {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        String contentType = MimeMappings.DEFAULT.getMimeType(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+        if (contentType == null) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        return contentType.startsWith("text/") ? contentType + "; charset=utf-8" : contentType;
+    }
+
+    private static void notFound(HttpServerExchange exchange)
+    {
+        exchange.setStatusCode(StatusCodes.NOT_FOUND);
+        exchange.endExchange();
+    }
+
+    private void forbidden(HttpServerExchange exchange, Path file, CachedFile cached)
+    {
+        if (cached != null) {
+            cache.invalidate(file);
+        }
+        exchange.setStatusCode(StatusCodes.FORBIDDEN);
+        exchange.endExchange();
+    }
+
+    private static class CachedFile
+    {
+        final ByteBuffer body;
+        final long lastModified;
+        // System.nanoTime() when the file was last compared with this entry
+        volatile long checkedAt;
+
+        CachedFile(ByteBuffer body, long lastModified, long checkedAt)
+        {
+            this.body = body;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    // Writes a region of the file until the socket buffer is full, then again from the write listener
+    private class Transfer
+        implements ChannelListener<StreamSinkChannel>
+    {
+        private final HttpServerExchange exchange;
+        private final FileChannel file;
+        private final long length;
+        private long position;
+        private long remaining;
+        private boolean headersFlushed;
+
+        Transfer(HttpServerExchange exchange, FileChannel file, long offset, long length)
+        {
+            this.exchange = exchange;
+            this.file = file;
+            this.position = offset;
+            this.length = length;
+            this.remaining = length;
+        }
+
+        @Override
+        public void handleEvent(StreamSinkChannel channel)
+        {
+            try {
+                // HttpResponseConduit reads a whole buffer from the current position of the file, ignoring the region,
+                // while the headers are not written yet
+                if (!headersFlushed) {
+                    if (!channel.flush()) {
+                        channel.getWriteSetter().set(this);
+                        channel.resumeWrites();
+                        return;
+                    }
+                    headersFlushed = true;
+                }
+                while (remaining > 0) {
+                    long written = channel.transferFrom(file, position, remaining);
+                    if (written == 0) {
+                        if (position >= file.size()) {
+                            throw new EOFException("File was truncated while being sent");
+                        }
+                        channel.getWriteSetter().set(this);
+                        channel.resumeWrites();
+                        return;
+                    }
+                    position += written;
+                    remaining -= written;
+                }
+            }
+            catch (IOException e) {
+                // Mostly clients going away
+                LOG.debug("Failed to send {}", exchange.getRequestPath(), e);
+                IoUtils.safeClose(file);
+                try {
+                    exchange.endExchange();
+                }
+                finally {
+                    IoUtils.safeClose(exchange.getConnection());
+                }
+                return;
+            }
+            channel.suspendWrites();
+            channel.getWriteSetter().set(null);
+            IoUtils.safeClose(file);
+            transferredBytes.add(length);
+            exchange.endExchange();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.TimeUnit;
+
+// Configuration of a directory served by FileHandler (see `UnderwrapServer#addFileMount`).
+//
+// Files up to `maxCachedFileBytes` are kept in direct buffers, up to `maxCacheBytes` in total, and are checked
+// against the file system again after `revalidateInterval`. Larger files are sent with FileChannel.transferTo,
+// which is sendfile(2) for plain HTTP/1.1 connections.
+public final class FileMountPolicy
+{
+    private final long maxCacheBytes;
+    private final int maxCachedFileBytes;
+    private final long revalidateIntervalNanos;
+    private final String cacheControl;
+
+    private FileMountPolicy(Builder builder)
+    {
+        this.maxCacheBytes = builder.maxCacheBytes;
+        this.maxCachedFileBytes = builder.maxCachedFileBytes;
+        this.revalidateIntervalNanos = builder.revalidateIntervalNanos;
+        this.cacheControl = builder.cacheControl;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public long getMaxCacheBytes()
+    {
+        return maxCacheBytes;
+    }
+
+    public int getMaxCachedFileBytes()
+    {
+        return maxCachedFileBytes;
+    }
+
+    public long getRevalidateIntervalNanos()
+    {
+        return revalidateIntervalNanos;
+    }
+
+    public String getCacheControl()
+    {
+        return cacheControl;
+    }
+
+    public static class Builder
+    {
+        private long maxCacheBytes = 16 * 1024 * 1024;
+        private int maxCachedFileBytes = 64 * 1024;
+        private long revalidateIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+        private String cacheControl;
+
+        private Builder()
+        {
+        }
+
+        // 0 disables the cache
+        public Builder setMaxCacheBytes(long maxCacheBytes)
+        {
+            if (maxCacheBytes < 0) {
+                throw new IllegalArgumentException("maxCacheBytes must not be negative: " + maxCacheBytes);
+            }
+            this.maxCacheBytes = maxCacheBytes;
+            return this;
+        }
+
+        public Builder setMaxCachedFileBytes(int maxCachedFileBytes)
+        {
+            if (maxCachedFileBytes < 0) {
+                throw new IllegalArgumentException("maxCachedFileBytes must not be negative: " + maxCachedFileBytes);
+            }
+            this.maxCachedFileBytes = maxCachedFileBytes;
+            return this;
+        }
+
+        // Cached files are served without a stat(2) for this long after they were last checked
+        public Builder setRevalidateInterval(long interval, TimeUnit unit)
+        {
+            if (interval < 0) {
+                throw new IllegalArgumentException("revalidateInterval must not be negative: " + interval);
+            }
+            this.revalidateIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        // Cache-Control header of responses. Not set when null
+        public Builder setCacheControl(String cacheControl)
+        {
+            this.cacheControl = cacheControl;
+            return this;
+        }
+
+        public FileMountPolicy build()
+        {
+            return new FileMountPolicy(this);
+        }
+    }
+}
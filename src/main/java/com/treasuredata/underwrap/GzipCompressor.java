@@ -0,0 +1,277 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Gzips whole bodies in one pass, or streamed bodies write by write, and counts bytes and CPU time for metrics.
+//
+// Each thread reuses its own Deflater (reset between bodies) instead of allocating one per response, which
+// allocates native zlib buffers and relies on finalization to free them. The Deflaters live as long as the threads,
+// which are pooled IO and worker threads.
+//
+// A streamed body keeps the state of its Deflater between writes, which can run on different threads and interleave
+// with other bodies on an IO thread. So a Stream borrows a Deflater from a pool for the whole body instead.
+class GzipCompressor
+{
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_LENGTH = 8;
+    private static final int MAX_POOLED_STREAM_DEFLATERS = 64;
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private final BlockingQueue<Deflater> streamDeflaters = new ArrayBlockingQueue<>(MAX_POOLED_STREAM_DEFLATERS);
+    private final ThreadLocal<CRC32> crcs = ThreadLocal.withInitial(CRC32::new);
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+
+    GzipCompressor(int level)
+    {
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    byte[] compress(byte[] data, int offset, int length)
+    {
+        long start = cpuTime();
+        Deflater deflater = deflaters.get();
+        CRC32 crc = crcs.get();
+        deflater.reset();
+        crc.reset();
+        crc.update(data, offset, length);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        byte[] out = new byte[HEADER.length + length / 2 + 64];
+        System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+        int size = HEADER.length;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        if (size + TRAILER_LENGTH > out.length) {
+            out = Arrays.copyOf(out, size + TRAILER_LENGTH);
+        }
+        writeIntLE(out, size, (int) crc.getValue());
+        writeIntLE(out, size + 4, length);
+        size += TRAILER_LENGTH;
+
+        compressed.increment();
+        inputBytes.add(length);
+        outputBytes.add(size);
+        cpuNanos.add(cpuTime() - start);
+        return size == out.length ? out : Arrays.copyOf(out, size);
+    }
+
+    Stream openStream()
+    {
+        Deflater deflater = streamDeflaters.poll();
+        return new Stream(deflater != null ? deflater : new Deflater(level, true));
+    }
+
+    private static void writeIntLE(byte[] out, int offset, int value)
+    {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+        out[offset + 2] = (byte) (value >> 16);
+        out[offset + 3] = (byte) (value >> 24);
+    }
+
+    // Falls back to the wall time when the JVM doesn't measure thread CPU time
+    private static long cpuTime()
+    {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    // True when Accept-Encoding lists gzip, or `*` without gzip, with a non-zero quality
+    static boolean accepts(HeaderMap requestHeaders)
+    {
+        HeaderValues values = requestHeaders.get(Headers.ACCEPT_ENCODING);
+        if (values == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String value : values) {
+            for (String coding : value.split(",")) {
+                int semicolon = coding.indexOf(';');
+                String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+                boolean accepted = semicolon < 0 || !isZeroQuality(coding.substring(semicolon + 1));
+                if (name.equalsIgnoreCase("gzip")) {
+                    return accepted;
+                }
+                if (name.equals("*")) {
+                    wildcard = accepted;
+                }
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static boolean isZeroQuality(String parameters)
+    {
+        for (String parameter : parameters.split(";")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("q")) {
+                try {
+                    return Double.parseDouble(pair[1].trim()) == 0.0;
+                }
+                catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    long getCompressedCount()
+    {
+        return compressed.sum();
+    }
+
+    long getInputBytes()
+    {
+        return inputBytes.sum();
+    }
+
+    long getOutputBytes()
+    {
+        return outputBytes.sum();
+    }
+
+    long getCpuNanos()
+    {
+        return cpuNanos.sum();
+    }
+
+    // The gzip bytes of a body written in parts. Each method returns the bytes produced by the call, or null if there
+    // are none, in a buffer that is valid until the next call. close() returns the Deflater to the pool
+    class Stream
+    {
+        private final CRC32 crc = new CRC32();
+        private Deflater deflater;
+        private byte[] in = new byte[0];
+        private byte[] out = new byte[8192];
+        private long length;
+        private boolean started;
+
+        private Stream(Deflater deflater)
+        {
+            this.deflater = deflater;
+        }
+
+        // Consumes `src`. Deflate keeps some of it until the next flush() or finish()
+        ByteBuffer write(ByteBuffer src)
+        {
+            long start = cpuTime();
+            int size = start();
+            int srcLength = src.remaining();
+            byte[] data;
+            int offset;
+            if (src.hasArray()) {
+                data = src.array();
+                offset = src.arrayOffset() + src.position();
+                src.position(src.limit());
+            }
+            else {
+                if (in.length < srcLength) {
+                    in = new byte[srcLength];
+                }
+                src.get(in, 0, srcLength);
+                data = in;
+                offset = 0;
+            }
+            crc.update(data, offset, srcLength);
+            length += srcLength;
+            deflater.setInput(data, offset, srcLength);
+            while (!deflater.needsInput()) {
+                size = deflate(size, Deflater.NO_FLUSH);
+            }
+            return output(srcLength, size, start);
+        }
+
+        // Outputs everything written so far (SYNC_FLUSH), so that the client can decompress it
+        ByteBuffer flush()
+        {
+            long start = cpuTime();
+            int size = start();
+            do {
+                size = deflate(size, Deflater.SYNC_FLUSH);
+            }
+            while (size == out.length);
+            return output(0, size, start);
+        }
+
+        ByteBuffer finish()
+        {
+            long start = cpuTime();
+            int size = start();
+            deflater.finish();
+            while (!deflater.finished()) {
+                size = deflate(size, Deflater.NO_FLUSH);
+            }
+            if (size + TRAILER_LENGTH > out.length) {
+                out = Arrays.copyOf(out, size + TRAILER_LENGTH);
+            }
+            writeIntLE(out, size, (int) crc.getValue());
+            writeIntLE(out, size + 4, (int) length);
+            return output(0, size + TRAILER_LENGTH, start);
+        }
+
+        void close()
+        {
+            if (deflater == null) {
+                return;
+            }
+            deflater.reset();
+            if (!streamDeflaters.offer(deflater)) {
+                deflater.end();
+            }
+            deflater = null;
+        }
+
+        // Writes the header on the first call
+        private int start()
+        {
+            if (started) {
+                return 0;
+            }
+            started = true;
+            System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+            return HEADER.length;
+        }
+
+        private int deflate(int size, int flush)
+        {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            return size + deflater.deflate(out, size, out.length - size, flush);
+        }
+
+        private ByteBuffer output(int inputLength, int size, long start)
+        {
+            inputBytes.add(inputLength);
+            outputBytes.add(size);
+            cpuNanos.add(cpuTime() - start);
+            return size == 0 ? null : ByteBuffer.wrap(out, 0, size);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free latency histogram with HdrHistogram style log-linear buckets.
+//
+// Each power of two range is split into 16 linear sub-buckets, so a recorded value is reported with a relative
+// error of at most 1/16 (6.25%). Values are in nanoseconds, and values larger than 2^40 ns (about 18 minutes)
+// are clamped. Bucket counters are striped by thread to avoid contention, and recording doesn't allocate.
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private static final int MAX_STRIPES = 8;
+    private static final int STRIPES = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram()
+    {
+        this.stripes = new AtomicLongArray[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+        this.stripeMask = STRIPES - 1;
+    }
+
+    public void record(long nanos)
+    {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        stripes[stripe].getAndIncrement(bucketIndex(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    // The largest value that falls into the bucket
+    static long highestEquivalentValue(int index)
+    {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - (shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static final class Snapshot
+    {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max)
+        {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getSum()
+        {
+            return sum;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+
+        public double getMean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getP50()
+        {
+            return getValueAtPercentile(50.0);
+        }
+
+        public long getP99()
+        {
+            return getValueAtPercentile(99.0);
+        }
+
+        public long getP999()
+        {
+            return getValueAtPercentile(99.9);
+        }
+
+        // `percentile` is between 0.0 and 100.0
+        public long getValueAtPercentile(double percentile)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target) {
+                    return Math.min(highestEquivalentValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        // Number of recorded values less than or equal to `value`, rounded to the bucket boundaries
+        public long getCountAtOrBelow(long value)
+        {
+            int last = bucketIndex(Math.min(Math.max(value, 0), MAX_VALUE));
+            long cumulative = 0;
+            for (int i = 0; i <= last; i++) {
+                cumulative += counts[i];
+            }
+            return cumulative;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Snapshot{" +
+                    "count=" + count +
+                    ", mean=" + getMean() +
+                    ", p50=" + getP50() +
+                    ", p99=" + getP99() +
+                    ", p999=" + getP999() +
+                    ", max=" + max +
+                    '}';
+        }
+    }
+}
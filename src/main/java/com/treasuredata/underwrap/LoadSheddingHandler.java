@@ -0,0 +1,121 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Rejects requests with 503 on the IO thread, before they are dispatched to the XNIO worker pool or the executor of
+// PriorityScheduler, while that pool is overloaded. See LoadSheddingPolicy for the limits.
+public class LoadSheddingHandler
+    implements HttpHandler
+{
+    // ThreadPoolExecutor#getActiveCount() takes the pool's main lock, so the busy thread count is sampled at most
+    // once in this interval. The queue size is read for each request.
+    private static final long BUSY_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final HttpHandler next;
+    private final LoadSheddingPolicy policy;
+    private final Supplier<UnderwrapMetrics> metricsSupplier;
+    private final PriorityScheduler priorityScheduler;
+    private final String retryAfter;
+    private final LongAdder[] rejected;
+
+    private volatile long busySampledAt = System.nanoTime() - BUSY_SAMPLE_INTERVAL_NANOS;
+    private volatile double busyRatio;
+
+    public LoadSheddingHandler(HttpHandler next, LoadSheddingPolicy policy, Supplier<UnderwrapMetrics> metricsSupplier)
+    {
+        this(next, policy, metricsSupplier, null);
+    }
+
+    // Looks at the executor of `priorityScheduler` instead of the XNIO worker pool, unless it's null
+    LoadSheddingHandler(HttpHandler next, LoadSheddingPolicy policy, Supplier<UnderwrapMetrics> metricsSupplier, PriorityScheduler priorityScheduler)
+    {
+        this.next = next;
+        this.policy = policy;
+        this.metricsSupplier = metricsSupplier;
+        this.priorityScheduler = priorityScheduler;
+        this.retryAfter = String.valueOf(policy.getRetryAfterSeconds());
+        this.rejected = new LongAdder[Priority.values().length];
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        Priority priority = policy.priorityOf(exchange.getRequestPath());
+        if (priority != Priority.CRITICAL && isOverloaded(priority)) {
+            rejected[priority.ordinal()].increment();
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+            exchange.endExchange();
+            return;
+        }
+        next.handleRequest(exchange);
+    }
+
+    private boolean isOverloaded(Priority priority)
+    {
+        UnderwrapMetrics metrics = priorityScheduler == null ? metricsSupplier.get() : null;
+        if (priorityScheduler == null && metrics == null) {
+            return false;
+        }
+        double ratio = priority == Priority.LOW ? policy.getLowPriorityRatio() : 1.0;
+
+        int queueSize = priorityScheduler != null ? priorityScheduler.getQueueSize() : metrics.getWorkerQueueSize();
+        if (queueSize >= policy.getMaxQueueSize() * ratio) {
+            return true;
+        }
+        if (policy.getMaxBusyRatio() <= 1.0) {
+            return busyRatio(metrics) >= policy.getMaxBusyRatio() * ratio;
+        }
+        return false;
+    }
+
+    // `metrics` is null with priority scheduling
+    private double busyRatio(UnderwrapMetrics metrics)
+    {
+        long now = System.nanoTime();
+        if (now - busySampledAt >= BUSY_SAMPLE_INTERVAL_NANOS) {
+            // Concurrent IO threads may sample at the same time. It's harmless
+            busySampledAt = now;
+            busyRatio = priorityScheduler != null
+                    ? (double) priorityScheduler.getBusyThreadCount() / priorityScheduler.getMaxThreads()
+                    : (double) metrics.getBusyWorkerThreadCount() / metrics.getMaxWorkerPoolSize();
+        }
+        return busyRatio;
+    }
+
+    public long getRejectedCount()
+    {
+        long count = 0;
+        for (LongAdder adder : rejected) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    // Keyed by lower-cased priority names
+    public Map<String, Long> getRejectedCountsByPriority()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            if (priority != Priority.CRITICAL) {
+                counts.put(priority.name().toLowerCase(Locale.ENGLISH), rejected[priority.ordinal()].sum());
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+}
@@ -0,0 +1,126 @@
+package com.treasuredata.underwrap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Limits for LoadSheddingHandler.
+//
+// A request is rejected when the queue of the pool running requests has `maxQueueSize` or more tasks, or when the
+// ratio of its busy threads to its maximum size reaches `maxBusyRatio`. Both are disabled by default. The pool is
+// the XNIO worker pool, or the executor of PriorityScheduler with priority scheduling.
+//
+// Requests are classified by the longest matching path prefix:
+// - CRITICAL requests (e.g. health checks) are never rejected
+// - NORMAL requests (the default) are rejected at the limits above
+// - LOW requests are rejected earlier, at `lowPriorityRatio` of the limits
+public final class LoadSheddingPolicy
+{
+    private final int maxQueueSize;
+    private final double maxBusyRatio;
+    private final double lowPriorityRatio;
+    private final int retryAfterSeconds;
+    private final PathPriorities priorities;
+
+    private LoadSheddingPolicy(Builder builder)
+    {
+        this.maxQueueSize = builder.maxQueueSize;
+        this.maxBusyRatio = builder.maxBusyRatio;
+        this.lowPriorityRatio = builder.lowPriorityRatio;
+        this.retryAfterSeconds = builder.retryAfterSeconds;
+        this.priorities = new PathPriorities(builder.priorities, builder.defaultPriority);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public Priority priorityOf(String path)
+    {
+        return priorities.priorityOf(path);
+    }
+
+    public int getMaxQueueSize()
+    {
+        return maxQueueSize;
+    }
+
+    public double getMaxBusyRatio()
+    {
+        return maxBusyRatio;
+    }
+
+    public double getLowPriorityRatio()
+    {
+        return lowPriorityRatio;
+    }
+
+    public int getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    public static class Builder
+    {
+        private int maxQueueSize = Integer.MAX_VALUE;
+        private double maxBusyRatio = Double.POSITIVE_INFINITY;
+        private double lowPriorityRatio = 0.5;
+        private int retryAfterSeconds = 1;
+        private final Map<String, Priority> priorities = new LinkedHashMap<>();
+        private Priority defaultPriority = Priority.NORMAL;
+
+        private Builder()
+        {
+        }
+
+        public Builder setMaxQueueSize(int maxQueueSize)
+        {
+            if (maxQueueSize < 0) {
+                throw new IllegalArgumentException("maxQueueSize must not be negative: " + maxQueueSize);
+            }
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        public Builder setMaxBusyRatio(double maxBusyRatio)
+        {
+            if (maxBusyRatio < 0.0 || maxBusyRatio > 1.0) {
+                throw new IllegalArgumentException("maxBusyRatio must be between 0.0 and 1.0: " + maxBusyRatio);
+            }
+            this.maxBusyRatio = maxBusyRatio;
+            return this;
+        }
+
+        public Builder setLowPriorityRatio(double lowPriorityRatio)
+        {
+            if (lowPriorityRatio < 0.0 || lowPriorityRatio > 1.0) {
+                throw new IllegalArgumentException("lowPriorityRatio must be between 0.0 and 1.0: " + lowPriorityRatio);
+            }
+            this.lowPriorityRatio = lowPriorityRatio;
+            return this;
+        }
+
+        public Builder setRetryAfterSeconds(int retryAfterSeconds)
+        {
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        public Builder setPriority(String pathPrefix, Priority priority)
+        {
+            priorities.put(pathPrefix, priority);
+            return this;
+        }
+
+        public Builder setDefaultPriority(Priority defaultPriority)
+        {
+            this.defaultPriority = defaultPriority;
+            return this;
+        }
+
+        public LoadSheddingPolicy build()
+        {
+            return new LoadSheddingPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.Undertow;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.server.OpenListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A ByteBufferPool that counts its buffers, for buffer pool metrics.
+//
+// Undertow 1.4 creates its DefaultByteBufferPool in `Undertow#start()`, and its Builder has no way to pass another
+// one, so `install()` replaces the pool in the open listeners after they are started. Connections accepted before
+// that keep the original pool.
+//
+// As in DefaultByteBufferPool, each thread caches up to POOLED_BUFFERS_PER_THREAD free buffers, so that a buffer
+// allocated and freed by the same IO thread doesn't touch shared state besides the striped counters. Other buffers go
+// to one lock-free queue, up to `maxPooledBuffers`, and the rest are left to GC. The cache of a thread that exited is
+// moved to the queue when it's collected, so that the counts don't keep its buffers.
+final class MeteredByteBufferPool
+    implements ByteBufferPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MeteredByteBufferPool.class);
+    // io.undertow.server.protocol.http.AlpnOpenListener keeps its delegates in a map of entries
+    private static final int MAX_LISTENER_DEPTH = 3;
+
+    private final boolean direct;
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ByteBufferPool arrayBackedPool;
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder inUse = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile boolean closed;
+
+    MeteredByteBufferPool(boolean direct, int bufferSize, int maxPooledBuffers, ByteBufferPool arrayBackedPool)
+    {
+        this.direct = direct;
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.arrayBackedPool = arrayBackedPool == null ? this : arrayBackedPool;
+    }
+
+    // Returns null if the listeners of `undertow` don't have the expected fields
+    static MeteredByteBufferPool install(Undertow undertow, int maxPooledBuffers)
+    {
+        try {
+            Field openListenerField = Undertow.ListenerInfo.class.getDeclaredField("openListener");
+            openListenerField.setAccessible(true);
+            ByteBufferPool original = null;
+            MeteredByteBufferPool pool = null;
+            for (Undertow.ListenerInfo info : undertow.getListenerInfo()) {
+                OpenListener listener = (OpenListener) openListenerField.get(info);
+                if (pool == null) {
+                    original = listener.getBufferPool();
+                    ByteBufferPool arrayBacked = original.getArrayBackedPool();
+                    pool = new MeteredByteBufferPool(original.isDirect(), original.getBufferSize(), maxPooledBuffers,
+                            arrayBacked == original ? null : arrayBacked);
+                }
+                replace(listener, original, pool, MAX_LISTENER_DEPTH);
+            }
+            // The original pool isn't closed, as it would throw on allocations by connections accepted before
+            return pool;
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Buffer pool metrics are disabled, as the buffer pool of Undertow listeners can't be replaced", e);
+            return null;
+        }
+    }
+
+    private static void replace(Object target, ByteBufferPool original, ByteBufferPool replacement, int depth)
+            throws IllegalAccessException
+    {
+        if (depth == 0 || !target.getClass().getName().startsWith("io.undertow.")) {
+            return;
+        }
+        for (Class<?> c = target.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (ByteBufferPool.class.isAssignableFrom(type)) {
+                    field.setAccessible(true);
+                    if (field.get(target) == original) {
+                        field.set(target, replacement);
+                    }
+                }
+                else if (OpenListener.class.isAssignableFrom(type)) {
+                    field.setAccessible(true);
+                    Object value = field.get(target);
+                    if (value != null) {
+                        replace(value, original, replacement, depth - 1);
+                    }
+                }
+                else if (Map.class.isAssignableFrom(type)) {
+                    field.setAccessible(true);
+                    Map<?, ?> map = (Map<?, ?>) field.get(target);
+                    if (map != null) {
+                        for (Object value : map.values()) {
+                            replace(value, original, replacement, depth - 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public PooledByteBuffer allocate()
+    {
+        if (closed) {
+            throw new IllegalStateException("Buffer pool is closed");
+        }
+        allocations.increment();
+        ThreadCache cache = threadCaches.get();
+        if (cache == null) {
+            cache = new ThreadCache();
+            threadCaches.set(cache);
+        }
+        ByteBuffer buffer = cache.buffers.poll();
+        if (buffer == null) {
+            buffer = queue.poll();
+            if (buffer != null) {
+                queueSize.decrementAndGet();
+            }
+        }
+        if (buffer != null) {
+            buffer.clear();
+        }
+        else {
+            misses.increment();
+            allocated.increment();
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        cache.allocationDepth++;
+        inUse.increment();
+        return new MeteredPooledBuffer(buffer);
+    }
+
+    private void free(ByteBuffer buffer)
+    {
+        inUse.decrement();
+        // Only threads that allocated more than they freed keep buffers, as DefaultByteBufferPool does, so that a
+        // thread freeing buffers of others doesn't hold them
+        ThreadCache cache = threadCaches.get();
+        if (!closed && cache != null && cache.allocationDepth > 0) {
+            cache.allocationDepth--;
+            if (cache.buffers.size() < ServerTuning.POOLED_BUFFERS_PER_THREAD) {
+                cache.buffers.add(buffer);
+                return;
+            }
+        }
+        offer(buffer);
+    }
+
+    private void offer(ByteBuffer buffer)
+    {
+        if (!closed && queueSize.incrementAndGet() <= maxPooledBuffers) {
+            queue.add(buffer);
+        }
+        else {
+            queueSize.decrementAndGet();
+            allocated.decrement();
+        }
+    }
+
+    @Override
+    public ByteBufferPool getArrayBackedPool()
+    {
+        return arrayBackedPool;
+    }
+
+    // Buffers in thread caches are left to GC
+    @Override
+    public void close()
+    {
+        closed = true;
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            queueSize.decrementAndGet();
+            allocated.decrement();
+        }
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    @Override
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    BufferPoolSnapshot snapshot()
+    {
+        return new BufferPoolSnapshot(bufferSize, direct, allocated.sum(), inUse.sum(), allocations.sum(), misses.sum());
+    }
+
+    // Used by its thread only, until it's collected
+    private class ThreadCache
+    {
+        final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>(ServerTuning.POOLED_BUFFERS_PER_THREAD);
+        int allocationDepth;
+
+        @Override
+        protected void finalize()
+                throws Throwable
+        {
+            super.finalize();
+            ByteBuffer buffer;
+            while ((buffer = buffers.poll()) != null) {
+                offer(buffer);
+            }
+        }
+    }
+
+    private class MeteredPooledBuffer
+        implements PooledByteBuffer
+    {
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private final ByteBuffer buffer;
+
+        MeteredPooledBuffer(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer getBuffer()
+        {
+            if (!open.get()) {
+                throw new IllegalStateException("Buffer was already freed");
+            }
+            return buffer;
+        }
+
+        @Override
+        public void close()
+        {
+            if (open.compareAndSet(true, false)) {
+                free(buffer);
+            }
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open.get();
+        }
+    }
+}
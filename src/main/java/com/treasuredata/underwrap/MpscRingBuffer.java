@@ -0,0 +1,80 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded multi-producer / single-consumer queue based on Dmitry Vyukov's bounded MPMC queue.
+// Producers claim a slot with a single CAS on `tail`. Only one thread may call `poll()`.
+class MpscRingBuffer<E>
+{
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    MpscRingBuffer(int requestedCapacity)
+    {
+        if (requestedCapacity < 2) {
+            throw new IllegalArgumentException("capacity must be 2 or larger: " + requestedCapacity);
+        }
+        this.capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(E element)
+    {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                // full
+                return false;
+            }
+        }
+    }
+
+    E poll()
+    {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) - (pos + 1) < 0) {
+            // empty, or a producer claimed the slot but hasn't published the element yet
+            return null;
+        }
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, pos + capacity);
+        head = pos + 1;
+        return element;
+    }
+
+    int size()
+    {
+        long size = tail.get() - head;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+}
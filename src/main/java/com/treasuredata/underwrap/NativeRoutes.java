@@ -0,0 +1,99 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.RoutingHandler;
+import io.undertow.server.handlers.BlockingHandler;
+import io.undertow.server.handlers.PathHandler;
+import io.undertow.util.Methods;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Raw Undertow handlers served without the servlet container and RESTEasy, for a few hot endpoints.
+//
+// Routes are registered by `UnderwrapApplication#registerNativeRoutes()` and mounted on the PathHandler next to
+// the servlet deployment, so they still go through access logging and graceful shutdown. Paths are not relative
+// to the servlet context path.
+//
+// - Exact and prefix paths are matched by the PathHandler
+// - Path templates like "/users/{id}" are matched before the PathHandler. Template parameters are available as
+//   query parameters and as the `PathTemplateMatch.ATTACHMENT_KEY` attachment. Requests that don't match any
+//   template, or whose method doesn't match, fall through to the PathHandler
+public final class NativeRoutes
+{
+    public enum Dispatch
+    {
+        // The handler runs on the IO thread and must not block. It can still dispatch by itself
+        IO_THREAD,
+        // The handler runs on a worker thread in blocking mode
+        WORKER,
+    }
+
+    private final Map<String, HttpHandler> exactPaths = new LinkedHashMap<>();
+    private final Map<String, HttpHandler> prefixPaths = new LinkedHashMap<>();
+    private final RoutingHandler templates = new RoutingHandler();
+    private boolean hasTemplates;
+
+    public NativeRoutes addExactPath(String path, Dispatch dispatch, HttpHandler handler)
+    {
+        exactPaths.put(path, wrap(dispatch, handler));
+        return this;
+    }
+
+    public NativeRoutes addPrefixPath(String pathPrefix, Dispatch dispatch, HttpHandler handler)
+    {
+        prefixPaths.put(pathPrefix, wrap(dispatch, handler));
+        return this;
+    }
+
+    public NativeRoutes add(String method, String pathTemplate, Dispatch dispatch, HttpHandler handler)
+    {
+        templates.add(method, pathTemplate, wrap(dispatch, handler));
+        hasTemplates = true;
+        return this;
+    }
+
+    public NativeRoutes get(String pathTemplate, Dispatch dispatch, HttpHandler handler)
+    {
+        return add(Methods.GET_STRING, pathTemplate, dispatch, handler);
+    }
+
+    public NativeRoutes post(String pathTemplate, Dispatch dispatch, HttpHandler handler)
+    {
+        return add(Methods.POST_STRING, pathTemplate, dispatch, handler);
+    }
+
+    public boolean isEmpty()
+    {
+        return exactPaths.isEmpty() && prefixPaths.isEmpty() && !hasTemplates;
+    }
+
+    // Returns the handler to use instead of `pathHandler`
+    HttpHandler install(PathHandler pathHandler)
+    {
+        for (Map.Entry<String, HttpHandler> entry : exactPaths.entrySet()) {
+            pathHandler.addExactPath(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, HttpHandler> entry : prefixPaths.entrySet()) {
+            pathHandler.addPrefixPath(entry.getKey(), entry.getValue());
+        }
+        if (!hasTemplates) {
+            return pathHandler;
+        }
+        return templates
+                .setFallbackHandler(pathHandler)
+                .setInvalidMethodHandler(pathHandler);
+    }
+
+    private static HttpHandler wrap(Dispatch dispatch, HttpHandler handler)
+    {
+        switch (dispatch) {
+            case IO_THREAD:
+                return handler;
+            case WORKER:
+                return new BlockingHandler(handler);
+            default:
+                throw new IllegalArgumentException("Unknown dispatch: " + dispatch);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// Classifies requests by the longest matching path prefix, for LoadSheddingPolicy and PrioritySchedulingPolicy
+final class PathPriorities
+{
+    private final String[] pathPrefixes;
+    private final Priority[] priorities;
+    private final Priority defaultPriority;
+
+    PathPriorities(Map<String, Priority> priorities, Priority defaultPriority)
+    {
+        List<Map.Entry<String, Priority>> entries = new ArrayList<>(priorities.entrySet());
+        // Longest prefix first
+        entries.sort(Comparator.comparingInt((Map.Entry<String, Priority> entry) -> entry.getKey().length()).reversed());
+        this.pathPrefixes = new String[entries.size()];
+        this.priorities = new Priority[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            pathPrefixes[i] = entries.get(i).getKey();
+            this.priorities[i] = entries.get(i).getValue();
+        }
+        this.defaultPriority = defaultPriority;
+    }
+
+    Priority priorityOf(String path)
+    {
+        for (int i = 0; i < pathPrefixes.length; i++) {
+            if (path.startsWith(pathPrefixes[i])) {
+                return priorities[i];
+            }
+        }
+        return defaultPriority;
+    }
+}
@@ -0,0 +1,237 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.util.AttachmentKey;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Breaks the latency of requests to the servlet deployment down into phases, with System.nanoTime() timestamps
+// taken along the handler chain:
+//
+//   queue    : from the request start until a thread starts running it (the worker queue, and the queues of
+//              AdaptiveConcurrencyLimit and Bulkheads)
+//   dispatch : the servlet container and RESTEasy, until the resource method is matched and about to be invoked
+//   resource : the resource method (including reading the request entity)
+//   write    : serializing the response entity and sending it, until the exchange completes
+//
+// `handler()` wraps the whole handler chain of the servlet deployment and `dispatcher()` wraps the deployment
+// itself. `filter()` is registered to RESTEasy. Each phase is aggregated into a LatencyHistogram. The phases are
+// also available to access logs as `%{phase,<name>}` (microseconds), and optionally sent in a Server-Timing
+// response header (without `write`, which isn't over when the headers are sent).
+public class PhaseTimings
+{
+    public enum Phase
+    {
+        QUEUE,
+        DISPATCH,
+        RESOURCE,
+        WRITE;
+
+        private final String label = name().toLowerCase(Locale.ENGLISH);
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    static final AttachmentKey<Timing> TIMING = AttachmentKey.create(Timing.class);
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final boolean serverTimingEnabled;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+    private final ExchangeCompletionListener completionListener = this::exchangeCompleted;
+
+    public PhaseTimings(boolean serverTimingEnabled)
+    {
+        this.serverTimingEnabled = serverTimingEnabled;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // Wraps the whole handler chain of the servlet deployment
+    public HttpHandler handler(HttpHandler next)
+    {
+        return exchange -> {
+            if (exchange.getRequestStartTime() == -1) {
+                // UndertowOptions.RECORD_REQUEST_START_TIME isn't enabled
+                Connectors.setRequestStartTime(exchange);
+            }
+            exchange.putAttachment(TIMING, new Timing(exchange.getRequestStartTime()));
+            exchange.addExchangeCompleteListener(completionListener);
+            next.handleRequest(exchange);
+        };
+    }
+
+    // Wraps the servlet deployment itself. Dispatches requests to the worker pool by itself, so that the time they
+    // start running on a worker thread is known
+    public HttpHandler dispatcher(HttpHandler next)
+    {
+        HttpHandler markingHandler = exchange -> {
+            Timing timing = exchange.getAttachment(TIMING);
+            if (timing != null) {
+                timing.workerStart = System.nanoTime();
+            }
+            next.handleRequest(exchange);
+        };
+        return exchange -> {
+            if (exchange.isInIoThread()) {
+                exchange.dispatch(markingHandler);
+            }
+            else {
+                markingHandler.handleRequest(exchange);
+            }
+        };
+    }
+
+    // Registered to RESTEasy. Both a ContainerRequestFilter and a ContainerResponseFilter
+    public Object filter()
+    {
+        return new TimingFilter();
+    }
+
+    // Keyed by phase labels, in the order of the phases
+    public Map<String, LatencyHistogram.Snapshot> getSnapshots()
+    {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            snapshots.put(phase.getLabel(), histograms[phase.ordinal()].snapshot());
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    // Returns -1 if the phase isn't measured for the exchange
+    static long phaseNanos(HttpServerExchange exchange, Phase phase)
+    {
+        Timing timing = exchange.getAttachment(TIMING);
+        return timing == null ? -1 : timing.phaseNanos(phase);
+    }
+
+    private void exchangeCompleted(HttpServerExchange exchange, ExchangeCompletionListener.NextListener nextListener)
+    {
+        try {
+            Timing timing = exchange.getAttachment(TIMING);
+            if (timing != null) {
+                timing.end = System.nanoTime();
+                for (Phase phase : PHASES) {
+                    long nanos = timing.phaseNanos(phase);
+                    if (nanos >= 0) {
+                        histograms[phase.ordinal()].record(nanos);
+                    }
+                }
+            }
+        }
+        finally {
+            nextListener.proceed();
+        }
+    }
+
+    // Timestamps are 0 until they are taken. They are written by the threads handling the exchange in turn, and the
+    // dispatches between them order the writes
+    static class Timing
+    {
+        final long start;
+        long workerStart;
+        long resourceStart;
+        long resourceEnd;
+        long end;
+
+        Timing(long start)
+        {
+            this.start = start;
+        }
+
+        long phaseNanos(Phase phase)
+        {
+            switch (phase) {
+                case QUEUE:
+                    return between(start, workerStart);
+                case DISPATCH:
+                    return between(workerStart, resourceStart);
+                case RESOURCE:
+                    return between(resourceStart, resourceEnd);
+                case WRITE:
+                    return between(resourceEnd, end);
+                default:
+                    throw new AssertionError(phase);
+            }
+        }
+
+        private static long between(long from, long to)
+        {
+            return from == 0 || to == 0 ? -1 : to - from;
+        }
+    }
+
+    private class TimingFilter
+        implements ContainerRequestFilter, ContainerResponseFilter
+    {
+        @Override
+        public void filter(ContainerRequestContext requestContext)
+        {
+            Timing timing = currentTiming();
+            if (timing != null) {
+                timing.resourceStart = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+        {
+            Timing timing = currentTiming();
+            if (timing == null) {
+                return;
+            }
+            timing.resourceEnd = System.nanoTime();
+            if (serverTimingEnabled) {
+                responseContext.getHeaders().putSingle("Server-Timing", serverTiming(timing));
+            }
+        }
+
+        private Timing currentTiming()
+        {
+            ServletRequestContext servletRequestContext = ServletRequestContext.current();
+            return servletRequestContext == null ? null : servletRequestContext.getExchange().getAttachment(TIMING);
+        }
+
+        private String serverTiming(Timing timing)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (Phase phase : PHASES) {
+                long nanos = timing.phaseNanos(phase);
+                if (nanos < 0) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                // Milliseconds with 3 decimal places
+                long micros = nanos / 1000;
+                sb.append(phase.getLabel()).append(";dur=").append(micros / 1000).append('.');
+                long fraction = micros % 1000;
+                if (fraction < 100) {
+                    sb.append('0');
+                }
+                if (fraction < 10) {
+                    sb.append('0');
+                }
+                sb.append(fraction);
+            }
+            return sb.toString();
+        }
+    }
+}
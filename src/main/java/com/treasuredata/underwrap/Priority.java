@@ -0,0 +1,9 @@
+package com.treasuredata.underwrap;
+
+// Priority classes of requests, shared by LoadSheddingPolicy and PrioritySchedulingPolicy
+public enum Priority
+{
+    CRITICAL,
+    NORMAL,
+    LOW,
+}
@@ -0,0 +1,437 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs requests to the servlet deployment on an executor managed by Underwrap instead of the XNIO worker pool, taking
+// queued requests by priority (see PrioritySchedulingPolicy), so that a burst of batch requests doesn't delay
+// health checks and latency sensitive requests queued after it.
+//
+// Requests are dispatched from the IO thread as Bulkheads does, and requests assigned to a bulkhead bypass this.
+// The queue is one FIFO per priority behind a lock, which is held only to add or take a request. LoadSheddingHandler
+// looks at this executor instead of the XNIO worker pool when both are enabled.
+public final class PriorityScheduler
+{
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final PrioritySchedulingPolicy policy;
+    private final TaskQueue queue;
+    private final ThreadPoolExecutor executor;
+    private final LatencyHistogram[] waits = new LatencyHistogram[PRIORITIES.length];
+    private final LongAdder[] rejected = new LongAdder[PRIORITIES.length];
+    private final LongAdder[] promoted = new LongAdder[PRIORITIES.length];
+
+    public PriorityScheduler(PrioritySchedulingPolicy policy)
+    {
+        this.policy = policy;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            waits[i] = new LatencyHistogram();
+            rejected[i] = new LongAdder();
+            promoted[i] = new LongAdder();
+        }
+        this.queue = new TaskQueue(policy, promoted);
+        this.executor = new ThreadPoolExecutor(policy.getThreads(), policy.getThreads(), 60, TimeUnit.SECONDS, queue,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("underwrap-priority-%d")
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    HttpHandler handler(HttpHandler next, ResourceIndex resourceIndex)
+    {
+        ResourceMatcher<Priority> matcher = ResourceMatcher.of(resourceIndex, PriorityScheduler::priorityOf);
+        boolean annotated = resourceIndex.getEntries().stream().anyMatch(entry -> priorityOf(entry) != null);
+
+        return exchange -> {
+            Priority priority = policy.headerPriorityOf(exchange);
+            if (priority == null && annotated) {
+                priority = matcher.match(exchange.getRelativePath(), exchange.getRequestMethod().toString());
+            }
+            if (priority == null) {
+                priority = policy.pathPriorityOf(exchange.getRequestPath());
+            }
+            dispatch(exchange, next, priority);
+        };
+    }
+
+    private static Priority priorityOf(ResourceIndex.Entry entry)
+    {
+        RequestPriority annotation = entry.getMethod().getAnnotation(RequestPriority.class);
+        if (annotation == null) {
+            annotation = entry.getResourceClass().getAnnotation(RequestPriority.class);
+        }
+        return annotation == null ? null : annotation.value();
+    }
+
+    private void dispatch(HttpServerExchange exchange, HttpHandler next, Priority priority)
+    {
+        ExecutorDispatch.dispatch(exchange, next, runnable -> executor.execute(new Task(priority, System.nanoTime(), runnable)),
+                rejected[priority.ordinal()]);
+    }
+
+    void shutdown(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout, unit)) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Queued requests of all priorities, without taking the lock of the queue
+    int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    // Takes the main lock of the executor
+    int getBusyThreadCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    int getMaxThreads()
+    {
+        return executor.getMaximumPoolSize();
+    }
+
+    // Threads of the executor, and queued requests of all priorities
+    public WorkerPoolSnapshot getSnapshot()
+    {
+        return WorkerPoolSnapshot.of(executor.getCorePoolSize(), executor, queue);
+    }
+
+    // Keyed by priority names in lower case, as all maps below
+    public Map<String, Integer> getQueueSizes()
+    {
+        int[] sizes = queue.sizes();
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (Priority priority : PRIORITIES) {
+            map.put(label(priority), sizes[priority.ordinal()]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    // Time from dispatch until a thread starts the request
+    public Map<String, LatencyHistogram.Snapshot> getQueueWaits()
+    {
+        Map<String, LatencyHistogram.Snapshot> map = new LinkedHashMap<>();
+        for (Priority priority : PRIORITIES) {
+            map.put(label(priority), waits[priority.ordinal()].snapshot());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    public Map<String, Long> getRejectedCounts()
+    {
+        return counts(rejected);
+    }
+
+    // Requests taken before higher priorities because they waited `maxStarvation`
+    public Map<String, Long> getPromotedCounts()
+    {
+        return counts(promoted);
+    }
+
+    private static Map<String, Long> counts(LongAdder[] adders)
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Priority priority : PRIORITIES) {
+            map.put(label(priority), adders[priority.ordinal()].sum());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static String label(Priority priority)
+    {
+        return priority.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private class Task
+        implements Runnable
+    {
+        final Priority priority;
+        final long enqueuedAt;
+        final Runnable runnable;
+
+        Task(Priority priority, long enqueuedAt, Runnable runnable)
+        {
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run()
+        {
+            waits[priority.ordinal()].record(System.nanoTime() - enqueuedAt);
+            runnable.run();
+        }
+    }
+
+    // The work queue of the executor. Only accepts Task
+    private static final class TaskQueue
+        extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable>
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final List<ArrayDeque<Task>> queues = new ArrayList<>();
+        private final int[] maxSizes = new int[PRIORITIES.length];
+        private final long maxStarvationNanos;
+        private final LongAdder[] promoted;
+        // Written with the lock held, and read without it by size()
+        private volatile int size;
+
+        TaskQueue(PrioritySchedulingPolicy policy, LongAdder[] promoted)
+        {
+            for (Priority priority : PRIORITIES) {
+                queues.add(new ArrayDeque<>());
+                maxSizes[priority.ordinal()] = policy.getMaxQueueSize(priority);
+            }
+            this.maxStarvationNanos = policy.getMaxStarvationNanos();
+            this.promoted = promoted;
+        }
+
+        @Override
+        public boolean offer(Runnable runnable)
+        {
+            Task task = (Task) runnable;
+            int index = task.priority.ordinal();
+            lock.lock();
+            try {
+                ArrayDeque<Task> queue = queues.get(index);
+                if (queue.size() >= maxSizes[index]) {
+                    return false;
+                }
+                queue.addLast(task);
+                size++;
+                notEmpty.signal();
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // Must be called with the lock held, when `size` > 0
+        private Task dequeue()
+        {
+            // The oldest of the requests that waited too long, if any, as each queue is FIFO
+            long now = System.nanoTime();
+            int starved = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                Task head = queues.get(i).peekFirst();
+                if (head != null && now - head.enqueuedAt >= maxStarvationNanos
+                        && (starved < 0 || head.enqueuedAt - queues.get(starved).peekFirst().enqueuedAt < 0)) {
+                    starved = i;
+                }
+            }
+            int index = 0;
+            if (starved >= 0) {
+                while (queues.get(index).isEmpty()) {
+                    index++;
+                }
+                if (index < starved) {
+                    promoted[starved].increment();
+                }
+                index = starved;
+            }
+            else {
+                while (queues.get(index).isEmpty()) {
+                    index++;
+                }
+            }
+            size--;
+            return queues.get(index).pollFirst();
+        }
+
+        @Override
+        public Runnable poll()
+        {
+            lock.lock();
+            try {
+                return size == 0 ? null : dequeue();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit)
+                throws InterruptedException
+        {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return dequeue();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable take()
+                throws InterruptedException
+        {
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    notEmpty.await();
+                }
+                return dequeue();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek()
+        {
+            lock.lock();
+            try {
+                for (ArrayDeque<Task> queue : queues) {
+                    if (!queue.isEmpty()) {
+                        return queue.peekFirst();
+                    }
+                }
+                return null;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // ThreadPoolExecutor only uses offer(). A full queue is rejected instead of blocking
+        @Override
+        public void put(Runnable runnable)
+        {
+            if (!offer(runnable)) {
+                throw new IllegalStateException("Queue full");
+            }
+        }
+
+        @Override
+        public boolean offer(Runnable runnable, long timeout, TimeUnit unit)
+        {
+            return offer(runnable);
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            lock.lock();
+            try {
+                for (ArrayDeque<Task> queue : queues) {
+                    if (queue.remove(o)) {
+                        size--;
+                        return true;
+                    }
+                }
+                return false;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        int[] sizes()
+        {
+            int[] sizes = new int[queues.size()];
+            lock.lock();
+            try {
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = queues.get(i).size();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            return sizes;
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            long remaining = 0;
+            int[] sizes = sizes();
+            for (int i = 0; i < sizes.length; i++) {
+                remaining += maxSizes[i] - sizes[i];
+            }
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c)
+        {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c, int maxElements)
+        {
+            lock.lock();
+            try {
+                int n = 0;
+                while (n < maxElements && size > 0) {
+                    c.add(dequeue());
+                    n++;
+                }
+                return n;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // A snapshot, which doesn't support remove()
+        @Override
+        public Iterator<Runnable> iterator()
+        {
+            List<Runnable> tasks = new ArrayList<>();
+            lock.lock();
+            try {
+                for (ArrayDeque<Task> queue : queues) {
+                    tasks.addAll(queue);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            return Collections.unmodifiableList(tasks).iterator();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Configuration of PriorityScheduler.
+//
+// Requests are classified into a Priority by the first of:
+// - the value of `priorityHeader` ("critical", "normal" or "low"), if set. Only for headers set by trusted proxies
+// - @RequestPriority of the resource method or class
+// - the longest matching path prefix
+// - `defaultPriority`
+//
+// Queued requests run in priority order, except that one that waited `maxStarvation` or longer runs before higher
+// priorities, oldest first. Requests are rejected with 503 when the queue of their priority is full.
+public final class PrioritySchedulingPolicy
+{
+    private final int threads;
+    private final int[] maxQueueSizes;
+    private final long maxStarvationNanos;
+    private final HttpString priorityHeader;
+    private final PathPriorities priorities;
+
+    private PrioritySchedulingPolicy(Builder builder)
+    {
+        this.threads = builder.threads;
+        this.maxQueueSizes = builder.maxQueueSizes.clone();
+        this.maxStarvationNanos = builder.maxStarvationNanos;
+        this.priorityHeader = builder.priorityHeader == null ? null : new HttpString(builder.priorityHeader);
+        this.priorities = new PathPriorities(builder.priorities, builder.defaultPriority);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public int getMaxQueueSize(Priority priority)
+    {
+        return maxQueueSizes[priority.ordinal()];
+    }
+
+    public long getMaxStarvationNanos()
+    {
+        return maxStarvationNanos;
+    }
+
+    // Returns null if the header isn't configured or present, or has an unknown value
+    Priority headerPriorityOf(HttpServerExchange exchange)
+    {
+        if (priorityHeader == null) {
+            return null;
+        }
+        String value = exchange.getRequestHeaders().getFirst(priorityHeader);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Priority.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    Priority pathPriorityOf(String path)
+    {
+        return priorities.priorityOf(path);
+    }
+
+    public static class Builder
+    {
+        private int threads = Runtime.getRuntime().availableProcessors() * 8;
+        private final int[] maxQueueSizes = new int[Priority.values().length];
+        private long maxStarvationNanos = TimeUnit.SECONDS.toNanos(1);
+        private String priorityHeader;
+        private final Map<String, Priority> priorities = new LinkedHashMap<>();
+        private Priority defaultPriority = Priority.NORMAL;
+
+        private Builder()
+        {
+            Arrays.fill(maxQueueSizes, Integer.MAX_VALUE);
+        }
+
+        // Defaults to 8 per CPU, the same as the XNIO worker pool of Undertow
+        public Builder setThreads(int threads)
+        {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder setMaxQueueSize(Priority priority, int maxQueueSize)
+        {
+            if (maxQueueSize < 0) {
+                throw new IllegalArgumentException("maxQueueSize must not be negative: " + maxQueueSize);
+            }
+            maxQueueSizes[priority.ordinal()] = maxQueueSize;
+            return this;
+        }
+
+        public Builder setMaxStarvation(long duration, TimeUnit unit)
+        {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("maxStarvation must be positive: " + duration);
+            }
+            this.maxStarvationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder setPriorityHeader(String priorityHeader)
+        {
+            this.priorityHeader = priorityHeader;
+            return this;
+        }
+
+        public Builder setPriority(String pathPrefix, Priority priority)
+        {
+            priorities.put(pathPrefix, priority);
+            return this;
+        }
+
+        public Builder setDefaultPriority(Priority defaultPriority)
+        {
+            this.defaultPriority = defaultPriority;
+            return this;
+        }
+
+        public PrioritySchedulingPolicy build()
+        {
+            return new PrioritySchedulingPolicy(this);
+        }
+    }
+}
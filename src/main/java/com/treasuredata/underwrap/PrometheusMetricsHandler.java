@@ -0,0 +1,303 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+// Renders UnderwrapMetrics in the Prometheus text exposition format (version 0.0.4).
+//
+// UnderwrapServer mounts this handler on the PathHandler in front of the servlet deployment, so a scrape is
+// answered on the IO thread without going through RESTEasy or the worker pool.
+public class PrometheusMetricsHandler
+    implements HttpHandler
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds of the latency histogram buckets in seconds
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0};
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final Supplier<UnderwrapMetrics> metricsSupplier;
+    private final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(16 * 1024));
+
+    public PrometheusMetricsHandler(Supplier<UnderwrapMetrics> metricsSupplier)
+    {
+        this.metricsSupplier = metricsSupplier;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        if (!exchange.getRequestMethod().equals(Methods.GET) && !exchange.getRequestMethod().equals(Methods.HEAD)) {
+            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+            exchange.getResponseHeaders().put(Headers.ALLOW, "GET, HEAD");
+            exchange.endExchange();
+            return;
+        }
+
+        UnderwrapMetrics metrics = metricsSupplier.get();
+        if (metrics == null) {
+            // The server isn't started yet
+            exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+            exchange.endExchange();
+            return;
+        }
+
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        render(metrics, sb);
+        String body = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffers.remove();
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE);
+        exchange.getResponseSender().send(body, StandardCharsets.UTF_8);
+    }
+
+    static void render(UnderwrapMetrics metrics, StringBuilder sb)
+    {
+        WorkerPoolSnapshot pool = metrics.snapshot();
+        gauge(sb, "underwrap_worker_pool_core_size", "Core size of the XNIO worker pool", pool.getCoreWorkerPoolSize());
+        gauge(sb, "underwrap_worker_pool_max_size", "Maximum size of the XNIO worker pool", pool.getMaxWorkerPoolSize());
+        gauge(sb, "underwrap_worker_busy_threads", "Number of XNIO worker threads running tasks", pool.getBusyWorkerThreadCount());
+        gauge(sb, "underwrap_worker_queue_size", "Number of tasks waiting in the XNIO worker queue", pool.getWorkerQueueSize());
+        gauge(sb, "underwrap_worker_queue_remaining_capacity", "Remaining capacity of the XNIO worker queue", pool.getWorkerQueueCapacity());
+
+        BufferPoolSnapshot buffers = metrics.getBufferPoolSnapshot();
+        if (buffers != null) {
+            gauge(sb, "underwrap_buffer_pool_buffer_size_bytes", "Size of buffers in the Undertow buffer pool", buffers.getBufferSize());
+            gauge(sb, "underwrap_buffer_pool_allocated_buffers", "Buffers owned by the Undertow buffer pool, in use or pooled", buffers.getAllocatedBufferCount());
+            gauge(sb, "underwrap_buffer_pool_in_use_buffers", "Buffers taken from the Undertow buffer pool and not returned yet", buffers.getInUseBufferCount());
+            counter(sb, "underwrap_buffer_pool_allocations_total", "Buffers taken from the Undertow buffer pool", buffers.getAllocationCount());
+            counter(sb, "underwrap_buffer_pool_misses_total", "Buffers newly allocated because the Undertow buffer pool was empty", buffers.getMissCount());
+        }
+
+        Map<String, WorkerPoolSnapshot> bulkheads = metrics.getBulkheadSnapshots();
+        if (!bulkheads.isEmpty()) {
+            bulkheadGauge(sb, "underwrap_bulkhead_core_size", "Core size of the bulkhead executor", bulkheads, WorkerPoolSnapshot::getCoreWorkerPoolSize);
+            bulkheadGauge(sb, "underwrap_bulkhead_max_size", "Maximum size of the bulkhead executor", bulkheads, WorkerPoolSnapshot::getMaxWorkerPoolSize);
+            bulkheadGauge(sb, "underwrap_bulkhead_busy_threads", "Number of bulkhead threads running requests", bulkheads, WorkerPoolSnapshot::getBusyWorkerThreadCount);
+            bulkheadGauge(sb, "underwrap_bulkhead_queue_size", "Number of requests waiting in the bulkhead queue", bulkheads, WorkerPoolSnapshot::getWorkerQueueSize);
+            bulkheadGauge(sb, "underwrap_bulkhead_queue_remaining_capacity", "Remaining capacity of the bulkhead queue", bulkheads, WorkerPoolSnapshot::getWorkerQueueCapacity);
+            header(sb, "underwrap_bulkhead_rejected_total", "Requests rejected because the bulkhead was full", "counter");
+            for (Map.Entry<String, Long> entry : metrics.getBulkheadRejectedCounts().entrySet()) {
+                bulkheadSample(sb, "underwrap_bulkhead_rejected_total", entry.getKey()).append(entry.getValue()).append('\n');
+            }
+        }
+
+        WorkerPoolSnapshot priorityPool = metrics.getPrioritySchedulerSnapshot();
+        if (priorityPool != null) {
+            gauge(sb, "underwrap_priority_max_size", "Maximum size of the priority scheduler executor", priorityPool.getMaxWorkerPoolSize());
+            gauge(sb, "underwrap_priority_busy_threads", "Number of priority scheduler threads running requests", priorityPool.getBusyWorkerThreadCount());
+            header(sb, "underwrap_priority_queue_size", "Number of requests waiting in the priority scheduler per priority", "gauge");
+            for (Map.Entry<String, Integer> entry : metrics.getPriorityQueueSizes().entrySet()) {
+                prioritySample(sb, "underwrap_priority_queue_size", entry.getKey(), null).append(entry.getValue()).append('\n');
+            }
+            header(sb, "underwrap_priority_queue_wait_seconds", "Time requests waited in the priority scheduler per priority", "histogram");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : metrics.getPriorityQueueWaits().entrySet()) {
+                LatencyHistogram.Snapshot wait = entry.getValue();
+                for (double bucket : LATENCY_BUCKETS) {
+                    prioritySample(sb, "underwrap_priority_queue_wait_seconds_bucket", entry.getKey(), Double.toString(bucket))
+                            .append(wait.getCountAtOrBelow((long) (bucket * 1e9))).append('\n');
+                }
+                prioritySample(sb, "underwrap_priority_queue_wait_seconds_bucket", entry.getKey(), "+Inf").append(wait.getCount()).append('\n');
+                prioritySample(sb, "underwrap_priority_queue_wait_seconds_sum", entry.getKey(), null).append(wait.getSum() / 1e9).append('\n');
+                prioritySample(sb, "underwrap_priority_queue_wait_seconds_count", entry.getKey(), null).append(wait.getCount()).append('\n');
+            }
+            header(sb, "underwrap_priority_rejected_total", "Requests rejected because the priority queue was full", "counter");
+            for (Map.Entry<String, Long> entry : metrics.getPriorityRejectedCounts().entrySet()) {
+                prioritySample(sb, "underwrap_priority_rejected_total", entry.getKey(), null).append(entry.getValue()).append('\n');
+            }
+            header(sb, "underwrap_priority_promoted_total", "Requests run before higher priorities because they waited too long", "counter");
+            for (Map.Entry<String, Long> entry : metrics.getPriorityPromotedCounts().entrySet()) {
+                prioritySample(sb, "underwrap_priority_promoted_total", entry.getKey(), null).append(entry.getValue()).append('\n');
+            }
+        }
+
+        counter(sb, "underwrap_access_log_written_lines_total", "Access log lines written to the file", metrics.getAccessLogWrittenLineCount());
+        counter(sb, "underwrap_access_log_dropped_lines_total", "Access log lines dropped because the queue was full", metrics.getAccessLogDroppedLineCount());
+        gauge(sb, "underwrap_access_log_queue_size", "Access log lines waiting to be written", metrics.getAccessLogQueueSize());
+        counter(sb, "underwrap_access_log_excluded_total", "Requests excluded from the access log", metrics.getAccessLogExcludedCount());
+        header(sb, "underwrap_access_log_sampled_out_total", "Requests not logged by sampling", "counter");
+        for (Map.Entry<String, Long> entry : metrics.getAccessLogSampledOutCountsByPathPrefix().entrySet()) {
+            sb.append("underwrap_access_log_sampled_out_total{path_prefix=\"");
+            appendLabelValue(sb, entry.getKey());
+            sb.append("\"} ").append(entry.getValue()).append('\n');
+        }
+
+        header(sb, "underwrap_load_shedding_rejected_total", "Requests rejected by load shedding", "counter");
+        for (Map.Entry<String, Long> entry : metrics.getLoadSheddingRejectedCountsByPriority().entrySet()) {
+            sb.append("underwrap_load_shedding_rejected_total{priority=\"").append(entry.getKey()).append("\"} ").append(entry.getValue()).append('\n');
+        }
+        counter(sb, "underwrap_rate_limit_rejected_total", "Requests rejected by the per-client rate limit", metrics.getRateLimitRejectedCount());
+        gauge(sb, "underwrap_rate_limit_clients", "Clients with a rate limit bucket", metrics.getRateLimitKeyCount());
+        gauge(sb, "underwrap_concurrency_limit", "Current adaptive concurrency limit", metrics.getConcurrencyLimit());
+        gauge(sb, "underwrap_concurrency_limit_in_flight", "Requests admitted by the concurrency limit", metrics.getConcurrencyLimitInFlightCount());
+        gauge(sb, "underwrap_concurrency_limit_queue_size", "Requests waiting for the concurrency limit", metrics.getConcurrencyLimitQueueSize());
+        counter(sb, "underwrap_concurrency_limit_rejected_total", "Requests rejected by the concurrency limit", metrics.getConcurrencyLimitRejectedCount());
+
+        counter(sb, "underwrap_response_cache_hits_total", "Requests served from the response cache", metrics.getResponseCacheHitCount());
+        counter(sb, "underwrap_response_cache_misses_total", "Cacheable requests not found in the response cache", metrics.getResponseCacheMissCount());
+        counter(sb, "underwrap_response_cache_not_modified_total", "Cache hits answered with 304", metrics.getResponseCacheNotModifiedCount());
+        counter(sb, "underwrap_response_cache_evictions_total", "Entries evicted from the response cache by size", metrics.getResponseCacheEvictionCount());
+        gauge(sb, "underwrap_response_cache_bytes", "Total size of cached response bodies", metrics.getResponseCacheBytes());
+        counter(sb, "underwrap_compressed_responses_total", "Response bodies gzipped in one pass", metrics.getCompressedResponseCount());
+        counter(sb, "underwrap_compression_streamed_responses_total", "Response bodies gzipped while streamed, as they exceeded the buffer or were flushed", metrics.getCompressionStreamedCount());
+        counter(sb, "underwrap_compression_input_bytes_total", "Bytes of response bodies before gzip", metrics.getCompressionInputBytes());
+        counter(sb, "underwrap_compression_output_bytes_total", "Bytes of response bodies after gzip", metrics.getCompressionOutputBytes());
+        header(sb, "underwrap_compression_cpu_seconds_total", "CPU time spent in gzip", "counter");
+        sb.append("underwrap_compression_cpu_seconds_total ").append(metrics.getCompressionCpuNanos() / 1e9).append('\n');
+
+        counter(sb, "underwrap_file_cache_hits_total", "Files served from the file mount cache", metrics.getFileCacheHitCount());
+        counter(sb, "underwrap_file_transfers_total", "Files served from disk by file mounts", metrics.getFileTransferCount());
+        counter(sb, "underwrap_file_transferred_bytes_total", "Bytes sent from disk by file mounts", metrics.getFileTransferredBytes());
+        gauge(sb, "underwrap_file_cache_bytes", "Total size of files in the file mount caches", metrics.getFileCacheBytes());
+
+        counter(sb, "underwrap_request_coalesced_total", "Requests served with the response of an identical in-flight request", metrics.getRequestCoalescedCount());
+        counter(sb, "underwrap_request_coalescing_timed_out_total", "Coalesced requests handled by themselves after the max wait", metrics.getRequestCoalescingTimedOutCount());
+        counter(sb, "underwrap_request_coalescing_unshared_total", "Coalesced requests handled by themselves because the response couldn't be shared", metrics.getRequestCoalescingUnsharedCount());
+
+        header(sb, "underwrap_deadline_dropped_total", "Requests dropped because the deadline passed or the client disconnected", "counter");
+        for (Map.Entry<String, Long> entry : metrics.getDeadlineDroppedCountsByRoute().entrySet()) {
+            sb.append("underwrap_deadline_dropped_total{route=\"");
+            appendLabelValue(sb, entry.getKey());
+            sb.append("\"} ").append(entry.getValue()).append('\n');
+        }
+
+        counter(sb, "underwrap_slow_requests_total", "Requests that ran longer than the slow request threshold", metrics.getSlowRequestCount());
+        counter(sb, "underwrap_slow_request_untracked_total", "Requests not watched because the slow request registry was full", metrics.getSlowRequestUntrackedCount());
+
+        Map<String, LatencyHistogram.Snapshot> phases = metrics.getPhaseLatencies();
+        if (!phases.isEmpty()) {
+            header(sb, "underwrap_request_phase_seconds", "Latency of requests to the servlet deployment per phase", "histogram");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : phases.entrySet()) {
+                LatencyHistogram.Snapshot latency = entry.getValue();
+                for (double bucket : LATENCY_BUCKETS) {
+                    phaseSample(sb, "underwrap_request_phase_seconds_bucket", entry.getKey(), Double.toString(bucket))
+                            .append(latency.getCountAtOrBelow((long) (bucket * 1e9))).append('\n');
+                }
+                phaseSample(sb, "underwrap_request_phase_seconds_bucket", entry.getKey(), "+Inf").append(latency.getCount()).append('\n');
+                phaseSample(sb, "underwrap_request_phase_seconds_sum", entry.getKey(), null).append(latency.getSum() / 1e9).append('\n');
+                phaseSample(sb, "underwrap_request_phase_seconds_count", entry.getKey(), null).append(latency.getCount()).append('\n');
+            }
+        }
+
+        Map<String, EndpointMetrics.Snapshot> endpoints = metrics.getEndpointMetrics();
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        header(sb, "underwrap_endpoint_requests_total", "Requests handled by the resource method", "counter");
+        for (EndpointMetrics.Snapshot endpoint : endpoints.values()) {
+            sample(sb, "underwrap_endpoint_requests_total", endpoint, null).append(endpoint.getRequestCount()).append('\n');
+        }
+        header(sb, "underwrap_endpoint_errors_total", "Requests of the resource method responded with 5xx", "counter");
+        for (EndpointMetrics.Snapshot endpoint : endpoints.values()) {
+            sample(sb, "underwrap_endpoint_errors_total", endpoint, null).append(endpoint.getErrorCount()).append('\n');
+        }
+        header(sb, "underwrap_endpoint_latency_seconds", "Latency of the resource method", "histogram");
+        for (EndpointMetrics.Snapshot endpoint : endpoints.values()) {
+            LatencyHistogram.Snapshot latency = endpoint.getLatency();
+            for (double bucket : LATENCY_BUCKETS) {
+                sample(sb, "underwrap_endpoint_latency_seconds_bucket", endpoint, Double.toString(bucket))
+                        .append(latency.getCountAtOrBelow((long) (bucket * 1e9))).append('\n');
+            }
+            sample(sb, "underwrap_endpoint_latency_seconds_bucket", endpoint, "+Inf").append(latency.getCount()).append('\n');
+            sample(sb, "underwrap_endpoint_latency_seconds_sum", endpoint, null).append(latency.getSum() / 1e9).append('\n');
+            sample(sb, "underwrap_endpoint_latency_seconds_count", endpoint, null).append(latency.getCount()).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type)
+    {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value)
+    {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value)
+    {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void bulkheadGauge(StringBuilder sb, String name, String help, Map<String, WorkerPoolSnapshot> bulkheads, ToIntFunction<WorkerPoolSnapshot> value)
+    {
+        header(sb, name, help, "gauge");
+        for (Map.Entry<String, WorkerPoolSnapshot> entry : bulkheads.entrySet()) {
+            bulkheadSample(sb, name, entry.getKey()).append(value.applyAsInt(entry.getValue())).append('\n');
+        }
+    }
+
+    private static StringBuilder bulkheadSample(StringBuilder sb, String name, String bulkhead)
+    {
+        sb.append(name).append("{bulkhead=\"");
+        appendLabelValue(sb, bulkhead);
+        return sb.append("\"} ");
+    }
+
+    private static StringBuilder prioritySample(StringBuilder sb, String name, String priority, String le)
+    {
+        sb.append(name).append("{priority=\"").append(priority);
+        if (le != null) {
+            sb.append("\",le=\"").append(le);
+        }
+        return sb.append("\"} ");
+    }
+
+    private static StringBuilder phaseSample(StringBuilder sb, String name, String phase, String le)
+    {
+        sb.append(name).append("{phase=\"").append(phase);
+        if (le != null) {
+            sb.append("\",le=\"").append(le);
+        }
+        return sb.append("\"} ");
+    }
+
+    private static StringBuilder sample(StringBuilder sb, String name, EndpointMetrics.Snapshot endpoint, String le)
+    {
+        sb.append(name).append("{endpoint=\"");
+        appendLabelValue(sb, endpoint.getName());
+        sb.append("\",method=\"");
+        appendLabelValue(sb, endpoint.getHttpMethod());
+        sb.append("\",path=\"");
+        appendLabelValue(sb, endpoint.getPathTemplate());
+        if (le != null) {
+            sb.append("\",le=\"").append(le);
+        }
+        return sb.append("\"} ");
+    }
+
+    private static void appendLabelValue(StringBuilder sb, String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rejects requests with 429 on the IO thread, before they are dispatched to the XNIO worker pool, while their
+// client exceeds the rate of RateLimitPolicy.
+//
+// Buckets are kept in a Guava cache, which is split into segments so that clients don't contend on one lock. Each
+// bucket is a single timestamp updated by CAS (GCRA): the time when the bucket is full again, which advances by the
+// interval per request and may be at most `burst` intervals ahead of now. A bucket that isn't used for `burst`
+// intervals is full, the same as a new one, so it expires from the cache then.
+public class RateLimitHandler
+    implements HttpHandler
+{
+    private final HttpHandler next;
+    private final RateLimitPolicy policy;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final Cache<String, Bucket> buckets;
+    private final LongAdder rejected = new LongAdder();
+
+    public RateLimitHandler(HttpHandler next, RateLimitPolicy policy)
+    {
+        this.next = next;
+        this.policy = policy;
+        this.intervalNanos = policy.getIntervalNanos();
+        this.toleranceNanos = policy.getIntervalNanos() * policy.getBurst();
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(policy.getMaxKeys())
+                .expireAfterAccess(toleranceNanos, TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        String key = policy.keyOf(exchange);
+        if (key != null) {
+            long waitNanos = bucketOf(key).acquire(System.nanoTime(), intervalNanos, toleranceNanos);
+            if (waitNanos > 0) {
+                rejected.increment();
+                exchange.setStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+                exchange.getResponseHeaders().put(Headers.RETRY_AFTER, String.valueOf(retryAfterSeconds(waitNanos)));
+                exchange.endExchange();
+                return;
+            }
+        }
+        next.handleRequest(exchange);
+    }
+
+    private Bucket bucketOf(String key)
+    {
+        Bucket bucket = buckets.getIfPresent(key);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(System.nanoTime());
+            bucket = buckets.asMap().putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    private static long retryAfterSeconds(long waitNanos)
+    {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    // Clients with a bucket, including idle ones not yet expired
+    public long getKeyCount()
+    {
+        return buckets.size();
+    }
+
+    // Rejected counts of the `limit` clients rejected most, the most first. Counts are lost when buckets expire
+    public Map<String, Long> getTopRejectedCounts(int limit)
+    {
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Comparator.comparingLong(Map.Entry::getValue));
+        for (Map.Entry<String, Bucket> entry : buckets.asMap().entrySet()) {
+            long count = entry.getValue().rejected.sum();
+            if (count > 0 && (top.size() < limit || count > top.peek().getValue())) {
+                top.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), count));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(top);
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Long> entry) -> entry.getValue()).reversed());
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            counts.put(entry.getKey(), entry.getValue());
+        }
+        return counts;
+    }
+
+    private static class Bucket
+    {
+        // The time when this bucket is full again
+        private final AtomicLong fullAt;
+        private final LongAdder rejected = new LongAdder();
+
+        Bucket(long fullAt)
+        {
+            this.fullAt = new AtomicLong(fullAt);
+        }
+
+        // Returns 0 when a token is taken, otherwise the time until one is available
+        long acquire(long now, long intervalNanos, long toleranceNanos)
+        {
+            while (true) {
+                long current = fullAt.get();
+                long next = (current - now > 0 ? current : now) + intervalNanos;
+                long waitNanos = next - now - toleranceNanos;
+                if (waitNanos > 0) {
+                    rejected.increment();
+                    return waitNanos;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
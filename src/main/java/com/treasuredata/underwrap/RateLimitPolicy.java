@@ -0,0 +1,161 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Limits for RateLimitHandler.
+//
+// Each client, identified by `keyFunction`, gets a token bucket that holds up to `burst` requests and is refilled
+// at `permits` per `period`. The default key is the first address of X-Forwarded-For, the same one in the default
+// access log, or the peer address without the header. X-Forwarded-For is sent by clients, so use the default only
+// behind a proxy that sets it, or set a key function that reads a trusted value (e.g. an API key).
+//
+// Requests whose path starts with an excluded prefix (e.g. health checks) and requests whose key is null aren't
+// limited.
+public final class RateLimitPolicy
+{
+    public static final Function<HttpServerExchange, String> FORWARDED_FOR_OR_PEER_ADDRESS = RateLimitPolicy::forwardedForOrPeerAddress;
+    public static final Function<HttpServerExchange, String> PEER_ADDRESS = RateLimitPolicy::peerAddress;
+
+    private final long intervalNanos;
+    private final int burst;
+    private final Function<HttpServerExchange, String> keyFunction;
+    private final long maxKeys;
+    private final String[] excludedPathPrefixes;
+
+    private RateLimitPolicy(Builder builder)
+    {
+        this.intervalNanos = Math.max(1, builder.periodNanos / builder.permits);
+        this.burst = builder.burst == 0 ? (int) Math.min(Integer.MAX_VALUE, builder.permits) : builder.burst;
+        this.keyFunction = builder.keyFunction;
+        this.maxKeys = builder.maxKeys;
+        this.excludedPathPrefixes = builder.excludedPathPrefixes.toArray(new String[0]);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    // Time to add a token to a bucket
+    public long getIntervalNanos()
+    {
+        return intervalNanos;
+    }
+
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    public long getMaxKeys()
+    {
+        return maxKeys;
+    }
+
+    String keyOf(HttpServerExchange exchange)
+    {
+        String path = exchange.getRequestPath();
+        for (String prefix : excludedPathPrefixes) {
+            if (path.startsWith(prefix)) {
+                return null;
+            }
+        }
+        return keyFunction.apply(exchange);
+    }
+
+    private static String forwardedForOrPeerAddress(HttpServerExchange exchange)
+    {
+        String forwardedFor = exchange.getRequestHeaders().getFirst(Headers.X_FORWARDED_FOR);
+        if (forwardedFor != null) {
+            int comma = forwardedFor.indexOf(',');
+            String first = (comma < 0 ? forwardedFor : forwardedFor.substring(0, comma)).trim();
+            if (!first.isEmpty()) {
+                return first;
+            }
+        }
+        return peerAddress(exchange);
+    }
+
+    private static String peerAddress(HttpServerExchange exchange)
+    {
+        InetSocketAddress sourceAddress = exchange.getSourceAddress();
+        if (sourceAddress == null) {
+            return null;
+        }
+        InetAddress address = sourceAddress.getAddress();
+        return address == null ? sourceAddress.getHostString() : address.getHostAddress();
+    }
+
+    public static class Builder
+    {
+        private long permits;
+        private long periodNanos;
+        private int burst;
+        private Function<HttpServerExchange, String> keyFunction = FORWARDED_FOR_OR_PEER_ADDRESS;
+        private long maxKeys = 100_000;
+        private final List<String> excludedPathPrefixes = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        // Required. e.g. `setRate(100, 1, TimeUnit.SECONDS)` for 100 requests per second
+        public Builder setRate(long permits, long period, TimeUnit unit)
+        {
+            if (permits <= 0 || period <= 0) {
+                throw new IllegalArgumentException(String.format("permits and period must be positive: %d per %d %s", permits, period, unit));
+            }
+            this.permits = permits;
+            this.periodNanos = unit.toNanos(period);
+            return this;
+        }
+
+        // Requests allowed at once after a client has been idle. The same as the permits per period by default
+        public Builder setBurst(int burst)
+        {
+            if (burst <= 0) {
+                throw new IllegalArgumentException("burst must be positive: " + burst);
+            }
+            this.burst = burst;
+            return this;
+        }
+
+        public Builder setKeyFunction(Function<HttpServerExchange, String> keyFunction)
+        {
+            this.keyFunction = keyFunction;
+            return this;
+        }
+
+        // Buckets of clients tracked at once. The least recently used ones are evicted beyond this
+        public Builder setMaxKeys(long maxKeys)
+        {
+            if (maxKeys <= 0) {
+                throw new IllegalArgumentException("maxKeys must be positive: " + maxKeys);
+            }
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public Builder addExcludedPathPrefix(String pathPrefix)
+        {
+            excludedPathPrefixes.add(pathPrefix);
+            return this;
+        }
+
+        public RateLimitPolicy build()
+        {
+            if (permits == 0) {
+                throw new IllegalStateException("setRate() must be called");
+            }
+            return new RateLimitPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import org.xnio.XnioExecutor;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Coalesces concurrent identical requests (single-flight).
+//
+// The first request for a key is handled as usual, and its response body is captured while it's written. Requests
+// with the same key that arrive meanwhile are suspended without occupying a worker thread, and get a copy of the
+// first response when it completes. They are handled by themselves when the first response can't be shared
+// (not 2xx, incomplete, too large or with Set-Cookie), or when they have waited for `maxWait`. Errors such as the 503
+// of LoadSheddingHandler aren't shared, so that a failure of the first request doesn't fail the others.
+//
+// Waiting requests get the headers set by the application (see ResponseHeaderSnapshot), and are compressed by
+// CompressionHandler by themselves, as the captured body is the one before compression.
+public class RequestCoalescingHandler
+    implements HttpHandler
+{
+    private final HttpHandler next;
+    private final RequestCoalescingPolicy policy;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder unshared = new LongAdder();
+
+    public RequestCoalescingHandler(HttpHandler next, RequestCoalescingPolicy policy)
+    {
+        this.next = next;
+        this.policy = policy;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        String key = policy.keyOf(exchange);
+        if (key == null) {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        Flight flight = new Flight(key);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            exchange.addResponseWrapper(flight);
+            exchange.addExchangeCompleteListener(flight);
+            next.handleRequest(exchange);
+            return;
+        }
+
+        Waiter waiter = new Waiter(exchange);
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+            waiter.timeout = exchange.getIoThread().executeAfter(() -> {
+                if (waiter.claim()) {
+                    timedOut.increment();
+                    exchange.dispatch(exchange.getIoThread(), next);
+                }
+            }, policy.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+            existing.join(waiter);
+        });
+    }
+
+    // Requests that got a copy of another request's response
+    public long getCoalescedCount()
+    {
+        return coalesced.sum();
+    }
+
+    // Requests handled by themselves after waiting for `maxWait`
+    public long getTimedOutCount()
+    {
+        return timedOut.sum();
+    }
+
+    // Requests handled by themselves because the response they waited for couldn't be shared
+    public long getUnsharedCount()
+    {
+        return unshared.sum();
+    }
+
+    private static class SharedResponse
+    {
+        final int statusCode;
+        final ResponseHeaderSnapshot headers;
+        final byte[] body;
+
+        SharedResponse(int statusCode, ResponseHeaderSnapshot headers, byte[] body)
+        {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private static class Waiter
+    {
+        final HttpServerExchange exchange;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        volatile XnioExecutor.Key timeout;
+
+        Waiter(HttpServerExchange exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        boolean claim()
+        {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void cancelTimeout()
+        {
+            XnioExecutor.Key key = timeout;
+            if (key != null) {
+                key.remove();
+            }
+        }
+    }
+
+    private class Flight
+        implements ConduitWrapper<StreamSinkConduit>, ExchangeCompletionListener
+    {
+        private final String key;
+        private CapturingStreamSinkConduit conduit;
+        private ResponseHeaderSnapshot headers;
+        // Guarded by `this`
+        private List<Waiter> waiters = new ArrayList<>();
+        private boolean done;
+        private SharedResponse response;
+
+        Flight(String key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange)
+        {
+            headers = ResponseHeaderSnapshot.of(exchange);
+            conduit = new CapturingStreamSinkConduit(factory.create(), policy.getMaxResponseBytes());
+            return conduit;
+        }
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+        {
+            try {
+                flights.remove(key, this);
+                List<Waiter> waiting;
+                synchronized (this) {
+                    response = share(exchange);
+                    done = true;
+                    waiting = waiters;
+                    waiters = null;
+                }
+                for (Waiter waiter : waiting) {
+                    resume(waiter, response);
+                }
+            }
+            finally {
+                nextListener.proceed();
+            }
+        }
+
+        void join(Waiter waiter)
+        {
+            synchronized (this) {
+                if (!done) {
+                    waiters.add(waiter);
+                    return;
+                }
+            }
+            resume(waiter, response);
+        }
+
+        private SharedResponse share(HttpServerExchange exchange)
+        {
+            int statusCode = exchange.getStatusCode();
+            if (statusCode < 200 || statusCode >= 300) {
+                return null;
+            }
+            if (conduit == null || !conduit.isComplete() || exchange.getResponseHeaders().contains(Headers.SET_COOKIE)) {
+                return null;
+            }
+            return new SharedResponse(statusCode, headers, conduit.toByteArray());
+        }
+
+        private void resume(Waiter waiter, SharedResponse response)
+        {
+            if (!waiter.claim()) {
+                // Timed out
+                return;
+            }
+            waiter.cancelTimeout();
+            HttpServerExchange exchange = waiter.exchange;
+            if (response == null) {
+                unshared.increment();
+                exchange.dispatch(exchange.getIoThread(), next);
+                return;
+            }
+            coalesced.increment();
+            exchange.dispatch(exchange.getIoThread(), e -> {
+                e.setStatusCode(response.statusCode);
+                response.headers.applyTo(e);
+                e.getResponseHeaders().put(Headers.CONTENT_LENGTH, response.body.length);
+                e.getResponseSender().send(ByteBuffer.wrap(response.body));
+            });
+        }
+    }
+}
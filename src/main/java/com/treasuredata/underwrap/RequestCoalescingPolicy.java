@@ -0,0 +1,129 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Configuration of RequestCoalescingHandler.
+//
+// By default, GET requests under the configured path prefixes are coalesced by the path, the query string and
+// Accept. Requests with Authorization or Cookie aren't coalesced, as their responses can depend on the user.
+// `setKeyFunction()` replaces both the prefixes and the default key. The function returns null for requests
+// that shouldn't be coalesced.
+public final class RequestCoalescingPolicy
+{
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_RESPONSE_BYTES = 1024 * 1024;
+
+    private final Function<HttpServerExchange, String> keyFunction;
+    private final long maxWaitMillis;
+    private final int maxResponseBytes;
+
+    private RequestCoalescingPolicy(Builder builder)
+    {
+        if (builder.keyFunction != null) {
+            this.keyFunction = builder.keyFunction;
+        }
+        else {
+            String[] pathPrefixes = builder.pathPrefixes.toArray(new String[0]);
+            this.keyFunction = exchange -> defaultKey(exchange, pathPrefixes);
+        }
+        this.maxWaitMillis = builder.maxWaitMillis;
+        this.maxResponseBytes = builder.maxResponseBytes;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    String keyOf(HttpServerExchange exchange)
+    {
+        return keyFunction.apply(exchange);
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    public int getMaxResponseBytes()
+    {
+        return maxResponseBytes;
+    }
+
+    private static String defaultKey(HttpServerExchange exchange, String[] pathPrefixes)
+    {
+        if (!exchange.getRequestMethod().equals(Methods.GET)) {
+            return null;
+        }
+        HeaderMap requestHeaders = exchange.getRequestHeaders();
+        if (requestHeaders.contains(Headers.AUTHORIZATION) || requestHeaders.contains(Headers.COOKIE)) {
+            return null;
+        }
+        String path = exchange.getRequestPath();
+        for (String prefix : pathPrefixes) {
+            if (path.startsWith(prefix)) {
+                StringBuilder sb = new StringBuilder(path);
+                if (!exchange.getQueryString().isEmpty()) {
+                    sb.append('?').append(exchange.getQueryString());
+                }
+                String accept = requestHeaders.getFirst(Headers.ACCEPT);
+                if (accept != null) {
+                    sb.append('\n').append(accept);
+                }
+                return sb.toString();
+            }
+        }
+        return null;
+    }
+
+    public static class Builder
+    {
+        private final List<String> pathPrefixes = new ArrayList<>();
+        private Function<HttpServerExchange, String> keyFunction;
+        private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+        private int maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+        private Builder()
+        {
+        }
+
+        public Builder addPathPrefix(String pathPrefix)
+        {
+            pathPrefixes.add(pathPrefix);
+            return this;
+        }
+
+        public Builder setKeyFunction(Function<HttpServerExchange, String> keyFunction)
+        {
+            this.keyFunction = keyFunction;
+            return this;
+        }
+
+        // Waiting requests are handled by themselves after this
+        public Builder setMaxWait(long duration, TimeUnit unit)
+        {
+            this.maxWaitMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        // Larger responses aren't shared, and the waiting requests are handled by themselves
+        public Builder setMaxResponseBytes(int maxResponseBytes)
+        {
+            this.maxResponseBytes = maxResponseBytes;
+            return this;
+        }
+
+        public RequestCoalescingPolicy build()
+        {
+            return new RequestCoalescingPolicy(this);
+        }
+    }
+}
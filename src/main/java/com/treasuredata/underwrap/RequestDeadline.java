@@ -0,0 +1,42 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.TimeUnit;
+
+// The deadline of a request, injectable to resources with `@Context RequestDeadline` when
+// `UnderwrapServer#setDeadlinePolicy()` is set. Null for requests without a deadline.
+//
+// Resources can pass the remaining time to downstream calls, or stop early when it's expired.
+public final class RequestDeadline
+{
+    private final String route;
+    private final long deadlineNanos;
+
+    RequestDeadline(String route, long deadlineNanos)
+    {
+        this.route = route;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    // The path prefix of DeadlinePolicy the deadline comes from, or DeadlinePolicy.DEFAULT_ROUTE
+    public String getRoute()
+    {
+        return route;
+    }
+
+    // Negative when expired
+    public long getRemaining(TimeUnit unit)
+    {
+        return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired()
+    {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RequestDeadline{route=" + route + ", remainingMillis=" + getRemaining(TimeUnit.MILLISECONDS) + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package com.treasuredata.underwrap;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Assigns requests to a resource class or method to a priority class of PriorityScheduler. An annotation on a method
+// takes precedence over one on the class
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface RequestPriority
+{
+    Priority value();
+}
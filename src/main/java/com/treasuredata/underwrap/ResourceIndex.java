@@ -0,0 +1,116 @@
+package com.treasuredata.underwrap;
+
+import javax.ws.rs.Path;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+// Resource methods and their routes, read by the handlers in front of the servlet deployment (ResponseCacheHandler,
+// Bulkheads and PriorityScheduler) instead of each scanning resource classes.
+//
+// UnderwrapServer scans the classes of UnderwrapApplication once at startup. An application with many resources can
+// skip the scan by returning an index built in advance (e.g. by generated code) from
+// UnderwrapApplication#resourceIndex().
+public final class ResourceIndex
+{
+    private final List<Entry> entries;
+
+    private ResourceIndex(List<Entry> entries)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    // Resource methods and sub-resource locators of public methods of `resourceClasses`
+    public static ResourceIndex scan(Collection<Class<?>> resourceClasses)
+    {
+        Builder builder = builder();
+        for (Class<?> resourceClass : resourceClasses) {
+            for (Method method : resourceClass.getMethods()) {
+                String httpMethod = ResourcePaths.httpMethodOf(method);
+                if (httpMethod.equals("*") && !method.isAnnotationPresent(Path.class)) {
+                    // Not a resource method
+                    continue;
+                }
+                builder.add(resourceClass, method, httpMethod, ResourcePaths.pathTemplateOf(resourceClass, method));
+            }
+        }
+        return builder.build();
+    }
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public static final class Entry
+    {
+        private final Class<?> resourceClass;
+        private final Method method;
+        private final String httpMethod;
+        private final String pathTemplate;
+
+        private Entry(Class<?> resourceClass, Method method, String httpMethod, String pathTemplate)
+        {
+            this.resourceClass = resourceClass;
+            this.method = method;
+            this.httpMethod = httpMethod;
+            this.pathTemplate = pathTemplate;
+        }
+
+        public Class<?> getResourceClass()
+        {
+            return resourceClass;
+        }
+
+        public Method getMethod()
+        {
+            return method;
+        }
+
+        // "GET", "POST" and so on, or "*" for sub-resource locators
+        public String getHttpMethod()
+        {
+            return httpMethod;
+        }
+
+        // @Path of the class and the method joined, e.g. "/users/{id: [0-9]+}"
+        public String getPathTemplate()
+        {
+            return pathTemplate;
+        }
+
+        @Override
+        public String toString()
+        {
+            return httpMethod + " " + pathTemplate + " " + resourceClass.getName() + "#" + method.getName();
+        }
+    }
+
+    public static class Builder
+    {
+        private final List<Entry> entries = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        public Builder add(Class<?> resourceClass, Method method, String httpMethod, String pathTemplate)
+        {
+            entries.add(new Entry(resourceClass, method, httpMethod, pathTemplate));
+            return this;
+        }
+
+        public ResourceIndex build()
+        {
+            return new ResourceIndex(new ArrayList<>(entries));
+        }
+    }
+}
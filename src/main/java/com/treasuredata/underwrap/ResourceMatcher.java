@@ -0,0 +1,152 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// Finds the JAX-RS path template that RESTEasy would select for a request path, with the regular expressions of path
+// parameters, for the handlers in front of the servlet deployment (ResponseCacheHandler, Bulkheads and
+// PriorityScheduler). Stripping the expressions would let "{id: \\d+}" match "/abc", which a sibling "{name}" serves.
+//
+// Templates are tried in the order of the JAX-RS specification (3.7.2): more literal characters first, then more
+// parameters, then more parameters with regular expressions, and resource methods before sub-resource locators, which
+// also match paths under their template. The first matching template decides: its value for the HTTP method,
+// or for "*", is returned, and a template without one hides less specific templates as it does in RESTEasy.
+final class ResourceMatcher<T>
+{
+    private static final Comparator<Template<?>> ORDER = Comparator
+            .comparingInt((Template<?> template) -> -template.literalCharacters)
+            .thenComparingInt(template -> -template.parameters)
+            .thenComparingInt(template -> -template.regexParameters)
+            .thenComparing(template -> template.locator);
+
+    private final List<Template<T>> templates = new ArrayList<>();
+
+    // All resource methods and sub-resource locators of `resourceIndex`, with values from `valueFunction`, which may
+    // return null for methods the caller doesn't handle
+    static <T> ResourceMatcher<T> of(ResourceIndex resourceIndex, Function<ResourceIndex.Entry, T> valueFunction)
+    {
+        ResourceMatcher<T> matcher = new ResourceMatcher<>();
+        for (ResourceIndex.Entry entry : resourceIndex.getEntries()) {
+            boolean locator = entry.getHttpMethod().equals("*");
+            matcher.put(entry.getPathTemplate(), locator, entry.getHttpMethod(), valueFunction.apply(entry));
+        }
+        return matcher;
+    }
+
+    // A template matching the whole path, for `httpMethod` or "*" for any method. A value added before for the same
+    // template and method is kept
+    ResourceMatcher<T> add(String pathTemplate, String httpMethod, T value)
+    {
+        put(pathTemplate, false, httpMethod, value);
+        return this;
+    }
+
+    private void put(String pathTemplate, boolean locator, String httpMethod, T value)
+    {
+        for (Template<T> template : templates) {
+            if (template.source.equals(pathTemplate) && template.locator == locator) {
+                if (value != null) {
+                    template.values.putIfAbsent(httpMethod, value);
+                }
+                else if (!template.values.containsKey(httpMethod)) {
+                    template.values.put(httpMethod, null);
+                }
+                return;
+            }
+        }
+        Template<T> template = new Template<>(pathTemplate, locator);
+        template.values.put(httpMethod, value);
+        templates.add(template);
+        templates.sort(ORDER);
+    }
+
+    // Returns null if no template matches, or the matching one has no value for `httpMethod`
+    T match(String path, String httpMethod)
+    {
+        for (Template<T> template : templates) {
+            if (path.startsWith(template.literalPrefix) && template.pattern.matcher(path).matches()) {
+                T value = template.values.get(httpMethod);
+                return value != null ? value : template.values.get("*");
+            }
+        }
+        return null;
+    }
+
+    private static final class Template<T>
+    {
+        final String source;
+        final boolean locator;
+        final Pattern pattern;
+        final String literalPrefix;
+        final int literalCharacters;
+        final int parameters;
+        final int regexParameters;
+        // HTTP method ("*" for any) -> value, which may be null
+        final Map<String, T> values = new HashMap<>();
+
+        Template(String source, boolean locator)
+        {
+            this.source = source;
+            this.locator = locator;
+            String template = source;
+            while (template.endsWith("/")) {
+                template = template.substring(0, template.length() - 1);
+            }
+            StringBuilder regex = new StringBuilder();
+            int literals = 0;
+            int parameters = 0;
+            int regexParameters = 0;
+            int prefixEnd = -1;
+            int i = 0;
+            while (i < template.length()) {
+                int open = template.indexOf('{', i);
+                String literal = template.substring(i, open < 0 ? template.length() : open);
+                regex.append(Pattern.quote(literal));
+                literals += literal.length();
+                if (open < 0) {
+                    break;
+                }
+                if (prefixEnd < 0) {
+                    prefixEnd = open;
+                }
+                // The parameter ends at the brace closing the one at `open`, as expressions can have braces
+                int depth = 0;
+                int close = open;
+                for (; close < template.length(); close++) {
+                    char c = template.charAt(close);
+                    if (c == '{') {
+                        depth++;
+                    }
+                    else if (c == '}' && --depth == 0) {
+                        break;
+                    }
+                }
+                if (close == template.length()) {
+                    throw new IllegalArgumentException("Unclosed path parameter: " + source);
+                }
+                String parameter = template.substring(open + 1, close);
+                int colon = parameter.indexOf(':');
+                parameters++;
+                if (colon >= 0) {
+                    regexParameters++;
+                    regex.append('(').append(parameter.substring(colon + 1).trim()).append(')');
+                }
+                else {
+                    regex.append("([^/]+?)");
+                }
+                i = close + 1;
+            }
+            regex.append(locator ? "(/.*)?" : "(/)?");
+            this.pattern = Pattern.compile(regex.toString());
+            this.literalPrefix = prefixEnd < 0 ? template : template.substring(0, prefixEnd);
+            this.literalCharacters = literals;
+            this.parameters = parameters;
+            this.regexParameters = regexParameters;
+        }
+    }
+}
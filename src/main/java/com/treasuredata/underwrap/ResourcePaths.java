@@ -0,0 +1,51 @@
+package com.treasuredata.underwrap;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+// Helpers to derive routes from JAX-RS annotations without going through RESTEasy
+final class ResourcePaths
+{
+    private ResourcePaths()
+    {
+    }
+
+    // "GET", "POST" and so on, or "*" for sub-resource locators
+    static String httpMethodOf(Method method)
+    {
+        for (Annotation annotation : method.getAnnotations()) {
+            HttpMethod httpMethod = annotation.annotationType().getAnnotation(HttpMethod.class);
+            if (httpMethod != null) {
+                return httpMethod.value();
+            }
+        }
+        return "*";
+    }
+
+    // @Path of the class and the method joined, e.g. "/users/{id: [0-9]+}"
+    static String pathTemplateOf(Class<?> resourceClass, Method method)
+    {
+        StringBuilder sb = new StringBuilder();
+        appendPath(sb, resourceClass.getAnnotation(Path.class));
+        appendPath(sb, method.getAnnotation(Path.class));
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    private static void appendPath(StringBuilder sb, Path path)
+    {
+        if (path == null) {
+            return;
+        }
+        String value = path.value();
+        if (!value.startsWith("/")) {
+            sb.append('/');
+        }
+        sb.append(value);
+        while (sb.length() > 0 && sb.charAt(sb.length() - 1) == '/') {
+            sb.setLength(sb.length() - 1);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.Hashing;
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+import org.xnio.conduits.StreamSinkConduit;
+
+import javax.ws.rs.HttpMethod;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+// Serves cached responses of GET routes from the IO thread, without dispatching to the servlet deployment.
+//
+// On a miss, the response body is captured while it's written and stored on completion if the response is cacheable
+// (200, no Set-Cookie, no `Cache-Control: no-store/private`, not larger than `maxEntryBytes`). Bodies are kept in
+// direct ByteBuffers, in a Guava cache bounded by the total body size with LRU eviction. The response headers set by
+// the application are stored with it (see ResponseHeaderSnapshot), and replayed on hits.
+//
+// Entries are keyed by the path, the query string, Accept and the route's vary headers. Requests with Authorization
+// bypass the cache unless the route varies on it. Hits have a strong ETag and If-None-Match is answered with 304.
+public class ResponseCacheHandler
+    implements HttpHandler
+{
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final HttpHandler next;
+    private final int maxEntryBytes;
+    private final ResourceMatcher<ResponseCachePolicy.Route> policyRoutes = new ResourceMatcher<>();
+    // @Cached GET methods, and null for the other methods, which RESTEasy may select over a @Cached one
+    private final ResourceMatcher<ResponseCachePolicy.Route> resourceRoutes;
+    private final Cache<String, Entry> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    // Set by UnderwrapServer with CompressionPolicy#isPrecompressCachedResponses(), before requests are handled
+    private CompressionPolicy compressionPolicy;
+    private GzipCompressor compressor;
+
+    public ResponseCacheHandler(HttpHandler next, ResponseCachePolicy policy, Collection<Class<?>> resourceClasses)
+    {
+        this(next, policy, ResourceIndex.scan(resourceClasses));
+    }
+
+    public ResponseCacheHandler(HttpHandler next, ResponseCachePolicy policy, ResourceIndex resourceIndex)
+    {
+        this.next = next;
+        this.maxEntryBytes = policy.getMaxEntryBytes();
+        for (ResponseCachePolicy.Route route : policy.getRoutes()) {
+            policyRoutes.add(route.pathTemplate, "*", route);
+        }
+        this.resourceRoutes = ResourceMatcher.of(resourceIndex, entry -> {
+            Cached cached = entry.getMethod().getAnnotation(Cached.class);
+            if (cached == null || !entry.getHttpMethod().equals(HttpMethod.GET)) {
+                return null;
+            }
+            return new ResponseCachePolicy.Route(entry.getPathTemplate(), cached.unit().toNanos(cached.ttl()), cached.varyHeaders());
+        });
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(policy.getMaxBytes())
+                .weigher((String key, Entry entry) -> entry.weight)
+                .removalListener((RemovalListener<String, Entry>) notification -> {
+                    bytes.add(-notification.getValue().bodyBytes());
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        if (!exchange.getRequestMethod().equals(Methods.GET)) {
+            next.handleRequest(exchange);
+            return;
+        }
+        // Routes in the policy take precedence
+        ResponseCachePolicy.Route route = policyRoutes.match(exchange.getRelativePath(), Methods.GET_STRING);
+        if (route == null) {
+            route = resourceRoutes.match(exchange.getRelativePath(), Methods.GET_STRING);
+        }
+        if (route == null) {
+            next.handleRequest(exchange);
+            return;
+        }
+        if (exchange.getRequestHeaders().contains(Headers.AUTHORIZATION) && !varies(route, Headers.AUTHORIZATION)) {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        String key = key(exchange, route);
+        Entry entry = cache.getIfPresent(key);
+        long now = System.nanoTime();
+        if (entry != null) {
+            if (entry.expiresAt - now > 0) {
+                hits.increment();
+                serve(exchange, entry);
+                return;
+            }
+            cache.asMap().remove(key, entry);
+        }
+
+        misses.increment();
+        Store store = new Store(key, route);
+        exchange.addResponseWrapper(store);
+        exchange.addExchangeCompleteListener(store);
+        next.handleRequest(exchange);
+    }
+
+    // Keeps a gzipped copy of compressible entries, served with Content-Encoding so that CompressionHandler passes it
+    // through as it is
+    void setCompression(CompressionPolicy compressionPolicy, GzipCompressor compressor)
+    {
+        this.compressionPolicy = compressionPolicy;
+        this.compressor = compressor;
+    }
+
+    private void serve(HttpServerExchange exchange, Entry entry)
+    {
+        HeaderMap responseHeaders = exchange.getResponseHeaders();
+        boolean gzip = entry.gzipBody != null && GzipCompressor.accepts(exchange.getRequestHeaders());
+        String etag = gzip ? entry.gzipEtag : entry.etag;
+        ByteBuffer body = gzip ? entry.gzipBody : entry.body;
+        entry.headers.applyTo(exchange);
+        responseHeaders.put(Headers.ETAG, etag);
+        if (entry.gzipBody != null) {
+            responseHeaders.add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+        }
+        if (matches(exchange.getRequestHeaders().get(Headers.IF_NONE_MATCH), etag)) {
+            notModified.increment();
+            exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+            exchange.endExchange();
+            return;
+        }
+        if (gzip) {
+            responseHeaders.put(Headers.CONTENT_ENCODING, "gzip");
+        }
+        responseHeaders.put(Headers.CONTENT_LENGTH, body.remaining());
+        exchange.getResponseSender().send(body.duplicate());
+    }
+
+    private static boolean matches(HeaderValues ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String value : ifNoneMatch) {
+            for (String tag : value.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean varies(ResponseCachePolicy.Route route, HttpString header)
+    {
+        for (String varyHeader : route.varyHeaders) {
+            if (header.equalToString(varyHeader)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(HttpServerExchange exchange, ResponseCachePolicy.Route route)
+    {
+        StringBuilder sb = new StringBuilder(exchange.getRequestPath());
+        if (!exchange.getQueryString().isEmpty()) {
+            sb.append('?').append(exchange.getQueryString());
+        }
+        HeaderMap requestHeaders = exchange.getRequestHeaders();
+        appendHeader(sb, requestHeaders, Headers.ACCEPT_STRING);
+        for (String varyHeader : route.varyHeaders) {
+            appendHeader(sb, requestHeaders, varyHeader);
+        }
+        return sb.toString();
+    }
+
+    private static void appendHeader(StringBuilder sb, HeaderMap headers, String name)
+    {
+        sb.append('\n');
+        HeaderValues values = headers.get(name);
+        if (values != null) {
+            for (String value : values) {
+                sb.append(value).append(',');
+            }
+        }
+    }
+
+    private static boolean isCacheable(HttpServerExchange exchange)
+    {
+        if (exchange.getStatusCode() != StatusCodes.OK) {
+            return false;
+        }
+        HeaderMap responseHeaders = exchange.getResponseHeaders();
+        if (responseHeaders.contains(Headers.SET_COOKIE)) {
+            return false;
+        }
+        HeaderValues cacheControl = responseHeaders.get(Headers.CACHE_CONTROL);
+        if (cacheControl != null) {
+            for (String value : cacheControl) {
+                if (value.contains("no-store") || value.contains("private")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    // Hits answered with 304. Included in `getHitCount()`
+    public long getNotModifiedCount()
+    {
+        return notModified.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    // Total size of cached bodies
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    public long getEntryCount()
+    {
+        return cache.size();
+    }
+
+    private static class Entry
+    {
+        final ByteBuffer body;
+        final ResponseHeaderSnapshot headers;
+        final String etag;
+        final long expiresAt;
+        final int weight;
+        // Null unless precompressed
+        final ByteBuffer gzipBody;
+        final String gzipEtag;
+
+        Entry(ByteBuffer body, ResponseHeaderSnapshot headers, String etag, long expiresAt, int weight, ByteBuffer gzipBody, String gzipEtag)
+        {
+            this.body = body;
+            this.headers = headers;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+            this.gzipBody = gzipBody;
+            this.gzipEtag = gzipEtag;
+        }
+
+        int bodyBytes()
+        {
+            return body.capacity() + (gzipBody == null ? 0 : gzipBody.capacity());
+        }
+    }
+
+    // Captures the body of a miss and stores it on completion
+    private class Store
+        implements ConduitWrapper<StreamSinkConduit>, ExchangeCompletionListener
+    {
+        private final String key;
+        private final ResponseCachePolicy.Route route;
+        private CapturingStreamSinkConduit conduit;
+        private ResponseHeaderSnapshot headers;
+
+        Store(String key, ResponseCachePolicy.Route route)
+        {
+            this.key = key;
+            this.route = route;
+        }
+
+        @Override
+        public StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange)
+        {
+            headers = ResponseHeaderSnapshot.of(exchange);
+            conduit = new CapturingStreamSinkConduit(factory.create(), maxEntryBytes);
+            return conduit;
+        }
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener)
+        {
+            try {
+                if (conduit != null && conduit.isComplete() && isCacheable(exchange)) {
+                    store(exchange);
+                }
+            }
+            finally {
+                nextListener.proceed();
+            }
+        }
+
+        private void store(HttpServerExchange exchange)
+        {
+            byte[] captured = conduit.toByteArray();
+            String hash = Hashing.murmur3_128().hashBytes(captured).toString();
+            ByteBuffer gzipBody = null;
+            // Bodies encoded by the application are stored and served as they are
+            if (compressor != null && !headers.contains(Headers.CONTENT_ENCODING) && captured.length >= compressionPolicy.getMinBytes()
+                    && compressionPolicy.isCompressible(headers.getFirst(Headers.CONTENT_TYPE))) {
+                gzipBody = directCopy(compressor.compress(captured, 0, captured.length));
+            }
+            int bodyBytes = captured.length + (gzipBody == null ? 0 : gzipBody.capacity());
+            Entry entry = new Entry(directCopy(captured), headers, '"' + hash + '"', System.nanoTime() + route.ttlNanos,
+                    bodyBytes + (key.length() + headers.size()) * 2 + ENTRY_OVERHEAD_BYTES, gzipBody, gzipBody == null ? null : '"' + hash + "-gzip\"");
+            bytes.add(bodyBytes);
+            cache.put(key, entry);
+        }
+    }
+
+    private static ByteBuffer directCopy(byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
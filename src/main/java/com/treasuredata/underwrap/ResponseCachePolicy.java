@@ -0,0 +1,97 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Configuration of ResponseCacheHandler.
+//
+// Routes are GET path templates (e.g. "/users/{id}") with a TTL. Resource methods annotated with @Cached are added
+// automatically.
+public final class ResponseCachePolicy
+{
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final List<Route> routes;
+
+    private ResponseCachePolicy(Builder builder)
+    {
+        this.maxBytes = builder.maxBytes;
+        this.maxEntryBytes = builder.maxEntryBytes;
+        this.routes = Collections.unmodifiableList(new ArrayList<>(builder.routes));
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public int getMaxEntryBytes()
+    {
+        return maxEntryBytes;
+    }
+
+    List<Route> getRoutes()
+    {
+        return routes;
+    }
+
+    static class Route
+    {
+        final String pathTemplate;
+        final long ttlNanos;
+        final String[] varyHeaders;
+
+        Route(String pathTemplate, long ttlNanos, String[] varyHeaders)
+        {
+            this.pathTemplate = pathTemplate;
+            this.ttlNanos = ttlNanos;
+            this.varyHeaders = varyHeaders;
+        }
+    }
+
+    public static class Builder
+    {
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private int maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+        private final List<Route> routes = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        // Total size of cached bodies. Least recently used entries are evicted beyond this
+        public Builder setMaxBytes(long maxBytes)
+        {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        // Larger responses aren't cached
+        public Builder setMaxEntryBytes(int maxEntryBytes)
+        {
+            this.maxEntryBytes = maxEntryBytes;
+            return this;
+        }
+
+        public Builder addRoute(String pathTemplate, long ttl, TimeUnit unit, String... varyHeaders)
+        {
+            routes.add(new Route(pathTemplate, unit.toNanos(ttl), varyHeaders));
+            return this;
+        }
+
+        public ResponseCachePolicy build()
+        {
+            return new ResponseCachePolicy(this);
+        }
+    }
+}
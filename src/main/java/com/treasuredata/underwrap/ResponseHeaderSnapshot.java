@@ -0,0 +1,73 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Response headers of a captured response, replayed by ResponseCacheHandler and RequestCoalescingHandler.
+//
+// Taken by their response wrappers, which run before the one of CompressionHandler (wrappers added later run first),
+// so Content-Encoding is included only when the application encoded the body by itself. Headers about the connection
+// or the framing of this particular response aren't kept.
+final class ResponseHeaderSnapshot
+{
+    private static final Set<HttpString> EXCLUDED = new HashSet<>(Arrays.asList(
+            Headers.CONTENT_LENGTH, Headers.TRANSFER_ENCODING, Headers.CONNECTION, new HttpString("Keep-Alive"),
+            Headers.DATE, Headers.SET_COOKIE, new HttpString("Server-Timing")));
+
+    private final HeaderMap headers;
+    private final int size;
+
+    private ResponseHeaderSnapshot(HeaderMap headers, int size)
+    {
+        this.headers = headers;
+        this.size = size;
+    }
+
+    static ResponseHeaderSnapshot of(HttpServerExchange exchange)
+    {
+        HeaderMap headers = new HeaderMap();
+        int size = 0;
+        for (HeaderValues values : exchange.getResponseHeaders()) {
+            if (EXCLUDED.contains(values.getHeaderName())) {
+                continue;
+            }
+            headers.putAll(values.getHeaderName(), values);
+            for (String value : values) {
+                size += values.getHeaderName().length() + value.length();
+            }
+        }
+        return new ResponseHeaderSnapshot(headers, size);
+    }
+
+    // Replaces the same headers of `exchange`
+    void applyTo(HttpServerExchange exchange)
+    {
+        HeaderMap target = exchange.getResponseHeaders();
+        for (HeaderValues values : headers) {
+            target.putAll(values.getHeaderName(), values);
+        }
+    }
+
+    String getFirst(HttpString name)
+    {
+        return headers.getFirst(name);
+    }
+
+    boolean contains(HttpString name)
+    {
+        return headers.contains(name);
+    }
+
+    // Characters of the names and values, as an estimate of the memory used
+    int size()
+    {
+        return size;
+    }
+}
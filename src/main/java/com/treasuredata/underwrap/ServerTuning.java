@@ -0,0 +1,231 @@
+package com.treasuredata.underwrap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+// IO threads, worker threads and buffers chosen from the CPUs and memory available to the process, for
+// `UnderwrapServer#setWorkload`.
+//
+// CPUs are the smaller of `Runtime#availableProcessors()` and the CFS quota of the cgroup, as JVMs before 8u191
+// don't see the quota. Memory is the smaller of the max heap and the cgroup memory limit. Both cgroup v1 and v2
+// are read from /sys/fs/cgroup.
+//
+// - IO threads: one per CPU, at least 2, the same as Undertow
+// - Worker threads: 2 per CPU for CPU_BOUND, where more threads only add context switches. 16 per CPU for BLOCKING,
+//   limited so that thread stacks take at most a quarter of the memory outside the heap
+// - Buffers: 16KB direct buffers, or smaller ones below 128MB of memory as Undertow does. At most 4 pooled buffers
+//   per thread, and at most 1/16 of the memory in the pool
+public final class ServerTuning
+{
+    public enum Workload
+    {
+        // Handlers mostly compute, or run asynchronously without blocking worker threads
+        CPU_BOUND,
+        // Handlers block on databases and remote services
+        BLOCKING,
+    }
+
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+    // Values of memory.limit_in_bytes above this are "unlimited" (the page counter maximum rounded to pages)
+    private static final long CGROUP_V1_UNLIMITED = Long.MAX_VALUE / 2;
+    private static final long THREAD_STACK_BYTES = 1024 * 1024;
+    static final int POOLED_BUFFERS_PER_THREAD = 4;
+
+    private final Workload workload;
+    private final int cpus;
+    private final long memoryLimitBytes;
+    private final int ioThreads;
+    private final int workerThreads;
+    private final int bufferSize;
+    private final boolean directBuffers;
+    private final int maxPooledBuffers;
+
+    private ServerTuning(Workload workload, int cpus, long memoryLimitBytes, int ioThreads, int workerThreads, int bufferSize, boolean directBuffers, int maxPooledBuffers)
+    {
+        this.workload = workload;
+        this.cpus = cpus;
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.ioThreads = ioThreads;
+        this.workerThreads = workerThreads;
+        this.bufferSize = bufferSize;
+        this.directBuffers = directBuffers;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    public static ServerTuning detect(Workload workload)
+    {
+        return detect(workload, CGROUP_ROOT, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+    }
+
+    static ServerTuning detect(Workload workload, Path cgroupRoot, int availableProcessors, long maxHeapBytes)
+    {
+        int cpus = availableProcessors;
+        double quota = readCpuQuota(cgroupRoot);
+        if (quota > 0) {
+            cpus = Math.min(cpus, (int) Math.ceil(quota));
+        }
+        cpus = Math.max(cpus, 1);
+        long memoryLimit = readMemoryLimit(cgroupRoot);
+        long memoryBytes = memoryLimit > 0 ? Math.min(maxHeapBytes, memoryLimit) : maxHeapBytes;
+
+        int ioThreads = Math.max(cpus, 2);
+        int workerThreads;
+        switch (workload) {
+            case CPU_BOUND:
+                workerThreads = Math.max(cpus * 2, 4);
+                break;
+            case BLOCKING:
+                workerThreads = Math.max(cpus * 16, 16);
+                if (memoryLimit > 0) {
+                    long stackBudget = Math.max(memoryLimit - maxHeapBytes, 0) / 4;
+                    workerThreads = (int) Math.max(Math.min(workerThreads, stackBudget / THREAD_STACK_BYTES), cpus * 2);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+
+        int bufferSize;
+        boolean directBuffers;
+        if (memoryBytes < 64 * 1024 * 1024) {
+            bufferSize = 512;
+            directBuffers = false;
+        }
+        else if (memoryBytes < 128 * 1024 * 1024) {
+            bufferSize = 1024;
+            directBuffers = true;
+        }
+        else {
+            bufferSize = 16 * 1024;
+            directBuffers = true;
+        }
+        int maxPooledBuffers = (int) Math.min((long) (ioThreads + workerThreads) * POOLED_BUFFERS_PER_THREAD, memoryBytes / 16 / bufferSize);
+        return new ServerTuning(workload, cpus, memoryLimit, ioThreads, workerThreads, bufferSize, directBuffers, maxPooledBuffers);
+    }
+
+    // CPUs allowed by the CFS quota, or 0 if unlimited or unknown
+    static double readCpuQuota(Path cgroupRoot)
+    {
+        // v2: "$MAX $PERIOD", where $MAX may be "max"
+        String cpuMax = readFirstLine(cgroupRoot.resolve("cpu.max"));
+        if (cpuMax != null) {
+            String[] fields = cpuMax.trim().split("\\s+");
+            if (fields.length != 2 || fields[0].equals("max")) {
+                return 0;
+            }
+            return ratio(fields[0], fields[1]);
+        }
+        // v1: quota is -1 if unlimited
+        String quota = readFirstLine(cgroupRoot.resolve("cpu/cpu.cfs_quota_us"));
+        String period = readFirstLine(cgroupRoot.resolve("cpu/cpu.cfs_period_us"));
+        if (quota == null || period == null) {
+            return 0;
+        }
+        return ratio(quota.trim(), period.trim());
+    }
+
+    // Bytes, or -1 if unlimited or unknown
+    static long readMemoryLimit(Path cgroupRoot)
+    {
+        String memoryMax = readFirstLine(cgroupRoot.resolve("memory.max"));
+        if (memoryMax != null) {
+            return memoryMax.trim().equals("max") ? -1 : parsePositive(memoryMax.trim());
+        }
+        String limit = readFirstLine(cgroupRoot.resolve("memory/memory.limit_in_bytes"));
+        if (limit == null) {
+            return -1;
+        }
+        long value = parsePositive(limit.trim());
+        return value >= CGROUP_V1_UNLIMITED ? -1 : value;
+    }
+
+    private static double ratio(String quota, String period)
+    {
+        long q = parsePositive(quota);
+        long p = parsePositive(period);
+        return q > 0 && p > 0 ? (double) q / p : 0;
+    }
+
+    private static long parsePositive(String value)
+    {
+        try {
+            long parsed = Long.parseLong(value);
+            return parsed > 0 ? parsed : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readFirstLine(Path path)
+    {
+        try {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            return lines.isEmpty() ? null : lines.get(0);
+        }
+        catch (IOException | SecurityException e) {
+            // Not in a cgroup of this version, or not readable
+            return null;
+        }
+    }
+
+    public Workload getWorkload()
+    {
+        return workload;
+    }
+
+    public int getCpus()
+    {
+        return cpus;
+    }
+
+    // The cgroup memory limit, or -1 if there isn't
+    public long getMemoryLimitBytes()
+    {
+        return memoryLimitBytes;
+    }
+
+    public int getIoThreads()
+    {
+        return ioThreads;
+    }
+
+    public int getWorkerThreads()
+    {
+        return workerThreads;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public boolean isDirectBuffers()
+    {
+        return directBuffers;
+    }
+
+    public int getMaxPooledBuffers()
+    {
+        return maxPooledBuffers;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServerTuning{" +
+                "workload=" + workload +
+                ", cpus=" + cpus +
+                ", memoryLimitBytes=" + memoryLimitBytes +
+                ", ioThreads=" + ioThreads +
+                ", workerThreads=" + workerThreads +
+                ", bufferSize=" + bufferSize +
+                ", directBuffers=" + directBuffers +
+                ", maxPooledBuffers=" + maxPooledBuffers +
+                '}';
+    }
+}
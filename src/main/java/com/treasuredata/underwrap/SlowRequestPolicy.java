@@ -0,0 +1,129 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.TimeUnit;
+
+// Configuration of SlowRequestWatchdog
+public final class SlowRequestPolicy
+{
+    private final long thresholdNanos;
+    private final long sampleIntervalNanos;
+    private final int maxSamples;
+    private final int maxStackDepth;
+    private final int maxReports;
+    private final int maxInFlight;
+
+    private SlowRequestPolicy(Builder builder)
+    {
+        this.thresholdNanos = builder.thresholdNanos;
+        this.sampleIntervalNanos = builder.sampleIntervalNanos;
+        this.maxSamples = builder.maxSamples;
+        this.maxStackDepth = builder.maxStackDepth;
+        this.maxReports = builder.maxReports;
+        this.maxInFlight = builder.maxInFlight;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public long getThresholdNanos()
+    {
+        return thresholdNanos;
+    }
+
+    public long getSampleIntervalNanos()
+    {
+        return sampleIntervalNanos;
+    }
+
+    public int getMaxSamples()
+    {
+        return maxSamples;
+    }
+
+    public int getMaxStackDepth()
+    {
+        return maxStackDepth;
+    }
+
+    public int getMaxReports()
+    {
+        return maxReports;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public static class Builder
+    {
+        private long thresholdNanos = TimeUnit.SECONDS.toNanos(5);
+        private long sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        private int maxSamples = 10;
+        private int maxStackDepth = 32;
+        private int maxReports = 20;
+        private int maxInFlight = 1024;
+
+        private Builder()
+        {
+        }
+
+        // Requests running longer than this (from the request start) are sampled
+        public Builder setThreshold(long duration, TimeUnit unit)
+        {
+            this.thresholdNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // Interval of checking in-flight requests and of taking stack samples of slow ones
+        public Builder setSampleInterval(long duration, TimeUnit unit)
+        {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("sampleInterval must be positive: " + duration);
+            }
+            this.sampleIntervalNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // Stack samples taken per request at most
+        public Builder setMaxSamples(int maxSamples)
+        {
+            this.maxSamples = maxSamples;
+            return this;
+        }
+
+        public Builder setMaxStackDepth(int maxStackDepth)
+        {
+            this.maxStackDepth = maxStackDepth;
+            return this;
+        }
+
+        // Reports of the slowest requests kept
+        public Builder setMaxReports(int maxReports)
+        {
+            if (maxReports < 1) {
+                throw new IllegalArgumentException("maxReports must be at least 1: " + maxReports);
+            }
+            this.maxReports = maxReports;
+            return this;
+        }
+
+        // Requests running at once that can be tracked. Rounded up to a power of two. Requests over this aren't
+        // watched
+        public Builder setMaxInFlight(int maxInFlight)
+        {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public SlowRequestPolicy build()
+        {
+            return new SlowRequestPolicy(this);
+        }
+    }
+}
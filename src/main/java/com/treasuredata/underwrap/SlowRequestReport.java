@@ -0,0 +1,96 @@
+package com.treasuredata.underwrap;
+
+import java.util.List;
+import java.util.Map;
+
+// A request that ran longer than the threshold of SlowRequestWatchdog, with stack samples of the thread running it
+public final class SlowRequestReport
+{
+    private final String method;
+    private final String path;
+    private final String threadName;
+    private final long startTimeMillis;
+    private final long durationNanos;
+    private final Map<String, Long> phaseNanos;
+    private final int sampleCount;
+    private final List<Stack> stacks;
+
+    SlowRequestReport(String method, String path, String threadName, long startTimeMillis, long durationNanos,
+            Map<String, Long> phaseNanos, int sampleCount, List<Stack> stacks)
+    {
+        this.method = method;
+        this.path = path;
+        this.threadName = threadName;
+        this.startTimeMillis = startTimeMillis;
+        this.durationNanos = durationNanos;
+        this.phaseNanos = phaseNanos;
+        this.sampleCount = sampleCount;
+        this.stacks = stacks;
+    }
+
+    public String getMethod()
+    {
+        return method;
+    }
+
+    // Including the query string
+    public String getPath()
+    {
+        return path;
+    }
+
+    public String getThreadName()
+    {
+        return threadName;
+    }
+
+    public long getStartTimeMillis()
+    {
+        return startTimeMillis;
+    }
+
+    // From the request start until the thread finished the request
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    // Measured PhaseTimings phases, keyed by labels. Empty unless phase timing is enabled
+    public Map<String, Long> getPhaseNanos()
+    {
+        return phaseNanos;
+    }
+
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    // Distinct stacks, the most sampled first
+    public List<Stack> getStacks()
+    {
+        return stacks;
+    }
+
+    public static final class Stack
+    {
+        private final List<StackTraceElement> frames;
+        private final int count;
+
+        Stack(List<StackTraceElement> frames, int count)
+        {
+            this.frames = frames;
+            this.count = count;
+        }
+
+        public List<StackTraceElement> getFrames()
+        {
+            return frames;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Finds requests that run longer than a threshold, and samples the stack of the thread running them.
+//
+// `dispatcher()` wraps the servlet deployment and puts each request into a slot of a fixed-size array while a thread
+// runs it, with a CAS to claim the slot and a plain volatile write to free it. A single daemon thread scans the
+// slots every `sampleInterval`, and takes a stack sample (Thread#getStackTrace()) of requests over the threshold, up
+// to `maxSamples` per request. So a request that stays fast costs one small allocation, two atomic writes and an
+// uncontended lock.
+//
+// When a slow request finishes, its samples are aggregated by distinct stack into a SlowRequestReport. The slowest
+// `maxReports` reports are kept in a min-heap by duration, so that a new report replaces the fastest one kept only
+// when it's slower. `getReports()` returns them the slowest first, and `reportHandler()` renders them as text.
+public class SlowRequestWatchdog
+{
+    private final SlowRequestPolicy policy;
+    private final AtomicReferenceArray<InFlight> slots;
+    private final int mask;
+    private final LongAdder slowRequests = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+    private final ScheduledExecutorService scanner;
+
+    // Guarded by `this`
+    private final PriorityQueue<SlowRequestReport> reports;
+
+    public SlowRequestWatchdog(SlowRequestPolicy policy)
+    {
+        this.policy = policy;
+        int size = Integer.highestOneBit(Math.max(1, policy.getMaxInFlight() - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.reports = new PriorityQueue<>(policy.getMaxReports(), Comparator.comparingLong(SlowRequestReport::getDurationNanos));
+        this.scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("slow-request-watchdog")
+                .build());
+        scanner.scheduleWithFixedDelay(this::scan, policy.getSampleIntervalNanos(), policy.getSampleIntervalNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    // Wraps the servlet deployment itself, so that requests are watched on the thread running them
+    public HttpHandler dispatcher(HttpHandler next)
+    {
+        HttpHandler watchingHandler = exchange -> {
+            InFlight inFlight = register(exchange);
+            try {
+                next.handleRequest(exchange);
+            }
+            finally {
+                if (inFlight != null) {
+                    release(inFlight);
+                }
+            }
+        };
+        return exchange -> {
+            if (exchange.isInIoThread()) {
+                exchange.dispatch(watchingHandler);
+            }
+            else {
+                watchingHandler.handleRequest(exchange);
+            }
+        };
+    }
+
+    private InFlight register(HttpServerExchange exchange)
+    {
+        long start = exchange.getRequestStartTime();
+        InFlight inFlight = new InFlight(exchange, Thread.currentThread(), start == -1 ? System.nanoTime() : start);
+        int first = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            int index = (first + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, inFlight)) {
+                inFlight.slot = index;
+                return inFlight;
+            }
+        }
+        untracked.increment();
+        return null;
+    }
+
+    private void release(InFlight inFlight)
+    {
+        // Finished before the slot is freed, so that the scanner can't sample the thread after it leaves the request
+        SlowRequestReport report = inFlight.finish(System.nanoTime());
+        slots.set(inFlight.slot, null);
+        if (report != null) {
+            slowRequests.increment();
+            keep(report);
+        }
+    }
+
+    // Visible for testing
+    synchronized void keep(SlowRequestReport report)
+    {
+        if (reports.size() < policy.getMaxReports()) {
+            reports.add(report);
+        }
+        else if (reports.peek().getDurationNanos() < report.getDurationNanos()) {
+            reports.poll();
+            reports.add(report);
+        }
+    }
+
+    private void scan()
+    {
+        long now = System.nanoTime();
+        for (int i = 0; i <= mask; i++) {
+            InFlight inFlight = slots.get(i);
+            if (inFlight != null && now - inFlight.start >= policy.getThresholdNanos()) {
+                inFlight.sample(policy.getMaxSamples(), policy.getMaxStackDepth());
+            }
+        }
+    }
+
+    public void close()
+    {
+        scanner.shutdownNow();
+    }
+
+    // Slow requests finished so far
+    public long getSlowRequestCount()
+    {
+        return slowRequests.sum();
+    }
+
+    // Requests not watched because all slots were used
+    public long getUntrackedCount()
+    {
+        return untracked.sum();
+    }
+
+    // The slowest reports, the slowest first
+    public List<SlowRequestReport> getReports()
+    {
+        List<SlowRequestReport> list;
+        synchronized (this) {
+            list = new ArrayList<>(reports);
+        }
+        list.sort((a, b) -> Long.compare(b.getDurationNanos(), a.getDurationNanos()));
+        return Collections.unmodifiableList(list);
+    }
+
+    // Serves `getReports()` as plain text, on the IO thread
+    public HttpHandler reportHandler()
+    {
+        return exchange -> {
+            if (!exchange.getRequestMethod().equals(Methods.GET)) {
+                exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+                exchange.getResponseHeaders().put(Headers.ALLOW, "GET");
+                exchange.endExchange();
+                return;
+            }
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; charset=utf-8");
+            exchange.getResponseSender().send(render(getReports()), StandardCharsets.UTF_8);
+        };
+    }
+
+    static String render(List<SlowRequestReport> reports)
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ENGLISH);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder sb = new StringBuilder();
+        for (SlowRequestReport report : reports) {
+            sb.append(report.getMethod()).append(' ').append(report.getPath())
+                    .append(' ').append(TimeUnit.NANOSECONDS.toMillis(report.getDurationNanos())).append("ms")
+                    .append(" started=").append(dateFormat.format(new Date(report.getStartTimeMillis())))
+                    .append(" thread=").append(report.getThreadName());
+            for (Map.Entry<String, Long> phase : report.getPhaseNanos().entrySet()) {
+                sb.append(' ').append(phase.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(phase.getValue())).append("ms");
+            }
+            sb.append('\n');
+            for (SlowRequestReport.Stack stack : report.getStacks()) {
+                sb.append("  ").append(stack.getCount()).append('/').append(report.getSampleCount()).append(" samples\n");
+                for (StackTraceElement frame : stack.getFrames()) {
+                    sb.append("    at ").append(frame).append('\n');
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class InFlight
+    {
+        final HttpServerExchange exchange;
+        final Thread thread;
+        final long start;
+        final long startTimeMillis = System.currentTimeMillis();
+        int slot;
+
+        // Guarded by `this`
+        private final Map<List<StackTraceElement>, Integer> stacks = new HashMap<>();
+        private int sampleCount;
+        private boolean finished;
+
+        InFlight(HttpServerExchange exchange, Thread thread, long start)
+        {
+            this.exchange = exchange;
+            this.thread = thread;
+            this.start = start;
+        }
+
+        synchronized void sample(int maxSamples, int maxStackDepth)
+        {
+            if (finished || sampleCount >= maxSamples) {
+                return;
+            }
+            StackTraceElement[] trace = thread.getStackTrace();
+            List<StackTraceElement> frames = Arrays.asList(Arrays.copyOf(trace, Math.min(trace.length, maxStackDepth)));
+            stacks.merge(frames, 1, Integer::sum);
+            sampleCount++;
+        }
+
+        // Returns null if the request wasn't sampled
+        synchronized SlowRequestReport finish(long now)
+        {
+            finished = true;
+            if (sampleCount == 0) {
+                return null;
+            }
+            List<Map.Entry<List<StackTraceElement>, Integer>> entries = new ArrayList<>(stacks.entrySet());
+            entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+            List<SlowRequestReport.Stack> aggregated = new ArrayList<>(entries.size());
+            for (Map.Entry<List<StackTraceElement>, Integer> entry : entries) {
+                aggregated.add(new SlowRequestReport.Stack(Collections.unmodifiableList(entry.getKey()), entry.getValue()));
+            }
+            Map<String, Long> phaseNanos = new LinkedHashMap<>();
+            for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+                long nanos = PhaseTimings.phaseNanos(exchange, phase);
+                if (nanos >= 0) {
+                    phaseNanos.put(phase.getLabel(), nanos);
+                }
+            }
+            String path = exchange.getQueryString().isEmpty() ? exchange.getRequestPath() : exchange.getRequestPath() + "?" + exchange.getQueryString();
+            return new SlowRequestReport(exchange.getRequestMethod().toString(), path, thread.getName(), startTimeMillis,
+                    now - start, Collections.unmodifiableMap(phaseNanos), sampleCount, Collections.unmodifiableList(aggregated));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.treasuredata.underwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Time taken by each step of UnderwrapServer#start(), in the order the steps finished. With parallel startup,
+// steps on other threads overlap the ones on the starting thread, so compare their offsets from the start.
+public final class StartupReport
+{
+    private final long startNanos = System.nanoTime();
+    private final boolean parallel;
+    // Guarded by `this`
+    private final List<Step> steps = new ArrayList<>();
+    private volatile long totalNanos = -1;
+
+    StartupReport(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    // Records a step that began at `beginNanos` (System#nanoTime()) and ends now
+    void record(String name, long beginNanos)
+    {
+        long now = System.nanoTime();
+        Step step = new Step(name, Thread.currentThread().getName(), beginNanos - startNanos, now - beginNanos);
+        synchronized (this) {
+            steps.add(step);
+        }
+    }
+
+    void finish()
+    {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public boolean isParallel()
+    {
+        return parallel;
+    }
+
+    public synchronized List<Step> getSteps()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    // -1 until the server has started
+    public long getTotalNanos()
+    {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("Started in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(totalNanos)).append(" ms")
+                .append(parallel ? " (parallel):" : ":");
+        for (Step step : getSteps()) {
+            sb.append(' ').append(step.getName())
+                    .append('=').append(TimeUnit.NANOSECONDS.toMillis(step.getDurationNanos())).append("ms")
+                    .append("@+").append(TimeUnit.NANOSECONDS.toMillis(step.getOffsetNanos())).append("ms");
+        }
+        return sb.toString();
+    }
+
+    public static final class Step
+    {
+        private final String name;
+        private final String threadName;
+        private final long offsetNanos;
+        private final long durationNanos;
+
+        private Step(String name, String threadName, long offsetNanos, long durationNanos)
+        {
+            this.name = name;
+            this.threadName = threadName;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        // "application", "servlet_start", "listener" and so on
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getThreadName()
+        {
+            return threadName;
+        }
+
+        // From the beginning of UnderwrapServer#start()
+        public long getOffsetNanos()
+        {
+            return offsetNanos;
+        }
+
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+    }
+}
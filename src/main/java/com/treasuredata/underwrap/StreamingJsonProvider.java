@@ -0,0 +1,147 @@
+package com.treasuredata.underwrap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+// JSON reader and writer with Jackson that streams into the servlet output stream, instead of serializing to a
+// byte[] and copying it. Jackson (jackson-databind) is an optional dependency, which applications add by themselves.
+// Register it in `UnderwrapApplication#registerMessageBodyProviders()`:
+//
+//   registerStreamingJsonProvider(classes);
+//
+// which skips it when Jackson isn't on the classpath, or register `new StreamingJsonProvider(objectMapper)` as a
+// singleton to configure the ObjectMapper.
+//
+// Undertow's servlet output stream writes into a buffer from the connection's pool and sends it when full, so a
+// response is sent in chunks with a bounded memory use. Iterators and Streams returned by resources are written as
+// JSON arrays element by element, without collecting them. One ObjectWriter is shared, ObjectReaders are cached per
+// type, and generators get their buffers from Jackson's per-thread BufferRecycler.
+@Provider
+@Produces({MediaType.APPLICATION_JSON, "application/*+json"})
+@Consumes({MediaType.APPLICATION_JSON, "application/*+json"})
+public class StreamingJsonProvider
+    implements MessageBodyReader<Object>, MessageBodyWriter<Object>
+{
+    // Types handled by the built-in providers of RESTEasy
+    private static final Class<?>[] UNTOUCHABLES = {
+            String.class, byte[].class, char[].class, InputStream.class, Reader.class, OutputStream.class,
+            StreamingOutput.class, Response.class, File.class,
+    };
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter writer;
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public StreamingJsonProvider()
+    {
+        this(new ObjectMapper());
+    }
+
+    public StreamingJsonProvider(ObjectMapper mapper)
+    {
+        this.mapper = mapper.copy();
+        // The servlet container closes and flushes the stream when the response completes. Flushing earlier only
+        // sends a smaller chunk
+        this.mapper.getFactory()
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM)
+                .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        // Values are serialized with their runtime types, as ObjectMapper#writeValue() does
+        this.writer = this.mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    private static boolean isHandled(Class<?> type)
+    {
+        for (Class<?> untouchable : UNTOUCHABLES) {
+            if (untouchable.isAssignableFrom(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+    {
+        return isHandled(type);
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        ObjectReader reader = readers.computeIfAbsent(genericType == null ? type : genericType,
+                key -> mapper.readerFor(mapper.constructType(key)));
+        return reader.readValue(entityStream);
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+    {
+        return isHandled(type);
+    }
+
+    @Override
+    public long getSize(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType)
+    {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(entityStream)) {
+            if (value instanceof Iterator) {
+                writeElements(generator, (Iterator<?>) value);
+            }
+            else if (value instanceof Stream) {
+                try (Stream<?> stream = (Stream<?>) value) {
+                    writeElements(generator, stream.iterator());
+                }
+            }
+            else {
+                writer.writeValue(generator, value);
+            }
+        }
+    }
+
+    private void writeElements(JsonGenerator generator, Iterator<?> elements)
+            throws IOException
+    {
+        generator.writeStartArray();
+        while (elements.hasNext()) {
+            writer.writeValue(generator, elements.next());
+        }
+        generator.writeEndArray();
+    }
+}
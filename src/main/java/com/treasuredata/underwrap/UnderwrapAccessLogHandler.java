@@ -0,0 +1,48 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+public class UnderwrapAccessLogHandler
+    implements HttpHandler
+{
+    private final HttpHandler next;
+    private final AsyncAccessLogReceiver receiver;
+    private final AccessLogFormatter formatter;
+    private final AccessLogFilter filter;
+    private final ExchangeCompletionListener completionListener = this::exchangeCompleted;
+
+    public UnderwrapAccessLogHandler(HttpHandler next, AsyncAccessLogReceiver receiver, AccessLogFormatter formatter)
+    {
+        this(next, receiver, formatter, null);
+    }
+
+    public UnderwrapAccessLogHandler(HttpHandler next, AsyncAccessLogReceiver receiver, AccessLogFormatter formatter, AccessLogFilter filter)
+    {
+        this.next = next;
+        this.receiver = receiver;
+        this.formatter = formatter;
+        this.filter = filter;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange)
+            throws Exception
+    {
+        exchange.addExchangeCompleteListener(completionListener);
+        next.handleRequest(exchange);
+    }
+
+    private void exchangeCompleted(HttpServerExchange exchange, ExchangeCompletionListener.NextListener nextListener)
+    {
+        try {
+            if (filter == null || filter.shouldLog(exchange)) {
+                receiver.log(formatter.format(exchange));
+            }
+        }
+        finally {
+            nextListener.proceed();
+        }
+    }
+}
@@ -2,92 +2,501 @@ package com.treasuredata.underwrap;
 
 import org.xnio.XnioWorker;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 public class UnderwrapMetrics
 {
     private final XnioWorker worker;
+    private final ThreadPoolExecutor taskPool;
+    private final BlockingQueue<?> taskQueue;
+    private final AsyncAccessLogReceiver accessLogReceiver;
+    private final AccessLogFilter accessLogFilter;
+    private final EndpointMetrics endpointMetrics;
+    // Set by UnderwrapServer before this instance is published
+    private LoadSheddingHandler loadSheddingHandler;
+    private RateLimitHandler rateLimitHandler;
+    private CompressionHandler compressionHandler;
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+    private ResponseCacheHandler responseCacheHandler;
+    private RequestCoalescingHandler requestCoalescingHandler;
+    private Deadlines deadlines;
+    private Bulkheads bulkheads;
+    private PhaseTimings phaseTimings;
+    private SlowRequestWatchdog slowRequestWatchdog;
+    private Collection<FileHandler> fileHandlers = Collections.emptyList();
+    private MeteredByteBufferPool bufferPool;
+    private PriorityScheduler priorityScheduler;
 
     public UnderwrapMetrics(XnioWorker worker)
+    {
+        this(worker, null, null);
+    }
+
+    public UnderwrapMetrics(XnioWorker worker, AsyncAccessLogReceiver accessLogReceiver, AccessLogFilter accessLogFilter)
+    {
+        this(worker, accessLogReceiver, accessLogFilter, null);
+    }
+
+    public UnderwrapMetrics(XnioWorker worker, AsyncAccessLogReceiver accessLogReceiver, AccessLogFilter accessLogFilter, EndpointMetrics endpointMetrics)
     {
         this.worker = worker;
+        // `taskPool` and `taskQueue` are final fields of XnioWorker, so they are resolved only once
+        this.taskPool = WorkerFields.taskPool(worker);
+        this.taskQueue = WorkerFields.taskQueue(worker);
+        this.accessLogReceiver = accessLogReceiver;
+        this.accessLogFilter = accessLogFilter;
+        this.endpointMetrics = endpointMetrics;
     }
 
-    // Latest Undertow (1.4.1x) depends on Xnio 3.3.x, and this version doesn't have methods to
-    // get metrics (for example, `XnioWorker#getMXBean()`).
+    void setLoadSheddingHandler(LoadSheddingHandler loadSheddingHandler)
+    {
+        this.loadSheddingHandler = loadSheddingHandler;
+    }
 
-    // Methods below forcibly get metric values from XnioWorker internal, instead of calling
-    // protected/unexisting methods of XnioWorker.
-    // https://github.com/xnio/xnio/blob/3.x/api/src/main/java/org/xnio/XnioWorker.java#L889-L923
+    void setRateLimitHandler(RateLimitHandler rateLimitHandler)
+    {
+        this.rateLimitHandler = rateLimitHandler;
+    }
+
+    void setCompressionHandler(CompressionHandler compressionHandler)
+    {
+        this.compressionHandler = compressionHandler;
+    }
+
+    void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit)
+    {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    void setResponseCacheHandler(ResponseCacheHandler responseCacheHandler)
+    {
+        this.responseCacheHandler = responseCacheHandler;
+    }
+
+    void setRequestCoalescingHandler(RequestCoalescingHandler requestCoalescingHandler)
+    {
+        this.requestCoalescingHandler = requestCoalescingHandler;
+    }
+
+    void setDeadlines(Deadlines deadlines)
+    {
+        this.deadlines = deadlines;
+    }
+
+    void setBulkheads(Bulkheads bulkheads)
+    {
+        this.bulkheads = bulkheads;
+    }
+
+    void setFileHandlers(Collection<FileHandler> fileHandlers)
+    {
+        this.fileHandlers = fileHandlers;
+    }
+
+    void setBufferPool(MeteredByteBufferPool bufferPool)
+    {
+        this.bufferPool = bufferPool;
+    }
+
+    void setPriorityScheduler(PriorityScheduler priorityScheduler)
+    {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    void setPhaseTimings(PhaseTimings phaseTimings)
+    {
+        this.phaseTimings = phaseTimings;
+    }
+
+    void setSlowRequestWatchdog(SlowRequestWatchdog slowRequestWatchdog)
+    {
+        this.slowRequestWatchdog = slowRequestWatchdog;
+    }
 
     public int getCoreWorkerPoolSize()
     {
-        // return coreSize;
-        try {
-            Field field = XnioWorker.class.getDeclaredField("coreSize");
-            field.setAccessible(true);
-            return field.getInt(worker);
-        }
-        catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException("BUG: incompatible accesse", e);
-        }
+        return WorkerFields.coreSize(worker);
         // TODO: use `worker.getMXBean().getCoreWorkerPoolSize()` when Xnio 3.5 or later available
     }
 
     public int getBusyWorkerThreadCount()
     {
-        // return taskPool.getActiveCount();
-        try {
-            Field field = XnioWorker.class.getDeclaredField("taskPool");
-            field.setAccessible(true);
-            return ((ThreadPoolExecutor) field.get(worker)).getActiveCount();
-        }
-        catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException("BUG: incompatible accesse", e);
-        }
-        // TODO: use `worker.getMXBean().getMaxWorkerPoolSize()` when Xnio 3.5 or later available
+        return taskPool.getActiveCount();
+        // TODO: use `worker.getMXBean().getBusyWorkerThreadCount()` when Xnio 3.5 or later available
     }
 
     public int getMaxWorkerPoolSize()
     {
-        // return taskPool.getMaximumPoolSize();
-        try {
-            Field field = XnioWorker.class.getDeclaredField("taskPool");
-            field.setAccessible(true);
-            return ((ThreadPoolExecutor) field.get(worker)).getMaximumPoolSize();
-        }
-        catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException("BUG: incompatible accesse", e);
-        }
-        // TODO: use `worker.getMXBean().getBusyWorkerThreadCount()` when Xnio 3.5 or later available
+        return taskPool.getMaximumPoolSize();
+        // TODO: use `worker.getMXBean().getMaxWorkerPoolSize()` when Xnio 3.5 or later available
     }
 
     public int getWorkerQueueSize()
     {
-        // return taskQueue.size();
-        try {
-            Field field = XnioWorker.class.getDeclaredField("taskQueue");
-            field.setAccessible(true);
-            return ((BlockingQueue) field.get(worker)).size();
-        }
-        catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException("BUG: incompatible accesse", e);
-        }
+        return taskQueue.size();
         // TODO: use `worker.getMXBean().getWorkerQueueSize()` when Xnio 3.5 or later available
     }
 
     public int getWorkerQueueCapacity()
     {
-        // return taskQueue.remainingCapacity();
-        try {
-            Field field = XnioWorker.class.getDeclaredField("taskQueue");
+        return taskQueue.remainingCapacity();
+    }
+
+    public WorkerPoolSnapshot snapshot()
+    {
+        return WorkerPoolSnapshot.of(getCoreWorkerPoolSize(), taskPool, taskQueue);
+    }
+
+    // Null unless `UnderwrapServer#setBufferPoolMetricsEnabled(true)`
+    public BufferPoolSnapshot getBufferPoolSnapshot()
+    {
+        return bufferPool == null ? null : bufferPool.snapshot();
+    }
+
+    public long getAccessLogWrittenLineCount()
+    {
+        return accessLogReceiver == null ? 0 : accessLogReceiver.getWrittenLineCount();
+    }
+
+    public long getAccessLogDroppedLineCount()
+    {
+        return accessLogReceiver == null ? 0 : accessLogReceiver.getDroppedLineCount();
+    }
+
+    public int getAccessLogQueueSize()
+    {
+        return accessLogReceiver == null ? 0 : accessLogReceiver.getQueueSize();
+    }
+
+    public long getAccessLogSampledOutCount()
+    {
+        return accessLogFilter == null ? 0 : accessLogFilter.getSampledOutCount();
+    }
+
+    public Map<String, Long> getAccessLogSampledOutCountsByPathPrefix()
+    {
+        return accessLogFilter == null ? Collections.emptyMap() : accessLogFilter.getSampledOutCountsByPathPrefix();
+    }
+
+    public long getAccessLogExcludedCount()
+    {
+        return accessLogFilter == null ? 0 : accessLogFilter.getExcludedCount();
+    }
+
+    // Keyed by `ResourceClass#method(ParameterTypes)`. Empty unless `UnderwrapServer#setEndpointMetricsEnabled(true)`
+    public Map<String, EndpointMetrics.Snapshot> getEndpointMetrics()
+    {
+        return endpointMetrics == null ? Collections.emptyMap() : endpointMetrics.getSnapshots();
+    }
+
+    public long getLoadSheddingRejectedCount()
+    {
+        return loadSheddingHandler == null ? 0 : loadSheddingHandler.getRejectedCount();
+    }
+
+    // Keyed by lower-cased Priority names
+    public Map<String, Long> getLoadSheddingRejectedCountsByPriority()
+    {
+        return loadSheddingHandler == null ? Collections.emptyMap() : loadSheddingHandler.getRejectedCountsByPriority();
+    }
+
+    public long getRateLimitRejectedCount()
+    {
+        return rateLimitHandler == null ? 0 : rateLimitHandler.getRejectedCount();
+    }
+
+    public long getRateLimitKeyCount()
+    {
+        return rateLimitHandler == null ? 0 : rateLimitHandler.getKeyCount();
+    }
+
+    // Keyed by the client keys of RateLimitPolicy, the most rejected first. Scans all buckets. Not exported by
+    // PrometheusMetricsHandler, as client keys would make labels of unbounded cardinality
+    public Map<String, Long> getRateLimitTopRejectedCounts(int limit)
+    {
+        return rateLimitHandler == null ? Collections.emptyMap() : rateLimitHandler.getTopRejectedCounts(limit);
+    }
+
+    // 0 unless `UnderwrapServer#setCompressionPolicy()` is called
+    public long getCompressedResponseCount()
+    {
+        return compressionHandler == null ? 0 : compressionHandler.getCompressedCount();
+    }
+
+    public long getCompressionStreamedCount()
+    {
+        return compressionHandler == null ? 0 : compressionHandler.getStreamedCount();
+    }
+
+    public long getCompressionInputBytes()
+    {
+        return compressionHandler == null ? 0 : compressionHandler.getInputBytes();
+    }
+
+    public long getCompressionOutputBytes()
+    {
+        return compressionHandler == null ? 0 : compressionHandler.getOutputBytes();
+    }
+
+    // Compressed size / original size of compressed bodies. 1.0 when nothing is compressed yet
+    public double getCompressionRatio()
+    {
+        long input = getCompressionInputBytes();
+        return input == 0 ? 1.0 : (double) getCompressionOutputBytes() / input;
+    }
+
+    public long getCompressionCpuNanos()
+    {
+        return compressionHandler == null ? 0 : compressionHandler.getCpuNanos();
+    }
+
+    // 0 unless `UnderwrapServer#setConcurrencyLimit()` is called
+    public int getConcurrencyLimit()
+    {
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getLimit();
+    }
+
+    public int getConcurrencyLimitInFlightCount()
+    {
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getInFlightCount();
+    }
+
+    public int getConcurrencyLimitQueueSize()
+    {
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getQueueSize();
+    }
+
+    public long getConcurrencyLimitRejectedCount()
+    {
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getRejectedCount();
+    }
+
+    public long getResponseCacheHitCount()
+    {
+        return responseCacheHandler == null ? 0 : responseCacheHandler.getHitCount();
+    }
+
+    public long getResponseCacheMissCount()
+    {
+        return responseCacheHandler == null ? 0 : responseCacheHandler.getMissCount();
+    }
+
+    public long getResponseCacheNotModifiedCount()
+    {
+        return responseCacheHandler == null ? 0 : responseCacheHandler.getNotModifiedCount();
+    }
+
+    public long getResponseCacheEvictionCount()
+    {
+        return responseCacheHandler == null ? 0 : responseCacheHandler.getEvictionCount();
+    }
+
+    public long getResponseCacheBytes()
+    {
+        return responseCacheHandler == null ? 0 : responseCacheHandler.getBytes();
+    }
+
+    public long getRequestCoalescedCount()
+    {
+        return requestCoalescingHandler == null ? 0 : requestCoalescingHandler.getCoalescedCount();
+    }
+
+    public long getRequestCoalescingTimedOutCount()
+    {
+        return requestCoalescingHandler == null ? 0 : requestCoalescingHandler.getTimedOutCount();
+    }
+
+    public long getRequestCoalescingUnsharedCount()
+    {
+        return requestCoalescingHandler == null ? 0 : requestCoalescingHandler.getUnsharedCount();
+    }
+
+    public long getDeadlineDroppedCount()
+    {
+        return deadlines == null ? 0 : deadlines.getDroppedCount();
+    }
+
+    // Keyed by the path prefixes of DeadlinePolicy and DeadlinePolicy.DEFAULT_ROUTE
+    public Map<String, Long> getDeadlineDroppedCountsByRoute()
+    {
+        return deadlines == null ? Collections.emptyMap() : deadlines.getDroppedCountsByRoute();
+    }
+
+    // The same gauges as `snapshot()` for each bulkhead, keyed by bulkhead names
+    public Map<String, WorkerPoolSnapshot> getBulkheadSnapshots()
+    {
+        return bulkheads == null ? Collections.emptyMap() : bulkheads.getSnapshots();
+    }
+
+    public Map<String, Long> getBulkheadRejectedCounts()
+    {
+        return bulkheads == null ? Collections.emptyMap() : bulkheads.getRejectedCounts();
+    }
+
+    // The same gauges as `snapshot()` for the executor of the priority scheduler, with queued requests of all
+    // priorities. Null unless `UnderwrapServer#setPrioritySchedulingPolicy()`
+    public WorkerPoolSnapshot getPrioritySchedulerSnapshot()
+    {
+        return priorityScheduler == null ? null : priorityScheduler.getSnapshot();
+    }
+
+    // Keyed by priorities in lower case, as the maps below
+    public Map<String, Integer> getPriorityQueueSizes()
+    {
+        return priorityScheduler == null ? Collections.emptyMap() : priorityScheduler.getQueueSizes();
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getPriorityQueueWaits()
+    {
+        return priorityScheduler == null ? Collections.emptyMap() : priorityScheduler.getQueueWaits();
+    }
+
+    public Map<String, Long> getPriorityRejectedCounts()
+    {
+        return priorityScheduler == null ? Collections.emptyMap() : priorityScheduler.getRejectedCounts();
+    }
+
+    public Map<String, Long> getPriorityPromotedCounts()
+    {
+        return priorityScheduler == null ? Collections.emptyMap() : priorityScheduler.getPromotedCounts();
+    }
+
+    // Keyed by PhaseTimings.Phase labels. Empty unless `UnderwrapServer#setPhaseTimingEnabled(true)`
+    public Map<String, LatencyHistogram.Snapshot> getPhaseLatencies()
+    {
+        return phaseTimings == null ? Collections.emptyMap() : phaseTimings.getSnapshots();
+    }
+
+    // Totals of all file mounts (see `UnderwrapServer#addFileMount`)
+    public long getFileCacheHitCount()
+    {
+        return fileHandlers.stream().mapToLong(FileHandler::getCacheHitCount).sum();
+    }
+
+    public long getFileTransferCount()
+    {
+        return fileHandlers.stream().mapToLong(FileHandler::getTransferCount).sum();
+    }
+
+    public long getFileTransferredBytes()
+    {
+        return fileHandlers.stream().mapToLong(FileHandler::getTransferredBytes).sum();
+    }
+
+    public long getFileCacheBytes()
+    {
+        return fileHandlers.stream().mapToLong(FileHandler::getCacheBytes).sum();
+    }
+
+    // 0 unless `UnderwrapServer#setSlowRequestPolicy()` is called
+    public long getSlowRequestCount()
+    {
+        return slowRequestWatchdog == null ? 0 : slowRequestWatchdog.getSlowRequestCount();
+    }
+
+    public long getSlowRequestUntrackedCount()
+    {
+        return slowRequestWatchdog == null ? 0 : slowRequestWatchdog.getUntrackedCount();
+    }
+
+    // The slowest first
+    public List<SlowRequestReport> getSlowRequestReports()
+    {
+        return slowRequestWatchdog == null ? Collections.emptyList() : slowRequestWatchdog.getReports();
+    }
+
+    // Latest Undertow (1.4.1x) depends on Xnio 3.3.x, and this version doesn't have methods to
+    // get metrics (for example, `XnioWorker#getMXBean()`).
+
+    // Methods below forcibly get metric values from XnioWorker internal, instead of calling
+    // protected/unexisting methods of XnioWorker.
+    // https://github.com/xnio/xnio/blob/3.x/api/src/main/java/org/xnio/XnioWorker.java#L889-L923
+
+    // Field handles are resolved once when this class is loaded. If the Xnio version is incompatible,
+    // constructing UnderwrapMetrics (at server startup) fails instead of each metric read.
+    private static class WorkerFields
+    {
+        private static final MethodHandle CORE_SIZE;
+        private static final MethodHandle TASK_POOL;
+        private static final MethodHandle TASK_QUEUE;
+        private static final ReflectiveOperationException RESOLUTION_FAILURE;
+
+        static {
+            MethodHandle coreSize = null;
+            MethodHandle taskPool = null;
+            MethodHandle taskQueue = null;
+            ReflectiveOperationException failure = null;
+            try {
+                coreSize = getter("coreSize", int.class);
+                taskPool = getter("taskPool", ThreadPoolExecutor.class);
+                taskQueue = getter("taskQueue", BlockingQueue.class);
+            }
+            catch (NoSuchFieldException | IllegalAccessException e) {
+                failure = e;
+            }
+            CORE_SIZE = coreSize;
+            TASK_POOL = taskPool;
+            TASK_QUEUE = taskQueue;
+            RESOLUTION_FAILURE = failure;
+        }
+
+        private static MethodHandle getter(String name, Class<?> type)
+                throws NoSuchFieldException, IllegalAccessException
+        {
+            Field field = XnioWorker.class.getDeclaredField(name);
+            if (!type.isAssignableFrom(field.getType())) {
+                throw new NoSuchFieldException(String.format("%s.%s is %s, not %s", XnioWorker.class.getName(), name, field.getType(), type));
+            }
             field.setAccessible(true);
-            return ((BlockingQueue) field.get(worker)).remainingCapacity();
+            return MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(type, XnioWorker.class));
         }
-        catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException("BUG: incompatible accesse", e);
+
+        private static void checkResolved()
+        {
+            if (RESOLUTION_FAILURE != null) {
+                throw new IllegalStateException("BUG: incompatible access to XnioWorker internals", RESOLUTION_FAILURE);
+            }
+        }
+
+        static int coreSize(XnioWorker worker)
+        {
+            try {
+                return (int) CORE_SIZE.invokeExact(worker);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException("BUG: incompatible access to XnioWorker internals", e);
+            }
+        }
+
+        static ThreadPoolExecutor taskPool(XnioWorker worker)
+        {
+            checkResolved();
+            try {
+                return (ThreadPoolExecutor) TASK_POOL.invokeExact(worker);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException("BUG: incompatible access to XnioWorker internals", e);
+            }
+        }
+
+        static BlockingQueue<?> taskQueue(XnioWorker worker)
+        {
+            checkResolved();
+            try {
+                return (BlockingQueue<?>) TASK_QUEUE.invokeExact(worker);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException("BUG: incompatible access to XnioWorker internals", e);
+            }
         }
     }
 }
@@ -1,6 +1,9 @@
 package com.treasuredata.underwrap;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.handlers.GracefulShutdownHandler;
 import io.undertow.server.handlers.PathHandler;
@@ -14,6 +17,7 @@ import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
 import org.jboss.resteasy.spi.ResteasyDeployment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xnio.Xnio;
 import org.xnio.XnioWorker;
 
 import javax.servlet.ServletException;
@@ -21,28 +25,81 @@ import javax.ws.rs.core.Application;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static io.undertow.servlet.Servlets.servlet;
 
 public class UnderwrapServer
 {
     private static final Logger LOG = LoggerFactory.getLogger(UnderwrapServer.class);
+    // Steps run besides the servlet deployment
+    private static final int PARALLEL_STARTUP_THREADS = 3;
     private final Class<? extends UnderwrapApplication> applicationClass;
     private final Path serverRootPath;
 
     private boolean accessLogEnabled;
     private String accessLogFormat;
+    private AccessLogFormatter.OutputFormat accessLogOutputFormat = AccessLogFormatter.OutputFormat.LTSV;
     private Path accessLogPath;
+    private AccessLogFilter accessLogFilter;
+    private AccessLogRotationPolicy accessLogRotationPolicy = AccessLogRotationPolicy.DAILY;
+    private int accessLogQueueCapacity = AsyncAccessLogReceiver.DEFAULT_QUEUE_CAPACITY;
+    private AsyncAccessLogReceiver.OverflowPolicy accessLogOverflowPolicy = AsyncAccessLogReceiver.OverflowPolicy.DROP;
+    private int accessLogOverflowSampleRate = AsyncAccessLogReceiver.DEFAULT_OVERFLOW_SAMPLE_RATE;
+    private boolean endpointMetricsEnabled;
+    private String metricsEndpointPath;
+    private LoadSheddingPolicy loadSheddingPolicy;
+    private RateLimitPolicy rateLimitPolicy;
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+    private ResponseCachePolicy responseCachePolicy;
+    private RequestCoalescingPolicy requestCoalescingPolicy;
+    private DeadlinePolicy deadlinePolicy;
+    private boolean phaseTimingEnabled;
+    private boolean serverTimingEnabled;
+    private SlowRequestPolicy slowRequestPolicy;
+    private String slowRequestEndpointPath;
+    private boolean parallelStartup;
+    private CompressionPolicy compressionPolicy;
+    private boolean http2Enabled;
+    private ServerTuning.Workload workload;
+    private PrioritySchedulingPolicy prioritySchedulingPolicy;
+    private boolean bufferPoolMetricsEnabled;
+    private final Map<String, FileHandler> fileMounts = new LinkedHashMap<>();
 
     private Undertow undertow;
     private DeploymentManager deploymentManager;
     private GracefulShutdownHandler gracefulShutdownHandler;
     private HttpHandler httpHandler;
+    private AsyncAccessLogReceiver accessLogReceiver;
+    private EndpointMetrics endpointMetrics;
+    private Deadlines deadlines;
+    private Bulkheads bulkheads;
+    private PriorityScheduler priorityScheduler;
+    private PhaseTimings phaseTimings;
+    private SlowRequestWatchdog slowRequestWatchdog;
+    private LoadSheddingHandler loadSheddingHandler;
+    private RateLimitHandler rateLimitHandler;
+    private CompressionHandler compressionHandler;
+    private ResponseCacheHandler responseCacheHandler;
+    private RequestCoalescingHandler requestCoalescingHandler;
+    private volatile StartupReport startupReport;
+    private ServerTuning serverTuning;
+    private MeteredByteBufferPool bufferPool;
+    // Set only while starting
+    private ExecutorService startupExecutor;
+    // Read by PrometheusMetricsHandler on IO threads
+    private volatile UnderwrapMetrics metrics;
 
     @FunctionalInterface
     public interface DeploymentInfoBuildFunction
@@ -86,16 +143,194 @@ public class UnderwrapServer
         this.accessLogFormat = accessLogFormat;
     }
 
+    public void setAccessLogOutputFormat(AccessLogFormatter.OutputFormat accessLogOutputFormat)
+    {
+        this.accessLogOutputFormat = accessLogOutputFormat;
+    }
+
     public void setAccessLogPath(Path accessLogPath)
     {
         this.accessLogPath = accessLogPath;
     }
 
+    public void setAccessLogFilter(AccessLogFilter accessLogFilter)
+    {
+        this.accessLogFilter = accessLogFilter;
+    }
+
+    public void setAccessLogRotationPolicy(AccessLogRotationPolicy accessLogRotationPolicy)
+    {
+        this.accessLogRotationPolicy = accessLogRotationPolicy;
+    }
+
+    public void setAccessLogQueueCapacity(int accessLogQueueCapacity)
+    {
+        this.accessLogQueueCapacity = accessLogQueueCapacity;
+    }
+
+    public void setAccessLogOverflowPolicy(AsyncAccessLogReceiver.OverflowPolicy accessLogOverflowPolicy)
+    {
+        this.accessLogOverflowPolicy = accessLogOverflowPolicy;
+    }
+
+    public void setAccessLogOverflowSampleRate(int accessLogOverflowSampleRate)
+    {
+        this.accessLogOverflowSampleRate = accessLogOverflowSampleRate;
+    }
+
+    public void setEndpointMetricsEnabled(boolean value)
+    {
+        this.endpointMetricsEnabled = value;
+    }
+
+    // Serves metrics in the Prometheus text format at `path` (e.g. "/metrics"). Disabled when null
+    public void setMetricsEndpointPath(String path)
+    {
+        this.metricsEndpointPath = path;
+    }
+
+    // Rejects requests to the servlet deployment with 503 while the worker pool is overloaded. Disabled when null
+    public void setLoadSheddingPolicy(LoadSheddingPolicy loadSheddingPolicy)
+    {
+        this.loadSheddingPolicy = loadSheddingPolicy;
+    }
+
+    // Rejects requests to the servlet deployment with 429 while their client exceeds the rate. Disabled when null
+    public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy)
+    {
+        this.rateLimitPolicy = rateLimitPolicy;
+    }
+
+    // Limits concurrent requests to the servlet deployment. Disabled when null
+    public void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit)
+    {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    // Caches GET responses of routes in the policy and of resource methods annotated with @Cached. Disabled when null
+    public void setResponseCachePolicy(ResponseCachePolicy responseCachePolicy)
+    {
+        this.responseCachePolicy = responseCachePolicy;
+    }
+
+    // Serves concurrent identical requests with the response of the first one. Disabled when null
+    public void setRequestCoalescingPolicy(RequestCoalescingPolicy requestCoalescingPolicy)
+    {
+        this.requestCoalescingPolicy = requestCoalescingPolicy;
+    }
+
+    // Drops requests to the servlet deployment whose deadline has passed before they reach a worker thread or
+    // RESTEasy. Disabled when null
+    public void setDeadlinePolicy(DeadlinePolicy deadlinePolicy)
+    {
+        this.deadlinePolicy = deadlinePolicy;
+    }
+
+    // Aggregates the latency of requests to the servlet deployment per phase (see PhaseTimings), and adds the
+    // phases to the default access log format
+    public void setPhaseTimingEnabled(boolean value)
+    {
+        this.phaseTimingEnabled = value;
+    }
+
+    // Sends the phases in a Server-Timing response header. Enables phase timing
+    public void setServerTimingEnabled(boolean value)
+    {
+        this.serverTimingEnabled = value;
+    }
+
+    // Samples the stacks of requests to the servlet deployment that run longer than the threshold, and keeps
+    // reports of them (see SlowRequestWatchdog). Disabled when null
+    public void setSlowRequestPolicy(SlowRequestPolicy slowRequestPolicy)
+    {
+        this.slowRequestPolicy = slowRequestPolicy;
+    }
+
+    // Serves slow request reports as text at `path` (e.g. "/slow-requests"). Requires setSlowRequestPolicy()
+    public void setSlowRequestEndpointPath(String path)
+    {
+        this.slowRequestEndpointPath = path;
+    }
+
+    // Gzips responses of the servlet deployment and native routes for clients accepting gzip. Disabled when null
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy)
+    {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    // Enables HTTP/2: h2c upgrade on HTTP listeners, and ALPN on HTTPS listeners where the JVM supports it.
+    // The same as `UndertowOptions.ENABLE_HTTP2` server option, which ServerBuildFunction can still override
+    public void setHttp2Enabled(boolean value)
+    {
+        this.http2Enabled = value;
+    }
+
+    // Chooses IO threads, worker threads and buffers from the CPUs and memory available in the container and the
+    // workload (see ServerTuning). ServerBuildFunction can still override them. Disabled when null
+    public void setWorkload(ServerTuning.Workload workload)
+    {
+        this.workload = workload;
+    }
+
+    // Replaces the buffer pool of Undertow listeners with one that counts buffers, for `UnderwrapMetrics#getBufferPoolSnapshot()`
+    public void setBufferPoolMetricsEnabled(boolean value)
+    {
+        this.bufferPoolMetricsEnabled = value;
+    }
+
+    // Runs requests to the servlet deployment on an executor that takes them by priority, instead of the XNIO worker
+    // pool (see PriorityScheduler). Disabled when null
+    public void setPrioritySchedulingPolicy(PrioritySchedulingPolicy prioritySchedulingPolicy)
+    {
+        this.prioritySchedulingPolicy = prioritySchedulingPolicy;
+    }
+
+    // Serves files under `directory` at `pathPrefix` on IO threads, with the default FileMountPolicy
+    public void addFileMount(String pathPrefix, Path directory)
+    {
+        addFileMount(pathPrefix, directory, FileMountPolicy.builder().build());
+    }
+
+    // Serves files under `directory` at `pathPrefix` on IO threads (see FileHandler). Paths are not relative to the
+    // servlet context path. Mounts are matched before other paths and aren't compressed
+    public void addFileMount(String pathPrefix, Path directory, FileMountPolicy policy)
+    {
+        fileMounts.put(pathPrefix, new FileHandler(directory, policy));
+    }
+
+    // Runs startup steps that don't depend on the servlet deployment (scanning resources, opening the access log
+    // and loading XNIO) on other threads while the deployment starts. The listener is opened after all of them
+    public void setParallelStartup(boolean value)
+    {
+        this.parallelStartup = value;
+    }
+
     private void deploy(Map<Class<?>, Object> contextMap, DeploymentInfoBuildFunction deploymentInfoBuildFunction, HandlerBuildFunction handlerBuildFunction)
     {
         // Construct deployment information
+        // The application is instantiated here, instead of by RESTEasy, to collect native routes from the same instance
+        long begin = System.nanoTime();
+        UnderwrapApplication application = newApplication();
+        NativeRoutes nativeRoutes = new NativeRoutes();
+        application.registerNativeRoutes(nativeRoutes);
+        Bulkheads bulkheads = new Bulkheads();
+        application.registerBulkheads(bulkheads);
+        this.bulkheads = bulkheads.isEmpty() ? null : bulkheads;
+        startupReport.record("application", begin);
+        CompletableFuture<ResourceIndex> resourceIndex = responseCachePolicy != null || this.bulkheads != null || prioritySchedulingPolicy != null
+                ? startupStep("resource_index", () -> resourceIndexOf(application))
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<Xnio> xnio = startupExecutor != null
+                // Loaded again by Undertow#start(), from the class cache then
+                ? startupStep("xnio", () -> Xnio.getInstance(Undertow.class.getClassLoader()))
+                : CompletableFuture.completedFuture(null);
         ResteasyDeployment resteasyDeployment = new ResteasyDeployment();
-        resteasyDeployment.setApplicationClass(applicationClass.getName());
+        resteasyDeployment.setApplication(application);
+        resteasyDeployment.getProviders().addAll(createProviders());
+        AccessLogHandlerFactory accessLogHandlerFactory = createAccessLogHandlerFactory();
+        CompletableFuture<AsyncAccessLogReceiver> accessLogReceiverFuture = accessLogHandlerFactory != null
+                ? startupStep("access_log", accessLogHandlerFactory::createReceiver)
+                : CompletableFuture.completedFuture(null);
         DeploymentInfo di = new DeploymentInfo()
                 .addServletContextAttribute(ResteasyDeployment.class.getName(), resteasyDeployment)
                 .addServlet(
@@ -126,31 +361,250 @@ public class UnderwrapServer
         ServletContainer container = Servlets.defaultContainer();
         deploymentManager = container.addDeployment(di);
 
+        begin = System.nanoTime();
         deploymentManager.deploy();
+        startupReport.record("servlet_deploy", begin);
         PathHandler pathHandler = new PathHandler();
         try {
-            pathHandler.addPrefixPath(di.getContextPath(), deploymentManager.start());
+            // RESTEasy is initialized here, as the servlet is loaded on startup
+            begin = System.nanoTime();
+            HttpHandler servletHandler = deploymentManager.start();
+            startupReport.record("servlet_start", begin);
+            begin = System.nanoTime();
+            pathHandler.addPrefixPath(di.getContextPath(), wrapServletHandler(servletHandler, join(resourceIndex), this::getMetrics));
         }
         catch (ServletException e) {
             throw new RuntimeException(e);
         }
-
-        gracefulShutdownHandler = new GracefulShutdownHandler(handlerBuildFunction.process(pathHandler));
-
-        if (accessLogEnabled) {
-            // TODO: Make it enable to set custom format and access log path
-            httpHandler = new AccessLogHandlerFactory(applicationClass, serverRootPath, accessLogPath, accessLogFormat).create(gracefulShutdownHandler);
+        if (metricsEndpointPath != null) {
+            pathHandler.addExactPath(metricsEndpointPath, new PrometheusMetricsHandler(this::getMetrics));
         }
-        else {
-            httpHandler = gracefulShutdownHandler;
+        if (slowRequestEndpointPath != null && slowRequestWatchdog != null) {
+            pathHandler.addExactPath(slowRequestEndpointPath, slowRequestWatchdog.reportHandler());
         }
 
+        AsyncAccessLogReceiver accessLogReceiver = join(accessLogReceiverFuture);
+        httpHandler = wrapRootHandler(nativeRoutes.install(pathHandler), handlerBuildFunction, accessLogHandlerFactory, accessLogReceiver);
+
         // Set instances we want to pass via @Context annotation
         if (contextMap != null) {
             for (Map.Entry<Class<?>, Object> contextTuple : contextMap.entrySet()) {
                 resteasyDeployment.getDispatcher().getDefaultContextObjects().put(contextTuple.getKey(), contextTuple.getValue());
             }
         }
+        join(xnio);
+        startupReport.record("handlers", begin);
+    }
+
+    // RESTEasy providers of the per-request components, which are also used by wrapServletHandler()
+    List<Object> createProviders()
+    {
+        List<Object> providers = new ArrayList<>();
+        if (endpointMetricsEnabled) {
+            endpointMetrics = new EndpointMetrics();
+            providers.add(endpointMetrics.feature());
+        }
+        else {
+            endpointMetrics = null;
+        }
+        if (phaseTimingEnabled || serverTimingEnabled) {
+            phaseTimings = new PhaseTimings(serverTimingEnabled);
+            providers.add(phaseTimings.filter());
+        }
+        else {
+            phaseTimings = null;
+        }
+        if (deadlinePolicy != null) {
+            deadlines = new Deadlines(deadlinePolicy);
+            providers.add(deadlines.filter());
+        }
+        else {
+            deadlines = null;
+        }
+        return providers;
+    }
+
+    // Null if the access log is disabled
+    AccessLogHandlerFactory createAccessLogHandlerFactory()
+    {
+        if (!accessLogEnabled) {
+            return null;
+        }
+        // TODO: Make it enable to set custom format and access log path
+        AccessLogHandlerFactory accessLogHandlerFactory = new AccessLogHandlerFactory(applicationClass, serverRootPath, accessLogPath, accessLogFormat);
+        accessLogHandlerFactory.setOutputFormat(accessLogOutputFormat);
+        accessLogHandlerFactory.setFilter(accessLogFilter);
+        accessLogHandlerFactory.setRotationPolicy(accessLogRotationPolicy);
+        accessLogHandlerFactory.setQueueCapacity(accessLogQueueCapacity);
+        accessLogHandlerFactory.setOverflowPolicy(accessLogOverflowPolicy);
+        accessLogHandlerFactory.setOverflowSampleRate(accessLogOverflowSampleRate);
+        // Custom formats can have `%{phase,<name>}` by themselves
+        accessLogHandlerFactory.setPhaseTimingFieldsEnabled(phaseTimings != null && accessLogFormat == null);
+        return accessLogHandlerFactory;
+    }
+
+    // The handlers in front of the servlet deployment. HandlerChainBenchmark builds its chain with this and
+    // wrapRootHandler(), so that both stay in the same order, and passes its own `metricsSupplier` as it doesn't start
+    // the server. `resourceIndex` may be null unless the response cache, bulkheads or priority scheduling is enabled
+    HttpHandler wrapServletHandler(HttpHandler servletHandler, ResourceIndex resourceIndex, Supplier<UnderwrapMetrics> metricsSupplier)
+    {
+        if (slowRequestPolicy != null) {
+            slowRequestWatchdog = new SlowRequestWatchdog(slowRequestPolicy);
+            servletHandler = slowRequestWatchdog.dispatcher(servletHandler);
+        }
+        else {
+            slowRequestWatchdog = null;
+        }
+        if (phaseTimings != null) {
+            servletHandler = phaseTimings.dispatcher(servletHandler);
+        }
+        if (deadlines != null) {
+            servletHandler = deadlines.dispatcher(servletHandler);
+        }
+        HttpHandler dispatchedHandler = servletHandler;
+        if (prioritySchedulingPolicy != null) {
+            priorityScheduler = new PriorityScheduler(prioritySchedulingPolicy);
+            servletHandler = priorityScheduler.handler(dispatchedHandler, resourceIndex);
+        }
+        else {
+            priorityScheduler = null;
+        }
+        if (bulkheads != null) {
+            // Requests to bulkheads bypass the priority scheduler
+            servletHandler = bulkheads.handler(dispatchedHandler, servletHandler, resourceIndex);
+        }
+        if (concurrencyLimit != null) {
+            HttpHandler limitedHandler = servletHandler;
+            servletHandler = exchange -> concurrencyLimit.handleRequest(exchange, limitedHandler);
+        }
+        if (loadSheddingPolicy != null) {
+            loadSheddingHandler = new LoadSheddingHandler(servletHandler, loadSheddingPolicy, metricsSupplier, priorityScheduler);
+            servletHandler = loadSheddingHandler;
+        }
+        else {
+            loadSheddingHandler = null;
+        }
+        if (requestCoalescingPolicy != null) {
+            // Outside of load shedding, so that waiting requests, which don't use workers, aren't rejected
+            requestCoalescingHandler = new RequestCoalescingHandler(servletHandler, requestCoalescingPolicy);
+            servletHandler = requestCoalescingHandler;
+        }
+        else {
+            requestCoalescingHandler = null;
+        }
+        if (responseCachePolicy != null) {
+            // Outside of load shedding, so that hits are served even when the worker pool is overloaded
+            responseCacheHandler = new ResponseCacheHandler(servletHandler, responseCachePolicy, resourceIndex);
+            servletHandler = responseCacheHandler;
+        }
+        else {
+            responseCacheHandler = null;
+        }
+        if (rateLimitPolicy != null) {
+            // Outside of the response cache and coalescing, so that a client over the limit doesn't use them either
+            rateLimitHandler = new RateLimitHandler(servletHandler, rateLimitPolicy);
+            servletHandler = rateLimitHandler;
+        }
+        else {
+            rateLimitHandler = null;
+        }
+        if (deadlines != null) {
+            servletHandler = deadlines.handler(servletHandler);
+        }
+        if (phaseTimings != null) {
+            servletHandler = phaseTimings.handler(servletHandler);
+        }
+        return servletHandler;
+    }
+
+    // The handlers around the path handler, from compression and file mounts to the access log
+    HttpHandler wrapRootHandler(HttpHandler rootHandler, HandlerBuildFunction handlerBuildFunction, AccessLogHandlerFactory accessLogHandlerFactory, AsyncAccessLogReceiver accessLogReceiver)
+    {
+        if (compressionPolicy != null) {
+            compressionHandler = new CompressionHandler(rootHandler, compressionPolicy);
+            rootHandler = compressionHandler;
+            if (compressionPolicy.isPrecompressCachedResponses() && responseCacheHandler != null) {
+                responseCacheHandler.setCompression(compressionPolicy, compressionHandler.getCompressor());
+            }
+        }
+        else {
+            compressionHandler = null;
+        }
+        if (!fileMounts.isEmpty()) {
+            // Outside of compression, whose conduit would copy files through heap buffers instead of transferTo
+            PathHandler fileMountHandler = new PathHandler(rootHandler);
+            for (Map.Entry<String, FileHandler> entry : fileMounts.entrySet()) {
+                fileMountHandler.addPrefixPath(entry.getKey(), entry.getValue());
+            }
+            rootHandler = fileMountHandler;
+        }
+        if (endpointMetrics != null) {
+            rootHandler = endpointMetrics.handler(rootHandler);
+        }
+
+        gracefulShutdownHandler = new GracefulShutdownHandler(handlerBuildFunction.process(rootHandler));
+
+        if (accessLogHandlerFactory != null) {
+            this.accessLogReceiver = accessLogReceiver;
+            return accessLogHandlerFactory.createHandler(gracefulShutdownHandler, accessLogReceiver);
+        }
+        this.accessLogReceiver = null;
+        return gracefulShutdownHandler;
+    }
+
+    // Runs `step` on another thread with parallel startup, otherwise on this thread
+    private <T> CompletableFuture<T> startupStep(String name, Supplier<T> step)
+    {
+        StartupReport report = startupReport;
+        Supplier<T> timedStep = () -> {
+            long begin = System.nanoTime();
+            try {
+                return step.get();
+            }
+            finally {
+                report.record(name, begin);
+            }
+        };
+        if (startupExecutor == null) {
+            return CompletableFuture.completedFuture(timedStep.get());
+        }
+        return CompletableFuture.supplyAsync(timedStep, startupExecutor);
+    }
+
+    private static <T> T join(CompletableFuture<T> future)
+    {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    private UnderwrapApplication newApplication()
+    {
+        try {
+            return applicationClass.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Failed to instantiate " + applicationClass.getName(), e);
+        }
+    }
+
+    private static ResourceIndex resourceIndexOf(UnderwrapApplication application)
+    {
+        ResourceIndex index = application.resourceIndex();
+        return index != null ? index : ResourceIndex.scan(resourceClassesOf(application));
+    }
+
+    private static Set<Class<?>> resourceClassesOf(UnderwrapApplication application)
+    {
+        Set<Class<?>> classes = new HashSet<>(application.getClasses());
+        for (Object singleton : application.getSingletons()) {
+            classes.add(singleton.getClass());
+        }
+        return classes;
     }
 
     private HttpHandler defaultBuildHandler(final HttpHandler pathHandler)
@@ -162,13 +616,54 @@ public class UnderwrapServer
     {
         // Configure Undertow server and start it with the root handler
         Undertow.Builder serverBuilder = Undertow.builder();
+        if (http2Enabled) {
+            serverBuilder.setServerOption(UndertowOptions.ENABLE_HTTP2, true);
+        }
+        if (workload != null) {
+            serverTuning = ServerTuning.detect(workload);
+            LOG.info("Server tuning: {}", serverTuning);
+            serverBuilder
+                    .setIoThreads(serverTuning.getIoThreads())
+                    .setWorkerThreads(serverTuning.getWorkerThreads())
+                    .setBufferSize(serverTuning.getBufferSize())
+                    .setDirectBuffers(serverTuning.isDirectBuffers());
+        }
+        else {
+            serverTuning = null;
+        }
 
         if (serverBuildFunction != null) {
             serverBuilder = serverBuildFunction.build(serverBuilder);
         }
 
+        long begin = System.nanoTime();
         undertow = serverBuilder.setHandler(httpHandler).build();
         undertow.start();
+        startupReport.record("listener", begin);
+
+        UnderwrapMetrics metrics = new UnderwrapMetrics(undertow.getWorker(), accessLogReceiver, accessLogEnabled ? accessLogFilter : null, endpointMetrics);
+        if (bufferPoolMetricsEnabled) {
+            int maxPooledBuffers = serverTuning != null ? serverTuning.getMaxPooledBuffers()
+                    : ServerTuning.POOLED_BUFFERS_PER_THREAD * (undertow.getWorker().getIoThreadCount() + metrics.snapshot().getMaxWorkerPoolSize());
+            bufferPool = MeteredByteBufferPool.install(undertow, maxPooledBuffers);
+        }
+        else {
+            bufferPool = null;
+        }
+        metrics.setBufferPool(bufferPool);
+        metrics.setLoadSheddingHandler(loadSheddingHandler);
+        metrics.setRateLimitHandler(rateLimitHandler);
+        metrics.setCompressionHandler(compressionHandler);
+        metrics.setConcurrencyLimit(concurrencyLimit);
+        metrics.setResponseCacheHandler(responseCacheHandler);
+        metrics.setRequestCoalescingHandler(requestCoalescingHandler);
+        metrics.setDeadlines(deadlines);
+        metrics.setBulkheads(bulkheads);
+        metrics.setPriorityScheduler(priorityScheduler);
+        metrics.setPhaseTimings(phaseTimings);
+        metrics.setSlowRequestWatchdog(slowRequestWatchdog);
+        metrics.setFileHandlers(fileMounts.values());
+        this.metrics = metrics;
     }
 
     public synchronized void start(Map<Class<?>, Object> contextMap, DeploymentInfoBuildFunction deploymentInfoBuildFunction, ServerBuildFunction serverBuildFunction)
@@ -178,8 +673,32 @@ public class UnderwrapServer
 
     public void start(Map<Class<?>, Object> contextMap, DeploymentInfoBuildFunction deploymentInfoBuildFunction, HandlerBuildFunction handlerBuildFunction, ServerBuildFunction serverBuildFunction)
     {
-        deploy(contextMap, deploymentInfoBuildFunction, handlerBuildFunction);
-        buildAndStartServer(serverBuildFunction);
+        StartupReport report = new StartupReport(parallelStartup);
+        startupReport = report;
+        if (parallelStartup) {
+            startupExecutor = Executors.newFixedThreadPool(PARALLEL_STARTUP_THREADS, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("underwrap-startup-%d")
+                    .build());
+        }
+        try {
+            deploy(contextMap, deploymentInfoBuildFunction, handlerBuildFunction);
+            buildAndStartServer(serverBuildFunction);
+        }
+        finally {
+            if (startupExecutor != null) {
+                startupExecutor.shutdown();
+                startupExecutor = null;
+            }
+        }
+        report.finish();
+        LOG.info("{}", report);
+    }
+
+    // Steps of the last start(), which are logged at INFO level when it finishes. Null before start()
+    public StartupReport getStartupReport()
+    {
+        return startupReport;
     }
 
     private void shutdownGracefulShutdownHandler()
@@ -216,12 +735,46 @@ public class UnderwrapServer
         }
     }
 
+    private void shutdownBulkheads()
+    {
+        if (bulkheads != null) {
+            try {
+                bulkheads.shutdown(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                LOG.warn("Interrupted when waiting bulkhead termination", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void shutdownPriorityScheduler()
+    {
+        if (priorityScheduler != null) {
+            try {
+                priorityScheduler.shutdown(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                LOG.warn("Interrupted when waiting priority scheduler termination", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public synchronized void stop()
     {
         shutdownGracefulShutdownHandler();
 
         shutdownWorker();
 
+        shutdownBulkheads();
+
+        shutdownPriorityScheduler();
+
+        if (slowRequestWatchdog != null) {
+            slowRequestWatchdog.close();
+        }
+
         // Stop and undeploy DeploymentManager. And then stop Undertow
         // Avoiding NPE occurs when multiple threads call io.undertow.servlet.api.DeploymentManager.stop()...
         Failsafe.with(
@@ -241,11 +794,26 @@ public class UnderwrapServer
         }
 
         undertow.stop();
+
+        if (bufferPool != null) {
+            bufferPool.close();
+        }
+
+        if (accessLogReceiver != null) {
+            accessLogReceiver.close();
+        }
     }
 
+    // Returns the same instance until the server is restarted
     public UnderwrapMetrics getMetrics()
     {
-        return new UnderwrapMetrics(undertow.getWorker());
+        return metrics;
+    }
+
+    // Null unless `setWorkload()` is called
+    public ServerTuning getServerTuning()
+    {
+        return serverTuning;
     }
 
     public XnioWorker getXnioWorker()
@@ -281,8 +849,39 @@ public class UnderwrapServer
         {
         }
 
+        // Adds StreamingJsonProvider if Jackson, an optional dependency, is on the classpath. Returns whether it's added
+        protected boolean registerStreamingJsonProvider(Set<Class<?>> classes)
+        {
+            try {
+                Class.forName("com.fasterxml.jackson.databind.ObjectMapper", false, getClass().getClassLoader());
+            }
+            catch (ClassNotFoundException e) {
+                LOG.warn("StreamingJsonProvider isn't registered, as Jackson isn't on the classpath");
+                return false;
+            }
+            classes.add(StreamingJsonProvider.class);
+            return true;
+        }
+
         protected void registerResources(Set<Class<?>> classes)
         {
         }
+
+        // Routes served by raw Undertow handlers, without the servlet container and RESTEasy
+        protected void registerNativeRoutes(NativeRoutes routes)
+        {
+        }
+
+        // Executors for resources annotated with @Bulkhead, instead of the XNIO worker pool
+        protected void registerBulkheads(Bulkheads bulkheads)
+        {
+        }
+
+        // An index of resource methods built in advance, so that resource classes aren't scanned at startup.
+        // Scanned from getClasses() and getSingletons() when null
+        protected ResourceIndex resourceIndex()
+        {
+            return null;
+        }
     }
 }
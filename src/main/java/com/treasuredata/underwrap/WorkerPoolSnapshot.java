@@ -0,0 +1,66 @@
+package com.treasuredata.underwrap;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// Worker pool gauges read together at one point in time
+public final class WorkerPoolSnapshot
+{
+    private final int coreWorkerPoolSize;
+    private final int maxWorkerPoolSize;
+    private final int busyWorkerThreadCount;
+    private final int workerQueueSize;
+    private final int workerQueueCapacity;
+
+    public WorkerPoolSnapshot(int coreWorkerPoolSize, int maxWorkerPoolSize, int busyWorkerThreadCount, int workerQueueSize, int workerQueueCapacity)
+    {
+        this.coreWorkerPoolSize = coreWorkerPoolSize;
+        this.maxWorkerPoolSize = maxWorkerPoolSize;
+        this.busyWorkerThreadCount = busyWorkerThreadCount;
+        this.workerQueueSize = workerQueueSize;
+        this.workerQueueCapacity = workerQueueCapacity;
+    }
+
+    static WorkerPoolSnapshot of(int coreWorkerPoolSize, ThreadPoolExecutor pool, BlockingQueue<?> queue)
+    {
+        return new WorkerPoolSnapshot(coreWorkerPoolSize, pool.getMaximumPoolSize(), pool.getActiveCount(), queue.size(), queue.remainingCapacity());
+    }
+
+    public int getCoreWorkerPoolSize()
+    {
+        return coreWorkerPoolSize;
+    }
+
+    public int getMaxWorkerPoolSize()
+    {
+        return maxWorkerPoolSize;
+    }
+
+    public int getBusyWorkerThreadCount()
+    {
+        return busyWorkerThreadCount;
+    }
+
+    public int getWorkerQueueSize()
+    {
+        return workerQueueSize;
+    }
+
+    // Remaining capacity of the queue, as `getWorkerQueueCapacity()` of UnderwrapMetrics
+    public int getWorkerQueueCapacity()
+    {
+        return workerQueueCapacity;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WorkerPoolSnapshot{" +
+                "coreWorkerPoolSize=" + coreWorkerPoolSize +
+                ", maxWorkerPoolSize=" + maxWorkerPoolSize +
+                ", busyWorkerThreadCount=" + busyWorkerThreadCount +
+                ", workerQueueSize=" + workerQueueSize +
+                ", workerQueueCapacity=" + workerQueueCapacity +
+                '}';
+    }
+}
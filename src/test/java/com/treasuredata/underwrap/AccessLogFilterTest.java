@@ -0,0 +1,64 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AccessLogFilterTest
+{
+    private static HttpServerExchange exchange(String path, int statusCode)
+    {
+        HttpServerExchange exchange = new HttpServerExchange(null);
+        exchange.setRequestPath(path);
+        exchange.setStatusCode(statusCode);
+        return exchange;
+    }
+
+    @Test
+    public void sampleByLongestPathPrefix()
+    {
+        AccessLogFilter filter = AccessLogFilter.builder()
+                .setSampleRate("/api", 1.0)
+                .setSampleRate("/api/poll", 0.0)
+                .setDefaultSampleRate(0.0)
+                .build();
+
+        assertThat(filter.shouldLog(exchange("/api/users", 200)), is(true));
+        assertThat(filter.shouldLog(exchange("/api/poll/1", 200)), is(false));
+        assertThat(filter.shouldLog(exchange("/api/poll/2", 200)), is(false));
+        assertThat(filter.shouldLog(exchange("/other", 200)), is(false));
+
+        assertThat(filter.getSampledOutCount(), is(3L));
+        assertThat(filter.getSampledOutCountsByPathPrefix(), hasEntry("/api/poll", 2L));
+        assertThat(filter.getSampledOutCountsByPathPrefix(), hasEntry("", 1L));
+    }
+
+    @Test
+    public void alwaysLogErrors()
+    {
+        AccessLogFilter filter = AccessLogFilter.builder()
+                .setDefaultSampleRate(0.0)
+                .build();
+
+        assertThat(filter.shouldLog(exchange("/health", 200)), is(false));
+        assertThat(filter.shouldLog(exchange("/health", 404)), is(true));
+        assertThat(filter.shouldLog(exchange("/health", 503)), is(true));
+    }
+
+    @Test
+    public void excludeEvenErrors()
+    {
+        AccessLogFilter filter = AccessLogFilter.builder()
+                .addExcludedPathPrefix("/health")
+                .build();
+
+        assertThat(filter.shouldLog(exchange("/health", 200)), is(false));
+        assertThat(filter.shouldLog(exchange("/health", 500)), is(false));
+        assertThat(filter.shouldLog(exchange("/hello", 200)), is(true));
+        assertThat(filter.getExcludedCount(), is(2L));
+        assertThat(filter.getSampledOutCount(), is(0L));
+    }
+}
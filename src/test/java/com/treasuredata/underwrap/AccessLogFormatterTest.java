@@ -0,0 +1,117 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.attribute.ExchangeAttributes;
+import io.undertow.attribute.SubstituteEmptyWrapper;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.Protocols;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AccessLogFormatterTest
+{
+    private static final String FORMAT = "host:%a\tforwardedfor:%{i,X-Forwarded-For}\treq:%r\tstatus:%s\tsize:%b\tduration:%D.%T\tua:%{i,User-Agent}";
+
+    private HttpServerExchange exchange;
+
+    @Before
+    public void setUp()
+    {
+        exchange = new HttpServerExchange(null);
+        exchange.setSourceAddress(new InetSocketAddress("127.0.0.1", 12345));
+        exchange.setRequestMethod(Methods.GET);
+        exchange.setProtocol(Protocols.HTTP_1_1);
+        exchange.setRequestURI("/hello");
+        exchange.setQueryString("name=world");
+        exchange.setStatusCode(404);
+        exchange.getRequestHeaders().put(new HttpString("User-Agent"), "curl \"7\"\tx");
+    }
+
+    private String formatToString(String format, AccessLogFormatter.OutputFormat outputFormat)
+    {
+        AccessLogFormatter formatter = AccessLogFormatter.compile(format, outputFormat, getClass().getClassLoader());
+        return new String(formatter.format(exchange), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void ltsvIsCompatibleWithUndertowAttributes()
+    {
+        String expected = ExchangeAttributes.parser(getClass().getClassLoader(), new SubstituteEmptyWrapper("-"))
+                .parse(FORMAT).readAttribute(exchange);
+
+        assertThat(formatToString(FORMAT, AccessLogFormatter.OutputFormat.LTSV), is(expected + "\n"));
+    }
+
+    @Test
+    public void ltsvFallsBackToUndertowAttributes()
+    {
+        assertThat(formatToString("method:%{METHOD}\tpath:%{RELATIVE_PATH}\t100%%", AccessLogFormatter.OutputFormat.LTSV), is("method:GET\tpath:-\t100%\n"));
+    }
+
+    @Test
+    public void json()
+    {
+        assertThat(formatToString(FORMAT, AccessLogFormatter.OutputFormat.JSON),
+                is("{\"host\":\"127.0.0.1\",\"forwardedfor\":\"-\",\"req\":\"GET /hello?name=world HTTP/1.1\"," +
+                        "\"status\":404,\"size\":0,\"duration\":\"-.-\",\"ua\":\"curl \\\"7\\\"\\tx\"}\n"));
+    }
+
+    @Test
+    public void binary()
+            throws IOException
+    {
+        AccessLogFormatter formatter = AccessLogFormatter.compile(FORMAT, AccessLogFormatter.OutputFormat.BINARY, getClass().getClassLoader());
+        assertThat(formatter.getFieldNames(), contains("host", "forwardedfor", "req", "status", "size", "duration", "ua"));
+
+        byte[] record = formatter.format(exchange);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        assertThat(in.readInt(), is(record.length - 4));
+        assertThat(readString(in), is("127.0.0.1"));
+        assertThat(readString(in), is("-"));
+        assertThat(readString(in), is("GET /hello?name=world HTTP/1.1"));
+        assertThat(in.readByte(), is((byte) 1));
+        assertThat(in.readLong(), is(404L));
+        assertThat(in.readByte(), is((byte) 1));
+        assertThat(in.readLong(), is(0L));
+        assertThat(readString(in), is("-.-"));
+        assertThat(readString(in), is("curl \"7\"\tx"));
+        assertThat(in.available(), is(0));
+    }
+
+    private static String readString(DataInputStream in)
+            throws IOException
+    {
+        assertThat(in.readByte(), is((byte) 2));
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void structuredOutputNeedsLabels()
+    {
+        AccessLogFormatter.compile("common", AccessLogFormatter.OutputFormat.JSON, getClass().getClassLoader());
+    }
+
+    @Test
+    public void phaseTimings()
+    {
+        PhaseTimings.Timing timing = new PhaseTimings.Timing(1000);
+        timing.workerStart = 3000;
+        timing.resourceStart = 4000;
+        exchange.putAttachment(PhaseTimings.TIMING, timing);
+        assertThat(formatToString("queue:%{phase,queue}\tdispatch:%{phase,dispatch}\tresource:%{phase,resource}", AccessLogFormatter.OutputFormat.JSON),
+                is("{\"queue\":2,\"dispatch\":1,\"resource\":null}\n"));
+    }
+}
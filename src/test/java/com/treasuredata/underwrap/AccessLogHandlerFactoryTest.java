@@ -1,12 +1,17 @@
 package com.treasuredata.underwrap;
 
+import io.undertow.server.handlers.ResponseCodeHandler;
+import io.undertow.server.handlers.accesslog.AccessLogHandler;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.ws.rs.core.Application;
 
 import java.io.File;
 import java.nio.file.Paths;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.*;
 
@@ -17,6 +22,17 @@ public class AccessLogHandlerFactoryTest
     {
     }
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void createUndertowAccessLogHandler()
+    {
+        AccessLogHandlerFactory factory = new AccessLogHandlerFactory(DummyApplication.class, null, temporaryFolder.getRoot().toPath());
+        AccessLogHandler handler = factory.create(ResponseCodeHandler.HANDLE_200);
+        assertThat(handler.toString(), containsString("time:%t"));
+    }
+
     @Test
     public void buildAccessLogPathWithAbsolutePath()
     {
@@ -0,0 +1,62 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveConcurrencyLimitTest
+{
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static AdaptiveConcurrencyLimit newLimit()
+    {
+        return AdaptiveConcurrencyLimit.builder()
+                .setInitialLimit(20)
+                .setMaxLimit(200)
+                .setWindow(100, TimeUnit.MILLISECONDS, 1)
+                .setLongWindows(10)
+                .build();
+    }
+
+    // Feeds one sample per window
+    private static long feed(AdaptiveConcurrencyLimit limit, long now, int windows, long rttMillis, int inFlight)
+    {
+        for (int i = 0; i < windows; i++) {
+            now += WINDOW_NANOS;
+            limit.update(TimeUnit.MILLISECONDS.toNanos(rttMillis), inFlight, now);
+        }
+        return now;
+    }
+
+    @Test
+    public void growWhileLatencyIsStable()
+    {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        feed(limit, System.nanoTime(), 20, 10, 20);
+        assertThat(limit.getLimit(), is(greaterThan(20)));
+    }
+
+    @Test
+    public void shrinkWhenLatencyGrows()
+    {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        long now = feed(limit, System.nanoTime(), 20, 10, 20);
+        int stable = limit.getLimit();
+
+        feed(limit, now, 10, 50, stable);
+        assertThat(limit.getLimit(), is(lessThan(stable)));
+    }
+
+    @Test
+    public void doNotGrowWhenUnderused()
+    {
+        AdaptiveConcurrencyLimit limit = newLimit();
+        feed(limit, System.nanoTime(), 20, 10, 2);
+        assertThat(limit.getLimit(), is(20));
+    }
+}
@@ -0,0 +1,183 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncAccessLogReceiverTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void ringBufferRejectsWhenFull()
+    {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(3);
+        assertThat(ring.capacity(), is(4));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertThat(ring.offer(4), is(false));
+        assertThat(ring.size(), is(4));
+
+        assertThat(ring.poll(), is(0));
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertThat(ring.poll(), is(i));
+        }
+        assertThat(ring.poll(), is(nullValue()));
+        assertThat(ring.size(), is(0));
+    }
+
+    @Test
+    public void writeLinesFromMultipleThreads()
+            throws IOException, InterruptedException
+    {
+        Path dir = temporaryFolder.getRoot().toPath();
+        AsyncAccessLogReceiver receiver = new AsyncAccessLogReceiver(dir, "access.", "log",
+                1024, AsyncAccessLogReceiver.OverflowPolicy.BLOCK, AsyncAccessLogReceiver.DEFAULT_OVERFLOW_SAMPLE_RATE);
+
+        int threads = 4;
+        int linesPerThread = 5000;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            executorService.execute(() -> {
+                for (int i = 0; i < linesPerThread; i++) {
+                    receiver.logMessage("thread:" + id + "\tline:" + i);
+                }
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        receiver.close();
+
+        List<String> lines = Files.readAllLines(dir.resolve("access.log"), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(threads * linesPerThread));
+        assertThat(receiver.getWrittenLineCount(), is((long) threads * linesPerThread));
+        assertThat(receiver.getDroppedLineCount(), is(0L));
+
+        // Lines from one producer keep their order
+        List<String> fromFirstThread = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith("thread:0\t")) {
+                fromFirstThread.add(line);
+            }
+        }
+        for (int i = 0; i < linesPerThread; i++) {
+            assertThat(fromFirstThread.get(i), is("thread:0\tline:" + i));
+        }
+    }
+
+    @Test
+    public void dropAfterClose()
+            throws IOException
+    {
+        Path dir = temporaryFolder.getRoot().toPath();
+        AsyncAccessLogReceiver receiver = new AsyncAccessLogReceiver(dir, "access.", "log");
+        receiver.logMessage("before close");
+        receiver.close();
+        receiver.logMessage("after close");
+
+        assertThat(Files.readAllLines(dir.resolve("access.log"), StandardCharsets.UTF_8).size(), is(1));
+        assertThat(receiver.getWrittenLineCount(), is(1L));
+        assertThat(receiver.getDroppedLineCount(), is(1L));
+    }
+
+    @Test
+    public void rotateBySizeAndCompress()
+            throws IOException, InterruptedException
+    {
+        Path dir = temporaryFolder.getRoot().toPath();
+        AccessLogRotationPolicy policy = AccessLogRotationPolicy.builder()
+                .setMaxFileSize(1000)
+                .setCompressionEnabled(true)
+                .setCompressionBytesPerSecond(1024 * 1024)
+                .setMaxRetainedFiles(2)
+                .build();
+        AsyncAccessLogReceiver receiver = new AsyncAccessLogReceiver(dir, "access.", "log",
+                1024, AsyncAccessLogReceiver.OverflowPolicy.BLOCK, AsyncAccessLogReceiver.DEFAULT_OVERFLOW_SAMPLE_RATE, policy);
+
+        // Each batch is 800 bytes, so every batch after the first one goes to a new file
+        List<String> expected = new ArrayList<>();
+        for (int batch = 0; batch < 5; batch++) {
+            for (int i = 0; i < 10; i++) {
+                String line = String.format("batch:%d\tline:%d\tpadding:%060d", batch, i, 0);
+                expected.add(line);
+                receiver.logMessage(line);
+            }
+            while (receiver.getWrittenLineCount() < expected.size()) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+
+        List<String> rotated = waitForRotatedFiles(dir, 2);
+        assertThat(rotated, everyItem(endsWith(".log.gz")));
+        receiver.close();
+
+        // The size is checked before each drained chunk is written, so the writer may split a batch across files.
+        // No file exceeds the limit, and the retained files hold the latest lines in order
+        List<String> retained = new ArrayList<>();
+        for (String name : rotated) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(dir.resolve(name)));
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                List<String> lines = reader.lines().collect(Collectors.toList());
+                assertTrue(name, size(lines) <= 1000);
+                retained.addAll(lines);
+            }
+        }
+        List<String> active = Files.readAllLines(dir.resolve("access.log"), StandardCharsets.UTF_8);
+        assertTrue(size(active) <= 1000);
+        retained.addAll(active);
+        assertThat(retained, is(expected.subList(expected.size() - retained.size(), expected.size())));
+        assertThat(receiver.getWrittenLineCount(), is(50L));
+    }
+
+    private static int size(List<String> lines)
+    {
+        return lines.stream().mapToInt(line -> line.length() + 1).sum();
+    }
+
+    private static List<String> waitForRotatedFiles(Path dir, int expected)
+            throws IOException, InterruptedException
+    {
+        for (int retry = 0; retry < 500; retry++) {
+            List<String> files;
+            try (Stream<Path> stream = Files.list(dir)) {
+                files = stream
+                        .map(path -> path.getFileName().toString())
+                        .filter(name -> !name.equals("access.log"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            if (files.size() == expected && files.stream().allMatch(name -> name.endsWith(".gz"))) {
+                return files;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        throw new AssertionError("Rotated files weren't compressed and cleaned up");
+    }
+}
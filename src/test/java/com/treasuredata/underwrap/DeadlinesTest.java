@@ -0,0 +1,61 @@
+package com.treasuredata.underwrap;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DeadlinesTest
+{
+    private final Deadlines deadlines = new Deadlines(DeadlinePolicy.builder()
+            .setHeader("X-Request-Timeout")
+            .setTimeout("/api/", 10, TimeUnit.SECONDS)
+            .build());
+
+    private static HttpServerExchange exchange(String path, String timeout)
+    {
+        HttpServerExchange exchange = new HttpServerExchange(null);
+        exchange.setRequestPath(path);
+        if (timeout != null) {
+            exchange.getRequestHeaders().put(new HttpString("X-Request-Timeout"), timeout);
+        }
+        return exchange;
+    }
+
+    private long remainingMillis(String path, String timeout)
+    {
+        return deadlines.deadlineOf(exchange(path, timeout)).getRemaining(TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void headerShortensRouteTimeout()
+    {
+        assertThat(remainingMillis("/api/users", "1000"), is(allOf(greaterThan(0L), lessThanOrEqualTo(1000L))));
+        // Not extended over the route timeout
+        assertThat(remainingMillis("/api/users", "60000"), is(allOf(greaterThan(1000L), lessThanOrEqualTo(10000L))));
+    }
+
+    @Test
+    public void invalidHeaderIsIgnored()
+    {
+        for (String timeout : new String[] {"0", "-1", "abc"}) {
+            assertThat(timeout, remainingMillis("/api/users", timeout), is(allOf(greaterThan(1000L), lessThanOrEqualTo(10000L))));
+            assertThat(timeout, deadlines.deadlineOf(exchange("/other", timeout)), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void headerWithoutRouteTimeout()
+    {
+        assertThat(remainingMillis("/other", "60000"), is(allOf(greaterThan(10000L), lessThanOrEqualTo(60000L))));
+        assertThat(deadlines.deadlineOf(exchange("/other", null)), is(nullValue()));
+    }
+}
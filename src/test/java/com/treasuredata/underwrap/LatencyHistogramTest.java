@@ -0,0 +1,67 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void bucketBoundaries()
+    {
+        for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, (1L << 40) - 1}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(index, is(lessThanOrEqualTo(LatencyHistogram.BUCKET_COUNT - 1)));
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertThat(highest, is(greaterThanOrEqualTo(value)));
+            assertThat((double) (highest - value), is(lessThanOrEqualTo(value / 16.0)));
+            assertThat(LatencyHistogram.bucketIndex(highest + 1), is(index + 1));
+        }
+    }
+
+    @Test
+    public void percentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1001L));
+        assertThat(snapshot.getMax(), is(1000000L));
+        assertThat(snapshot.getP50(), is(allOf(greaterThanOrEqualTo(500000L), lessThanOrEqualTo(500000L + 500000L / 16))));
+        assertThat(snapshot.getP99(), is(allOf(greaterThanOrEqualTo(990000L), lessThanOrEqualTo(1000000L))));
+        assertThat(snapshot.getP999(), is(1000000L));
+        assertThat(snapshot.getCountAtOrBelow(0), is(1L));
+    }
+
+    @Test
+    public void concurrentRecording()
+            throws InterruptedException
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    histogram.record(j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(400000L));
+        assertThat(snapshot.getSum(), is(4L * 99999 * 100000 / 2));
+        assertThat(snapshot.getMax(), is(99999L));
+    }
+}
@@ -0,0 +1,878 @@
+package com.treasuredata.underwrap;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// An open-loop HTTP load generator for capacity regression tests of an UnderwrapServer over loopback, without
+// outside services. Shipped in the tests jar.
+//
+// Requests are scheduled at a constant rate and sent over `connections` keep-alive connections from one NIO selector
+// thread. A request that finds no idle connection waits for one, but its latency is still measured from the time it
+// was scheduled, not sent, so that a stalled server isn't hidden by the generator slowing down with it (coordinated
+// omission). The time from sending to the end of the response is reported separately as the service time.
+//
+// Requests scheduled during the warmup aren't counted. Requests without a response within `drainTimeout` after the
+// run are counted as timed out, and aren't in the latency histograms.
+//
+//     LoadHarness.Result result = LoadHarness.builder()
+//             .setPath("/hello")
+//             .setRequestsPerSecond(1000)
+//             .setDuration(10, TimeUnit.SECONDS)
+//             .build()
+//             .run(new UnderwrapServer(MyApplication.class));
+//     assertThat(result.getLatency().getP99(), is(lessThan(TimeUnit.MILLISECONDS.toNanos(50))));
+public final class LoadHarness
+{
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final double requestsPerSecond;
+    private final int connections;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long drainTimeoutNanos;
+    private final long sampleIntervalNanos;
+    private final UnderwrapServer.ServerBuildFunction serverBuildFunction;
+
+    private LoadHarness(Builder builder)
+    {
+        this.method = builder.method;
+        this.path = builder.path;
+        this.headers = new LinkedHashMap<>(builder.headers);
+        this.body = builder.body;
+        this.requestsPerSecond = builder.requestsPerSecond;
+        this.connections = builder.connections;
+        this.durationNanos = builder.durationNanos;
+        this.warmupNanos = builder.warmupNanos;
+        this.drainTimeoutNanos = builder.drainTimeoutNanos;
+        this.sampleIntervalNanos = builder.sampleIntervalNanos;
+        this.serverBuildFunction = builder.serverBuildFunction;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    // Starts `server` with an HTTP listener on an ephemeral loopback port, runs the load and stops it
+    public Result run(UnderwrapServer server)
+            throws IOException
+    {
+        server.start(Collections.emptyMap(), null, builder -> {
+            if (serverBuildFunction != null) {
+                builder = serverBuildFunction.build(builder);
+            }
+            return builder.addHttpListener(0, "127.0.0.1");
+        });
+        try {
+            InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+            return run(new InetSocketAddress("127.0.0.1", address.getPort()), server.getMetrics());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    // Runs the load against a started server. `metrics` may be null, then the result has no samples
+    public Result run(InetSocketAddress address, UnderwrapMetrics metrics)
+            throws IOException
+    {
+        byte[] request = requestBytes(address);
+        long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        List<MetricsSample> samples = new CopyOnWriteArrayList<>();
+        ScheduledExecutorService sampler = null;
+        if (metrics != null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("underwrap-load-sampler-%d")
+                    .build());
+            long measureStartNanos = startNanos + warmupNanos;
+            sampler.scheduleAtFixedRate(() -> samples.add(new MetricsSample(System.nanoTime() - measureStartNanos,
+                            metrics.snapshot(), metrics.getBufferPoolSnapshot(), metrics.getEndpointMetrics())),
+                    startNanos + warmupNanos + sampleIntervalNanos - System.nanoTime(), sampleIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+        try (Generator generator = new Generator(address, request, startNanos)) {
+            return generator.run(samples);
+        }
+        finally {
+            if (sampler != null) {
+                sampler.shutdownNow();
+            }
+        }
+    }
+
+    private byte[] requestBytes(InetSocketAddress address)
+    {
+        StringBuilder head = new StringBuilder()
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(address.getHostString()).append(':').append(address.getPort()).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] bytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+        return bytes;
+    }
+
+    // Runs on the calling thread, which owns all the state
+    private class Generator
+        implements AutoCloseable
+    {
+        private final InetSocketAddress address;
+        private final byte[] request;
+        private final long startNanos;
+        private final long measureStartNanos;
+        private final double intervalNanos;
+        private final long totalRequests;
+        private final Selector selector;
+        private final List<Connection> all = new ArrayList<>();
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final Map<Integer, Long> statusCounts = new TreeMap<>();
+        private long nextRequest;
+        private long inFlight;
+        private long sent;
+        private long completed;
+        private long errors;
+        private long lastCompletedNanos;
+
+        Generator(InetSocketAddress address, byte[] request, long startNanos)
+                throws IOException
+        {
+            this.address = address;
+            this.request = request;
+            this.startNanos = startNanos;
+            this.measureStartNanos = startNanos + warmupNanos;
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+            this.totalRequests = (long) Math.ceil((warmupNanos + durationNanos) / intervalNanos);
+            this.selector = Selector.open();
+            this.lastCompletedNanos = measureStartNanos;
+        }
+
+        Result run(List<MetricsSample> samples)
+                throws IOException
+        {
+            for (int i = 0; i < connections; i++) {
+                connect(new Connection());
+            }
+            long deadlineNanos = startNanos + warmupNanos + durationNanos + drainTimeoutNanos;
+            while (true) {
+                long now = System.nanoTime();
+                while (nextRequest < totalRequests && scheduledNanos(nextRequest) <= now && !idle.isEmpty()) {
+                    send(idle.poll(), scheduledNanos(nextRequest++), now);
+                }
+                if (nextRequest == totalRequests && inFlight == 0 || now - deadlineNanos >= 0) {
+                    break;
+                }
+                long waitNanos = deadlineNanos - now;
+                if (nextRequest < totalRequests && !idle.isEmpty()) {
+                    waitNanos = Math.min(waitNanos, scheduledNanos(nextRequest) - now);
+                }
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+                if (waitMillis > 0) {
+                    selector.select(waitMillis);
+                }
+                else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        handle(connection, key);
+                    }
+                    catch (IOException e) {
+                        if (connection.awaiting) {
+                            inFlight--;
+                            if (connection.measured) {
+                                errors++;
+                            }
+                        }
+                        reconnect(connection);
+                    }
+                }
+            }
+
+            long unsent = 0;
+            for (long i = nextRequest; i < totalRequests; i++) {
+                if (scheduledNanos(i) - measureStartNanos >= 0) {
+                    unsent++;
+                }
+            }
+            long timedOut = unsent;
+            for (Connection connection : all) {
+                if (connection.awaiting && connection.measured) {
+                    timedOut++;
+                }
+            }
+            return new Result(requestsPerSecond, connections, Math.max(lastCompletedNanos - measureStartNanos, 1),
+                    sent, completed, errors, timedOut, statusCounts, latency.snapshot(), serviceTime.snapshot(), samples);
+        }
+
+        private long scheduledNanos(long index)
+        {
+            return startNanos + (long) (index * intervalNanos);
+        }
+
+        private void connect(Connection connection)
+                throws IOException
+        {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection.reset(channel);
+            if (channel.connect(address)) {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                idle.add(connection);
+            }
+            else {
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            }
+            if (!all.contains(connection)) {
+                all.add(connection);
+            }
+        }
+
+        private void reconnect(Connection connection)
+                throws IOException
+        {
+            idle.remove(connection);
+            connection.close();
+            connect(connection);
+        }
+
+        private void send(Connection connection, long scheduledNanos, long now)
+                throws IOException
+        {
+            connection.scheduledNanos = scheduledNanos;
+            connection.sentNanos = now;
+            connection.measured = scheduledNanos - measureStartNanos >= 0;
+            connection.awaiting = true;
+            connection.output = ByteBuffer.wrap(request);
+            inFlight++;
+            if (connection.measured) {
+                sent++;
+            }
+            try {
+                connection.flush();
+            }
+            catch (IOException e) {
+                inFlight--;
+                if (connection.measured) {
+                    errors++;
+                }
+                reconnect(connection);
+            }
+        }
+
+        private void handle(Connection connection, SelectionKey key)
+                throws IOException
+        {
+            if (key.isConnectable()) {
+                connection.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                idle.add(connection);
+                return;
+            }
+            if (key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isReadable()) {
+                boolean eof = connection.read();
+                if (connection.awaiting && connection.parse(eof)) {
+                    complete(connection);
+                    if (!eof && connection.keepAlive) {
+                        idle.add(connection);
+                        return;
+                    }
+                    reconnect(connection);
+                }
+                else if (eof) {
+                    throw new EOFException("Connection closed before the end of the response");
+                }
+            }
+        }
+
+        private void complete(Connection connection)
+        {
+            long now = System.nanoTime();
+            connection.awaiting = false;
+            inFlight--;
+            if (!connection.measured) {
+                return;
+            }
+            latency.record(now - connection.scheduledNanos);
+            serviceTime.record(now - connection.sentNanos);
+            statusCounts.merge(connection.status, 1L, Long::sum);
+            completed++;
+            lastCompletedNanos = now;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            for (Connection connection : all) {
+                connection.close();
+            }
+            selector.close();
+        }
+    }
+
+    private enum ParseState
+    {
+        HEAD,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        TRAILER,
+        UNTIL_CLOSE,
+    }
+
+    // One keep-alive connection, which has at most one request in flight
+    private class Connection
+    {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer output;
+        private ParseState state;
+        private long remaining;
+        private int status;
+        private boolean keepAlive;
+        private boolean awaiting;
+        private boolean measured;
+        private long scheduledNanos;
+        private long sentNanos;
+
+        void reset(SocketChannel channel)
+        {
+            this.channel = channel;
+            this.input.clear();
+            this.output = null;
+            this.state = ParseState.HEAD;
+            this.awaiting = false;
+        }
+
+        void flush()
+                throws IOException
+        {
+            channel.write(output);
+            key.interestOps(output.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // Returns true at the end of the stream
+        boolean read()
+                throws IOException
+        {
+            while (true) {
+                if (!input.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+                    input.flip();
+                    larger.put(input);
+                    input = larger;
+                }
+                int n = channel.read(input);
+                if (n < 0) {
+                    return true;
+                }
+                if (n == 0) {
+                    return false;
+                }
+            }
+        }
+
+        // Returns true if the response is complete
+        boolean parse(boolean eof)
+                throws IOException
+        {
+            input.flip();
+            try {
+                while (true) {
+                    switch (state) {
+                        case HEAD: {
+                            int end = indexOf(input, new byte[] {'\r', '\n', '\r', '\n'});
+                            if (end < 0) {
+                                return false;
+                            }
+                            byte[] head = new byte[end - input.position()];
+                            input.get(head);
+                            input.position(end + 4);
+                            if (parseHead(new String(head, StandardCharsets.ISO_8859_1))) {
+                                state = ParseState.HEAD;
+                                return true;
+                            }
+                            break;
+                        }
+                        case BODY:
+                        case CHUNK_DATA: {
+                            int skip = (int) Math.min(remaining, input.remaining());
+                            input.position(input.position() + skip);
+                            remaining -= skip;
+                            if (remaining > 0) {
+                                return false;
+                            }
+                            if (state == ParseState.BODY) {
+                                state = ParseState.HEAD;
+                                return true;
+                            }
+                            state = ParseState.CHUNK_SIZE;
+                            break;
+                        }
+                        case CHUNK_SIZE: {
+                            String line = readLine(input);
+                            if (line == null) {
+                                return false;
+                            }
+                            int extension = line.indexOf(';');
+                            long size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                            if (size == 0) {
+                                state = ParseState.TRAILER;
+                            }
+                            else {
+                                // With the CRLF after the data
+                                remaining = size + 2;
+                                state = ParseState.CHUNK_DATA;
+                            }
+                            break;
+                        }
+                        case TRAILER: {
+                            String line = readLine(input);
+                            if (line == null) {
+                                return false;
+                            }
+                            if (line.isEmpty()) {
+                                state = ParseState.HEAD;
+                                return true;
+                            }
+                            break;
+                        }
+                        case UNTIL_CLOSE: {
+                            input.position(input.limit());
+                            if (eof) {
+                                state = ParseState.HEAD;
+                                return true;
+                            }
+                            return false;
+                        }
+                        default:
+                            throw new IllegalStateException("Unknown state: " + state);
+                    }
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed response", e);
+            }
+            finally {
+                input.compact();
+            }
+        }
+
+        // Returns true if the response has no body
+        private boolean parseHead(String head)
+                throws IOException
+        {
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.")) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + lines[0], e);
+            }
+            keepAlive = statusLine[0].equals("HTTP/1.1");
+            long contentLength = -1;
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+                switch (name) {
+                    case "content-length":
+                        contentLength = Long.parseLong(value);
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.endsWith("chunked");
+                        break;
+                    case "connection":
+                        keepAlive = value.equals("keep-alive") || keepAlive && !value.equals("close");
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (method.equals("HEAD") || status / 100 == 1 || status == 204 || status == 304) {
+                return true;
+            }
+            if (chunked) {
+                state = ParseState.CHUNK_SIZE;
+            }
+            else if (contentLength >= 0) {
+                remaining = contentLength;
+                state = ParseState.BODY;
+            }
+            else {
+                keepAlive = false;
+                state = ParseState.UNTIL_CLOSE;
+            }
+            return false;
+        }
+
+        void close()
+                throws IOException
+        {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static String readLine(ByteBuffer buffer)
+    {
+        int end = indexOf(buffer, CRLF);
+        if (end < 0) {
+            return null;
+        }
+        byte[] line = new byte[end - buffer.position()];
+        buffer.get(line);
+        buffer.position(end + 2);
+        return new String(line, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern)
+    {
+        outer:
+        for (int i = buffer.position(); i <= buffer.limit() - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public static final class Result
+    {
+        private final double requestsPerSecond;
+        private final int connections;
+        private final long elapsedNanos;
+        private final long sentCount;
+        private final long completedCount;
+        private final long errorCount;
+        private final long timedOutCount;
+        private final Map<Integer, Long> statusCounts;
+        private final LatencyHistogram.Snapshot latency;
+        private final LatencyHistogram.Snapshot serviceTime;
+        private final List<MetricsSample> metricsSamples;
+
+        private Result(double requestsPerSecond, int connections, long elapsedNanos, long sentCount, long completedCount, long errorCount, long timedOutCount,
+                Map<Integer, Long> statusCounts, LatencyHistogram.Snapshot latency, LatencyHistogram.Snapshot serviceTime, List<MetricsSample> metricsSamples)
+        {
+            this.requestsPerSecond = requestsPerSecond;
+            this.connections = connections;
+            this.elapsedNanos = elapsedNanos;
+            this.sentCount = sentCount;
+            this.completedCount = completedCount;
+            this.errorCount = errorCount;
+            this.timedOutCount = timedOutCount;
+            this.statusCounts = Collections.unmodifiableMap(new TreeMap<>(statusCounts));
+            this.latency = latency;
+            this.serviceTime = serviceTime;
+            this.metricsSamples = Collections.unmodifiableList(new ArrayList<>(metricsSamples));
+        }
+
+        public double getRequestsPerSecond()
+        {
+            return requestsPerSecond;
+        }
+
+        // From the end of the warmup to the last response
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+
+        // Responses per second
+        public double getThroughput()
+        {
+            return completedCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        public long getSentCount()
+        {
+            return sentCount;
+        }
+
+        public long getCompletedCount()
+        {
+            return completedCount;
+        }
+
+        // Requests that failed with connection errors or malformed responses
+        public long getErrorCount()
+        {
+            return errorCount;
+        }
+
+        // Requests that weren't sent or answered within the drain timeout
+        public long getTimedOutCount()
+        {
+            return timedOutCount;
+        }
+
+        public Map<Integer, Long> getStatusCounts()
+        {
+            return statusCounts;
+        }
+
+        // Nanoseconds from the scheduled time of requests, corrected for coordinated omission
+        public LatencyHistogram.Snapshot getLatency()
+        {
+            return latency;
+        }
+
+        // Nanoseconds from the time requests were sent
+        public LatencyHistogram.Snapshot getServiceTime()
+        {
+            return serviceTime;
+        }
+
+        public List<MetricsSample> getMetricsSamples()
+        {
+            return metricsSamples;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Result{" +
+                    "requestsPerSecond=" + requestsPerSecond +
+                    ", connections=" + connections +
+                    ", throughput=" + String.format("%.1f", getThroughput()) +
+                    ", completedCount=" + completedCount +
+                    ", errorCount=" + errorCount +
+                    ", timedOutCount=" + timedOutCount +
+                    ", statusCounts=" + statusCounts +
+                    ", latency={p50=" + millis(latency.getP50()) + ", p99=" + millis(latency.getP99()) + ", p999=" + millis(latency.getP999()) + ", max=" + millis(latency.getMax()) + "}" +
+                    ", serviceTime={p50=" + millis(serviceTime.getP50()) + ", p99=" + millis(serviceTime.getP99()) + ", p999=" + millis(serviceTime.getP999()) + ", max=" + millis(serviceTime.getMax()) + "}" +
+                    ", maxBusyWorkerThreadCount=" + metricsSamples.stream().mapToInt(sample -> sample.getWorkerPool().getBusyWorkerThreadCount()).max().orElse(0) +
+                    ", maxWorkerQueueSize=" + metricsSamples.stream().mapToInt(sample -> sample.getWorkerPool().getWorkerQueueSize()).max().orElse(0) +
+                    '}';
+        }
+
+        private static String millis(long nanos)
+        {
+            return String.format("%.3fms", nanos / 1e6);
+        }
+    }
+
+    // UnderwrapMetrics read at one point during the run
+    public static final class MetricsSample
+    {
+        private final long elapsedNanos;
+        private final WorkerPoolSnapshot workerPool;
+        private final BufferPoolSnapshot bufferPool;
+        private final Map<String, EndpointMetrics.Snapshot> endpointMetrics;
+
+        private MetricsSample(long elapsedNanos, WorkerPoolSnapshot workerPool, BufferPoolSnapshot bufferPool, Map<String, EndpointMetrics.Snapshot> endpointMetrics)
+        {
+            this.elapsedNanos = elapsedNanos;
+            this.workerPool = workerPool;
+            this.bufferPool = bufferPool;
+            this.endpointMetrics = endpointMetrics;
+        }
+
+        // From the end of the warmup
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+
+        public WorkerPoolSnapshot getWorkerPool()
+        {
+            return workerPool;
+        }
+
+        // Null unless buffer pool metrics are enabled
+        public BufferPoolSnapshot getBufferPool()
+        {
+            return bufferPool;
+        }
+
+        // Empty unless endpoint metrics are enabled
+        public Map<String, EndpointMetrics.Snapshot> getEndpointMetrics()
+        {
+            return endpointMetrics;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "MetricsSample{" +
+                    "elapsedNanos=" + elapsedNanos +
+                    ", workerPool=" + workerPool +
+                    ", bufferPool=" + bufferPool +
+                    '}';
+        }
+    }
+
+    public static class Builder
+    {
+        private String method = "GET";
+        private String path = "/";
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private byte[] body;
+        private double requestsPerSecond = 100;
+        private int connections = 16;
+        private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+        private long warmupNanos;
+        private long drainTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+        private long sampleIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+        private UnderwrapServer.ServerBuildFunction serverBuildFunction;
+
+        private Builder()
+        {
+        }
+
+        public Builder setMethod(String method)
+        {
+            this.method = method;
+            return this;
+        }
+
+        // With the query string
+        public Builder setPath(String path)
+        {
+            if (!path.startsWith("/")) {
+                throw new IllegalArgumentException("path must start with '/': " + path);
+            }
+            this.path = path;
+            return this;
+        }
+
+        public Builder addHeader(String name, String value)
+        {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Builder setBody(byte[] body)
+        {
+            this.body = body;
+            return this;
+        }
+
+        public Builder setRequestsPerSecond(double requestsPerSecond)
+        {
+            if (!(requestsPerSecond > 0)) {
+                throw new IllegalArgumentException("requestsPerSecond must be positive: " + requestsPerSecond);
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+
+        // The maximum number of requests in flight
+        public Builder setConnections(int connections)
+        {
+            if (connections < 1) {
+                throw new IllegalArgumentException("connections must be at least 1: " + connections);
+            }
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder setDuration(long duration, TimeUnit unit)
+        {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("duration must be positive: " + duration);
+            }
+            this.durationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder setWarmup(long warmup, TimeUnit unit)
+        {
+            if (warmup < 0) {
+                throw new IllegalArgumentException("warmup must not be negative: " + warmup);
+            }
+            this.warmupNanos = unit.toNanos(warmup);
+            return this;
+        }
+
+        public Builder setDrainTimeout(long drainTimeout, TimeUnit unit)
+        {
+            if (drainTimeout < 0) {
+                throw new IllegalArgumentException("drainTimeout must not be negative: " + drainTimeout);
+            }
+            this.drainTimeoutNanos = unit.toNanos(drainTimeout);
+            return this;
+        }
+
+        public Builder setSampleInterval(long sampleInterval, TimeUnit unit)
+        {
+            if (sampleInterval <= 0) {
+                throw new IllegalArgumentException("sampleInterval must be positive: " + sampleInterval);
+            }
+            this.sampleIntervalNanos = unit.toNanos(sampleInterval);
+            return this;
+        }
+
+        // Applied before the loopback listener is added, by `run(UnderwrapServer)`
+        public Builder setServerBuildFunction(UnderwrapServer.ServerBuildFunction serverBuildFunction)
+        {
+            this.serverBuildFunction = serverBuildFunction;
+            return this;
+        }
+
+        public LoadHarness build()
+        {
+            return new LoadHarness(this);
+        }
+    }
+}
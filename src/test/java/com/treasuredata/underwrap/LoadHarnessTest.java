@@ -0,0 +1,62 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class LoadHarnessTest
+{
+    @Test
+    public void constantRate()
+            throws IOException
+    {
+        UnderwrapServer server = new UnderwrapServer(UnderwrapServerTest.TestApplication.class);
+        server.setBufferPoolMetricsEnabled(true);
+        LoadHarness.Result result = LoadHarness.builder()
+                .setPath("/hello")
+                .setRequestsPerSecond(200)
+                .setConnections(4)
+                .setWarmup(200, TimeUnit.MILLISECONDS)
+                .setDuration(1, TimeUnit.SECONDS)
+                .setSampleInterval(100, TimeUnit.MILLISECONDS)
+                .build()
+                .run(server);
+
+        assertThat(result.toString(), result.getSentCount(), is(200L));
+        assertThat(result.getCompletedCount(), is(200L));
+        assertThat(result.getErrorCount(), is(0L));
+        assertThat(result.getTimedOutCount(), is(0L));
+        assertThat(result.getStatusCounts().get(200), is(200L));
+        assertThat(result.getThroughput(), is(allOf(greaterThan(150.0), lessThan(250.0))));
+        assertThat(result.getLatency().getCount(), is(200L));
+        assertThat(result.getLatency().getP50(), is(greaterThan(0L)));
+        assertThat(result.getMetricsSamples().size(), is(greaterThan(0)));
+        assertThat(result.getMetricsSamples().get(0).getBufferPool().getAllocationCount(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void coordinatedOmission()
+            throws IOException
+    {
+        // One connection to a 50ms resource at 100 requests per second: requests queue behind each other
+        LoadHarness.Result result = LoadHarness.builder()
+                .setPath("/sequence?delay=50")
+                .setRequestsPerSecond(100)
+                .setConnections(1)
+                .setDuration(500, TimeUnit.MILLISECONDS)
+                .build()
+                .run(new UnderwrapServer(UnderwrapServerTest.TestApplication.class));
+
+        assertThat(result.toString(), result.getCompletedCount(), is(50L));
+        assertThat(result.getServiceTime().getP99(), is(lessThan(TimeUnit.MILLISECONDS.toNanos(500))));
+        assertThat(result.getLatency().getP99(), is(greaterThan(TimeUnit.SECONDS.toNanos(1))));
+        assertThat(result.getThroughput(), is(lessThan(50.0)));
+    }
+}
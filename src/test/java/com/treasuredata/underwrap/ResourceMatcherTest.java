@@ -0,0 +1,74 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ResourceMatcherTest
+{
+    @Test
+    public void matchesPathRegex()
+    {
+        ResourceMatcher<String> matcher = new ResourceMatcher<String>()
+                .add("/items/{id: [0-9]+}", "GET", "id")
+                .add("/items/{name}", "GET", null)
+                .add("/items/{a: [a-z]{2,3}}/{b}", "*", "nested");
+
+        assertThat(matcher.match("/items/42", "GET"), is("id"));
+        assertThat(matcher.match("/items/42/", "GET"), is("id"));
+        // Served by "/items/{name}", which has no value
+        assertThat(matcher.match("/items/abc", "GET"), is(nullValue()));
+        assertThat(matcher.match("/items/42", "POST"), is(nullValue()));
+        assertThat(matcher.match("/items/ab/c", "PUT"), is("nested"));
+        assertThat(matcher.match("/items/abcd/c", "PUT"), is(nullValue()));
+        assertThat(matcher.match("/other", "GET"), is(nullValue()));
+    }
+
+    @Test
+    public void prefersLiteralTemplates()
+    {
+        ResourceMatcher<String> matcher = new ResourceMatcher<String>()
+                .add("/users/{id}", "GET", "id")
+                .add("/users/me", "GET", "me")
+                .add("/", "GET", "root");
+
+        assertThat(matcher.match("/users/me", "GET"), is("me"));
+        assertThat(matcher.match("/users/42", "GET"), is("id"));
+        assertThat(matcher.match("/", "GET"), is("root"));
+    }
+
+    @Test
+    public void matchesSubResourceLocators()
+    {
+        ResourceMatcher<String> matcher = ResourceMatcher.of(ResourceIndex.scan(Collections.singletonList(TestResource.class)),
+                entry -> entry.getMethod().getName());
+
+        assertThat(matcher.match("/resources/list", "GET"), is("list"));
+        assertThat(matcher.match("/resources/42", "GET"), is("locator"));
+        assertThat(matcher.match("/resources/42/children/1", "DELETE"), is("locator"));
+    }
+
+    @Path("/resources")
+    public static class TestResource
+    {
+        @GET
+        @Path("/list")
+        public String list()
+        {
+            return "";
+        }
+
+        @Path("/{id}")
+        public Object locator()
+        {
+            return this;
+        }
+    }
+}
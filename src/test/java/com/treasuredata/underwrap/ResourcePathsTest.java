@@ -0,0 +1,52 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ResourcePathsTest
+{
+    @Path("users/")
+    public static class TestResource
+    {
+        @GET
+        @Path("{id: [0-9]+}/")
+        public String user()
+        {
+            return "";
+        }
+
+        @GET
+        public String users()
+        {
+            return "";
+        }
+
+        @Path("/{id}/items")
+        public Object items()
+        {
+            return this;
+        }
+    }
+
+    @Test
+    public void pathTemplateOf()
+            throws NoSuchMethodException
+    {
+        assertThat(ResourcePaths.pathTemplateOf(TestResource.class, TestResource.class.getMethod("user")), is("/users/{id: [0-9]+}"));
+        assertThat(ResourcePaths.pathTemplateOf(TestResource.class, TestResource.class.getMethod("users")), is("/users"));
+        assertThat(ResourcePaths.pathTemplateOf(TestResource.class, TestResource.class.getMethod("items")), is("/users/{id}/items"));
+    }
+
+    @Test
+    public void httpMethodOf()
+            throws NoSuchMethodException
+    {
+        assertThat(ResourcePaths.httpMethodOf(TestResource.class.getMethod("user")), is("GET"));
+        assertThat(ResourcePaths.httpMethodOf(TestResource.class.getMethod("items")), is("*"));
+    }
+}
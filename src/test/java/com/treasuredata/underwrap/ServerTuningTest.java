@@ -0,0 +1,94 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ServerTuningTest
+{
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void write(Path path, String content)
+            throws IOException
+    {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void cgroupV2()
+            throws IOException
+    {
+        Path root = temporaryFolder.newFolder().toPath();
+        write(root.resolve("cpu.max"), "150000 100000\n");
+        write(root.resolve("memory.max"), String.valueOf(2 * GB) + "\n");
+
+        ServerTuning cpuBound = ServerTuning.detect(ServerTuning.Workload.CPU_BOUND, root, 16, GB);
+        assertThat(cpuBound.getCpus(), is(2));
+        assertThat(cpuBound.getMemoryLimitBytes(), is(2 * GB));
+        assertThat(cpuBound.getIoThreads(), is(2));
+        assertThat(cpuBound.getWorkerThreads(), is(4));
+        assertThat(cpuBound.getBufferSize(), is(16 * 1024));
+        assertThat(cpuBound.isDirectBuffers(), is(true));
+        assertThat(cpuBound.getMaxPooledBuffers(), is(24));
+
+        // 1GB outside the heap allows 256 thread stacks, more than 16 per CPU
+        assertThat(ServerTuning.detect(ServerTuning.Workload.BLOCKING, root, 16, GB).getWorkerThreads(), is(32));
+        // 128MB outside the heap allows 32
+        assertThat(ServerTuning.detect(ServerTuning.Workload.BLOCKING, root, 16, 2 * GB - 128 * 1024 * 1024).getWorkerThreads(), is(32));
+        write(root.resolve("memory.max"), String.valueOf(GB + 64 * 1024 * 1024) + "\n");
+        assertThat(ServerTuning.detect(ServerTuning.Workload.BLOCKING, root, 16, GB).getWorkerThreads(), is(16));
+    }
+
+    @Test
+    public void cgroupV1()
+            throws IOException
+    {
+        Path root = temporaryFolder.newFolder().toPath();
+        write(root.resolve("cpu/cpu.cfs_quota_us"), "400000\n");
+        write(root.resolve("cpu/cpu.cfs_period_us"), "100000\n");
+        write(root.resolve("memory/memory.limit_in_bytes"), "100663296\n");
+
+        ServerTuning tuning = ServerTuning.detect(ServerTuning.Workload.BLOCKING, root, 8, GB);
+        assertThat(tuning.getCpus(), is(4));
+        assertThat(tuning.getIoThreads(), is(4));
+        // No memory outside the heap, so 2 per CPU
+        assertThat(tuning.getWorkerThreads(), is(8));
+        // 96MB
+        assertThat(tuning.getBufferSize(), is(1024));
+        assertThat(tuning.isDirectBuffers(), is(true));
+    }
+
+    @Test
+    public void unlimited()
+            throws IOException
+    {
+        Path root = temporaryFolder.newFolder().toPath();
+        write(root.resolve("cpu/cpu.cfs_quota_us"), "-1\n");
+        write(root.resolve("cpu/cpu.cfs_period_us"), "100000\n");
+        write(root.resolve("memory/memory.limit_in_bytes"), "9223372036854771712\n");
+
+        ServerTuning tuning = ServerTuning.detect(ServerTuning.Workload.BLOCKING, root, 8, GB);
+        assertThat(tuning.getCpus(), is(8));
+        assertThat(tuning.getMemoryLimitBytes(), is(-1L));
+        assertThat(tuning.getWorkerThreads(), is(128));
+
+        // Not in a cgroup
+        ServerTuning none = ServerTuning.detect(ServerTuning.Workload.CPU_BOUND, temporaryFolder.newFolder().toPath(), 1, 32 * 1024 * 1024);
+        assertThat(none.getCpus(), is(1));
+        assertThat(none.getIoThreads(), is(2));
+        assertThat(none.getBufferSize(), is(512));
+        assertThat(none.isDirectBuffers(), is(false));
+    }
+}
@@ -0,0 +1,46 @@
+package com.treasuredata.underwrap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SlowRequestWatchdogTest
+{
+    private final SlowRequestWatchdog watchdog = new SlowRequestWatchdog(SlowRequestPolicy.builder()
+            .setMaxReports(3)
+            .build());
+
+    @After
+    public void tearDown()
+    {
+        watchdog.close();
+    }
+
+    private static SlowRequestReport report(String path, long durationMillis)
+    {
+        return new SlowRequestReport("GET", path, "worker", System.currentTimeMillis(), TimeUnit.MILLISECONDS.toNanos(durationMillis),
+                Collections.emptyMap(), 0, Collections.emptyList());
+    }
+
+    @Test
+    public void keepsSlowestReports()
+    {
+        watchdog.keep(report("/slowest", 10000));
+        watchdog.keep(report("/slower", 5000));
+        for (int i = 0; i < 100; i++) {
+            watchdog.keep(report("/fast", 1000 + i));
+        }
+
+        List<SlowRequestReport> reports = watchdog.getReports();
+        assertThat(reports.size(), is(3));
+        assertThat(reports.get(0).getPath(), is("/slowest"));
+        assertThat(reports.get(1).getPath(), is("/slower"));
+        assertThat(reports.get(2).getDurationNanos(), is(TimeUnit.MILLISECONDS.toNanos(1099)));
+    }
+}
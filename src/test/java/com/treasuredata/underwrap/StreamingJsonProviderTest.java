@@ -0,0 +1,126 @@
+package com.treasuredata.underwrap;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJsonProviderTest
+{
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private final StreamingJsonProvider provider = new StreamingJsonProvider();
+
+    public static class Item
+    {
+        public int id;
+        public String name;
+
+        public Item()
+        {
+        }
+
+        Item(int id, String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private String write(Object value)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        provider.writeTo(value, value.getClass(), value.getClass(), NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writeValues()
+            throws IOException
+    {
+        assertThat(write(new Item(1, "a")), is("{\"id\":1,\"name\":\"a\"}"));
+        assertThat(write(Arrays.asList(new Item(1, "a"), new Item(2, "b"))), is("[{\"id\":1,\"name\":\"a\"},{\"id\":2,\"name\":\"b\"}]"));
+        assertThat(write(Collections.singletonMap("k", 1)), is("{\"k\":1}"));
+    }
+
+    @Test
+    public void writeIteratorsAndStreams()
+            throws IOException
+    {
+        assertThat(write(IntStream.range(0, 3).iterator()), is("[0,1,2]"));
+        assertThat(write(Collections.emptyIterator()), is("[]"));
+
+        AtomicBoolean closed = new AtomicBoolean();
+        Stream<Item> stream = Stream.of(new Item(1, "a")).onClose(() -> closed.set(true));
+        assertThat(write(stream), is("[{\"id\":1,\"name\":\"a\"}]"));
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void doesNotCloseEntityStream()
+            throws IOException
+    {
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        {
+            @Override
+            public void close()
+            {
+                closed.set(true);
+            }
+        };
+        provider.writeTo(new Item(1, "a"), Item.class, Item.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, out);
+        assertThat(closed.get(), is(false));
+        assertThat(out.size(), is(19));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void read()
+            throws IOException
+    {
+        InputStream in = new ByteArrayInputStream("{\"id\":3,\"name\":\"c\"}".getBytes(StandardCharsets.UTF_8));
+        Item item = (Item) provider.readFrom((Class<Object>) (Class<?>) Item.class, Item.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, in);
+        assertThat(item.id, is(3));
+        assertThat(item.name, is("c"));
+
+        in = new ByteArrayInputStream("{\"k\":1}".getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> map = (Map<String, Object>) provider.readFrom((Class<Object>) (Class<?>) Map.class, Map.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, in);
+        assertThat(map.get("k"), is(1));
+    }
+
+    @Test
+    public void skipsTypesOfBuiltInProviders()
+    {
+        assertThat(provider.isWriteable(String.class, String.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE), is(false));
+        assertThat(provider.isWriteable(byte[].class, byte[].class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE), is(false));
+        assertThat(provider.isWriteable(Item.class, Item.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE), is(true));
+    }
+
+    @Test
+    public void registeredWithJackson()
+    {
+        Set<Class<?>> classes = new HashSet<>();
+        assertTrue(new UnderwrapServer.UnderwrapApplication().registerStreamingJsonProvider(classes));
+        assertThat(classes, is(Collections.singleton(StreamingJsonProvider.class)));
+    }
+}
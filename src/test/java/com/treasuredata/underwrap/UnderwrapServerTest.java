@@ -1,23 +1,46 @@
 package com.treasuredata.underwrap;
 
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 import io.undertow.Undertow;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 
+import org.junit.rules.TemporaryFolder;
 import org.xnio.Options;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -27,16 +50,31 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.*;
 
 public class UnderwrapServerTest
 {
     private static final int WORKER_THREADS_IN_TEST = 4;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
     private int serverPort;
     private UnderwrapServer server;
 
@@ -51,6 +89,140 @@ public class UnderwrapServerTest
         {
             TimeUnit.SECONDS.sleep(4);
         }
+
+        @GET
+        @Path("/hello")
+        public String hello()
+        {
+            return "hello";
+        }
+
+        @GET
+        @Path("/text")
+        @Produces("text/plain")
+        @Cached(ttl = 1, unit = TimeUnit.HOURS)
+        public String text(@QueryParam("size") @DefaultValue("0") int size, @QueryParam("delay") @DefaultValue("0") long delayMillis)
+                throws InterruptedException
+        {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            return Strings.repeat("underwrap ", size / 10);
+        }
+
+        @GET
+        @Path("/flushed")
+        public void flushed(@Context HttpServletResponse response)
+                throws IOException
+        {
+            // The entity stream of RESTEasy ignores flushes, so this writes to the servlet response
+            response.setContentType("text/plain");
+            ServletOutputStream output = response.getOutputStream();
+            output.write(Strings.repeat("first ", 100).getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            output.write(Strings.repeat("second ", 100).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @GET
+        @Path("/encoded")
+        @Produces("text/plain")
+        @Cached(ttl = 1, unit = TimeUnit.HOURS)
+        public Response encoded()
+                throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(("encoded:" + COUNTER.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+            }
+            return Response.ok(out.toByteArray()).header("Content-Encoding", "gzip").build();
+        }
+
+        @GET
+        @Path("/headers")
+        @Produces("text/plain")
+        @Cached(ttl = 1, unit = TimeUnit.HOURS)
+        public Response headers()
+        {
+            return Response.ok("headers:" + COUNTER.incrementAndGet())
+                    .header("X-Custom", "custom")
+                    .header("Content-Language", "en")
+                    .header("Cache-Control", "max-age=60")
+                    .build();
+        }
+
+        @GET
+        @Path("/counter/{name: [a-z]+}")
+        @Cached(ttl = 1, unit = TimeUnit.HOURS)
+        public String counter(@PathParam("name") String name, @QueryParam("delay") @DefaultValue("0") long delayMillis)
+                throws InterruptedException
+        {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            return name + ":" + COUNTER.incrementAndGet();
+        }
+
+        @GET
+        @Path("/items/{id: [0-9]+}")
+        @Cached(ttl = 1, unit = TimeUnit.HOURS)
+        @RequestPriority(Priority.LOW)
+        public String item(@PathParam("id") long id)
+        {
+            return id + ":" + COUNTER.incrementAndGet();
+        }
+
+        @GET
+        @Path("/items/{name}")
+        public String namedItem(@PathParam("name") String name)
+        {
+            return name + ":" + COUNTER.incrementAndGet();
+        }
+
+        @GET
+        @Path("/unavailable")
+        public Response unavailable(@QueryParam("delay") @DefaultValue("0") long delayMillis)
+                throws InterruptedException
+        {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            return Response.status(503).entity("unavailable:" + COUNTER.incrementAndGet()).build();
+        }
+
+        @GET
+        @Path("/thread")
+        @Bulkhead("isolated")
+        public String thread(@QueryParam("delay") @DefaultValue("0") long delayMillis)
+                throws InterruptedException
+        {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            return Thread.currentThread().getName();
+        }
+
+        @GET
+        @Path("/sequence")
+        @RequestPriority(Priority.LOW)
+        public String sequence(@QueryParam("delay") @DefaultValue("0") long delayMillis)
+                throws InterruptedException
+        {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            return String.valueOf(COUNTER.incrementAndGet());
+        }
+
+        @GET
+        @Path("/overloaded")
+        public String overloaded()
+        {
+            return "none";
+        }
+
+        @GET
+        @Path("/overloaded/{value}")
+        public String overloaded(@PathParam("value") String value)
+        {
+            return value;
+        }
+
+        @GET
+        @Path("/deadline")
+        public String deadline(@Context RequestDeadline deadline)
+        {
+            return deadline == null ? "none" : deadline.getRoute() + ":" + (deadline.getRemaining(TimeUnit.MILLISECONDS) > 0);
+        }
     }
 
     public static class TestApplication
@@ -61,6 +233,23 @@ public class UnderwrapServerTest
         {
             classes.add(TestResource.class);
         }
+
+        @Override
+        protected void registerNativeRoutes(NativeRoutes routes)
+        {
+            routes.addExactPath("/native/ping", NativeRoutes.Dispatch.IO_THREAD,
+                    exchange -> exchange.getResponseSender().send("pong"));
+            routes.get("/native/users/{id}", NativeRoutes.Dispatch.WORKER,
+                    exchange -> exchange.getResponseSender().send(
+                            exchange.getQueryParameters().get("id").getFirst() + (exchange.isBlocking() ? ":blocking" : "")));
+        }
+
+        @Override
+        protected void registerBulkheads(Bulkheads bulkheads)
+        {
+            bulkheads.add("isolated", 1, 0)
+                    .route("/overloaded/{value: [0-9]+}", "isolated");
+        }
     }
 
     private void startServer(Optional<UnderwrapServer.HandlerBuildFunction> handlerBuildFunction)
@@ -112,6 +301,18 @@ public class UnderwrapServerTest
         return target.request().get();
     }
 
+    private static void awaitCondition(BooleanSupplier condition)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                fail("Timed out waiting for the server state");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
     @Test
     public void buildHandler()
     {
@@ -168,5 +369,870 @@ public class UnderwrapServerTest
         assertThat(m.getMaxWorkerPoolSize(), is(WORKER_THREADS_IN_TEST));
         assertThat(m.getBusyWorkerThreadCount(), is(lessThan(WORKER_THREADS_IN_TEST)));
         assertThat(m.getWorkerQueueSize(), is(lessThan(WORKER_THREADS_IN_TEST)));
+        assertThat(server.getMetrics(), is(sameInstance(m)));
+
+        WorkerPoolSnapshot snapshot = m.snapshot();
+        assertThat(snapshot.getCoreWorkerPoolSize(), is(WORKER_THREADS_IN_TEST));
+        assertThat(snapshot.getMaxWorkerPoolSize(), is(WORKER_THREADS_IN_TEST));
+        assertThat(snapshot.getBusyWorkerThreadCount(), is(lessThan(WORKER_THREADS_IN_TEST)));
+        assertThat(snapshot.getWorkerQueueSize(), is(lessThan(WORKER_THREADS_IN_TEST)));
+    }
+
+    @Test
+    public void accessLog()
+            throws IOException
+    {
+        server.setAccessLogEnabled(true);
+        server.setAccessLogPath(temporaryFolder.getRoot().toPath());
+        server.setAccessLogOutputFormat(AccessLogFormatter.OutputFormat.JSON);
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+
+        server.stop();
+        server = null;
+
+        List<String> lines = Files.readAllLines(temporaryFolder.getRoot().toPath().resolve("access.log"), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0), containsString("\"req\":\"GET /hello HTTP/1.1\",\"status\":200,\"size\":5,"));
+    }
+
+    @Test
+    public void endpointMetrics()
+    {
+        server.setEndpointMetricsEnabled(true);
+        startServer(Optional.empty());
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+        }
+        assertThat(getHttpResponse("/not_found").getStatus(), is(404));
+
+        // The completion listener can run after the response is received
+        EndpointMetrics.Snapshot snapshot = null;
+        for (int i = 0; i < 100; i++) {
+            snapshot = server.getMetrics().getEndpointMetrics().get(TestResource.class.getName() + "#hello()");
+            if (snapshot.getRequestCount() == 3) {
+                break;
+            }
+            Thread.yield();
+        }
+        assertThat(snapshot.getHttpMethod(), is("GET"));
+        assertThat(snapshot.getPathTemplate(), is("/hello"));
+        assertThat(snapshot.getRequestCount(), is(3L));
+        assertThat(snapshot.getErrorCount(), is(0L));
+        assertThat(snapshot.getLatency().getCount(), is(3L));
+        assertThat(snapshot.getLatency().getMax(), is(greaterThan(0L)));
+        // One entry per resource method, the 404 isn't recorded
+        assertThat(server.getMetrics().getEndpointMetrics().size(), is(15));
+    }
+
+    @Test
+    public void endpointMetricsOfOverloadedMethods()
+            throws InterruptedException
+    {
+        server.setEndpointMetricsEnabled(true);
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/overloaded").readEntity(String.class), is("none"));
+        for (int i = 0; i < 2; i++) {
+            assertThat(getHttpResponse("/overloaded/value").readEntity(String.class), is("value"));
+        }
+
+        String name = TestResource.class.getName() + "#overloaded";
+        Map<String, EndpointMetrics.Snapshot> endpoints = server.getMetrics().getEndpointMetrics();
+        for (int i = 0; i < 100 && endpoints.get(name + "(java.lang.String)").getRequestCount() < 2; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+            endpoints = server.getMetrics().getEndpointMetrics();
+        }
+        assertThat(endpoints.get(name + "()").getPathTemplate(), is("/overloaded"));
+        assertThat(endpoints.get(name + "()").getRequestCount(), is(1L));
+        assertThat(endpoints.get(name + "(java.lang.String)").getPathTemplate(), is("/overloaded/{value}"));
+        assertThat(endpoints.get(name + "(java.lang.String)").getRequestCount(), is(2L));
+    }
+
+    @Test
+    public void metricsEndpoint()
+    {
+        server.setEndpointMetricsEnabled(true);
+        server.setMetricsEndpointPath("/metrics");
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+
+        Response response = getHttpResponse("/metrics");
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getHeaderString("Content-Type"), is(PrometheusMetricsHandler.CONTENT_TYPE));
+        String body = response.readEntity(String.class);
+        assertThat(body, containsString("# TYPE underwrap_worker_pool_core_size gauge\nunderwrap_worker_pool_core_size " + WORKER_THREADS_IN_TEST + "\n"));
+        assertThat(body, containsString("underwrap_access_log_dropped_lines_total 0\n"));
+        assertThat(body, containsString("# TYPE underwrap_endpoint_latency_seconds histogram\n"));
+        assertThat(body, containsString("underwrap_endpoint_latency_seconds_bucket{endpoint=\"" + TestResource.class.getName() + "#hello()\",method=\"GET\",path=\"/hello\",le=\"+Inf\"} "));
+    }
+
+    @Test
+    public void loadShedding()
+    {
+        // The queue is always "full", so only critical requests and the metrics endpoint are served
+        server.setLoadSheddingPolicy(LoadSheddingPolicy.builder()
+                .setMaxQueueSize(0)
+                .setRetryAfterSeconds(3)
+                .setPriority("/hello", Priority.CRITICAL)
+                .build());
+        server.setMetricsEndpointPath("/metrics");
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+
+        Response rejected = getHttpResponse("/slow");
+        assertThat(rejected.getStatus(), is(503));
+        assertThat(rejected.getHeaderString("Retry-After"), is("3"));
+
+        assertThat(getHttpResponse("/metrics").readEntity(String.class), containsString("underwrap_load_shedding_rejected_total{priority=\"normal\"} 1\n"));
+        assertThat(server.getMetrics().getLoadSheddingRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void rateLimit()
+    {
+        server.setRateLimitPolicy(RateLimitPolicy.builder()
+                .setRate(1, 1, TimeUnit.HOURS)
+                .setBurst(2)
+                .addExcludedPathPrefix("/hello")
+                .build());
+        server.setMetricsEndpointPath("/metrics");
+        startServer(Optional.empty());
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(createTarget("/counter/a").request().header("X-Forwarded-For", "192.0.2.1, 10.0.0.1").get().getStatus(), is(200));
+        }
+        Response rejected = createTarget("/counter/a").request().header("X-Forwarded-For", "192.0.2.1").get();
+        assertThat(rejected.getStatus(), is(429));
+        assertThat(Long.parseLong(rejected.getHeaderString("Retry-After")), greaterThan(3000L));
+        assertThat(createTarget("/counter/a").request().header("X-Forwarded-For", "192.0.2.2").get().getStatus(), is(200));
+        for (int i = 0; i < 3; i++) {
+            assertThat(createTarget("/hello").request().header("X-Forwarded-For", "192.0.2.1").get().getStatus(), is(200));
+        }
+
+        UnderwrapMetrics m = server.getMetrics();
+        assertThat(m.getRateLimitRejectedCount(), is(1L));
+        assertThat(m.getRateLimitKeyCount(), is(2L));
+        assertThat(m.getRateLimitTopRejectedCounts(10), is(Collections.singletonMap("192.0.2.1", 1L)));
+        // Client identities aren't exported as labels
+        String exposition = getHttpResponse("/metrics").readEntity(String.class);
+        assertThat(exposition, containsString("underwrap_rate_limit_rejected_total 1\n"));
+        assertThat(exposition, not(containsString("192.0.2.1")));
+    }
+
+    @Test
+    public void concurrencyLimit()
+            throws InterruptedException
+    {
+        server.setConcurrencyLimit(AdaptiveConcurrencyLimit.builder()
+                .setInitialLimit(1)
+                .setMaxLimit(1)
+                .setMaxQueueSize(0)
+                .build());
+        startServer(Optional.empty());
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            Future<Response> slow = executorService.submit(() -> getHttpResponse("/slow"));
+            awaitCondition(() -> server.getMetrics().getConcurrencyLimitInFlightCount() > 0);
+
+            assertThat(getHttpResponse("/hello").getStatus(), is(503));
+            assertThat(server.getMetrics().getConcurrencyLimit(), is(1));
+            assertThat(server.getMetrics().getConcurrencyLimitRejectedCount(), is(1L));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nativeRoutes()
+    {
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/native/ping").readEntity(String.class), is("pong"));
+        assertThat(getHttpResponse("/native/users/42").readEntity(String.class), is("42:blocking"));
+        // Falls through to RESTEasy
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+        assertThat(getHttpResponse("/native/unknown").getStatus(), is(404));
+    }
+
+    @Test
+    public void responseCache()
+    {
+        server.setResponseCachePolicy(ResponseCachePolicy.builder().build());
+        startServer(Optional.empty());
+
+        getHttpResponse("/counter/a").close();
+        // The entry is stored when the first exchange completes, which can be after the client receives the response.
+        // Requests until then are misses too
+        Response cached = null;
+        for (int i = 0; i < 100 && cached == null; i++) {
+            Response response = getHttpResponse("/counter/a");
+            if (response.getHeaderString("ETag") != null) {
+                cached = response;
+            }
+            else {
+                response.close();
+            }
+        }
+        String first = cached.readEntity(String.class);
+        assertThat(getHttpResponse("/counter/a").readEntity(String.class), is(first));
+        assertThat(getHttpResponse("/counter/b").readEntity(String.class), is(not(first)));
+
+        Response notModified = createTarget("/counter/a").request().header("If-None-Match", cached.getHeaderString("ETag")).get();
+        assertThat(notModified.getStatus(), is(304));
+
+        UnderwrapMetrics m = server.getMetrics();
+        assertThat(m.getResponseCacheHitCount(), is(greaterThan(0L)));
+        assertThat(m.getResponseCacheNotModifiedCount(), is(1L));
+        assertThat(m.getResponseCacheBytes(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void responseCacheMatchesPathRegex()
+    {
+        server.setResponseCachePolicy(ResponseCachePolicy.builder().build());
+        startServer(Optional.empty());
+
+        // "/items/{id: [0-9]+}" is @Cached, and RESTEasy serves "/items/abc" with the sibling "/items/{name}"
+        for (int i = 0; i < 10; i++) {
+            assertThat(getHttpResponse("/items/abc").getHeaderString("ETag"), is(nullValue()));
+        }
+        assertThat(server.getMetrics().getResponseCacheMissCount(), is(0L));
+
+        getHttpResponse("/items/42").close();
+        Response cached = null;
+        for (int i = 0; i < 100 && cached == null; i++) {
+            Response response = getHttpResponse("/items/42");
+            if (response.getHeaderString("ETag") != null) {
+                cached = response;
+            }
+            else {
+                response.close();
+            }
+        }
+        assertThat(cached.readEntity(String.class), startsWith("42:"));
+    }
+
+    // Requests until the first exchange completes are misses
+    private Response getCachedResponse(String path)
+    {
+        long hits = server.getMetrics().getResponseCacheHitCount();
+        for (int i = 0; i < 100; i++) {
+            Response response = getHttpResponse(path);
+            if (server.getMetrics().getResponseCacheHitCount() > hits) {
+                return response;
+            }
+            response.close();
+        }
+        throw new AssertionError("Not cached: " + path);
+    }
+
+    @Test
+    public void responseCacheHeaders()
+            throws IOException
+    {
+        server.setResponseCachePolicy(ResponseCachePolicy.builder().build());
+        startServer(Optional.empty());
+
+        // Encoded by the application, and replayed with its Content-Encoding
+        Response encoded = getCachedResponse("/encoded");
+        assertThat(encoded.getHeaderString("Content-Encoding"), is("gzip"));
+        String body = gunzip(encoded.readEntity(byte[].class));
+        assertThat(body, startsWith("encoded:"));
+        assertThat(gunzip(getHttpResponse("/encoded").readEntity(byte[].class)), is(body));
+
+        Response cached = getCachedResponse("/headers");
+        assertThat(cached.readEntity(String.class), startsWith("headers:"));
+        assertThat(cached.getHeaderString("X-Custom"), is("custom"));
+        assertThat(cached.getHeaderString("Content-Language"), is("en"));
+        assertThat(cached.getHeaderString("Cache-Control"), is("max-age=60"));
+        assertThat(cached.getHeaderString("Content-Type"), startsWith("text/plain"));
+    }
+
+    @Test
+    public void requestCoalescingWithCompression()
+            throws InterruptedException, ExecutionException, IOException
+    {
+        server.setCompressionPolicy(CompressionPolicy.builder()
+                .setMinBytes(100)
+                .build());
+        server.setRequestCoalescingPolicy(RequestCoalescingPolicy.builder()
+                .addPathPrefix("/text")
+                .build());
+        startServer(Optional.empty());
+
+        int requests = 4;
+        List<Response> responses = new ArrayList<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<Response>> futures = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                futures.add(executorService.submit(() -> createTarget("/text?size=1000&delay=1000").request().header("Accept-Encoding", "gzip").get()));
+            }
+            for (Future<Response> future : futures) {
+                responses.add(future.get());
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        assertThat(server.getMetrics().getRequestCoalescedCount(), is((long) requests - 1));
+        // Waiting requests are compressed by themselves
+        for (Response response : responses) {
+            assertThat(response.getHeaderString("Content-Encoding"), is("gzip"));
+            assertThat(gunzip(response.readEntity(byte[].class)), is(Strings.repeat("underwrap ", 100)));
+        }
+    }
+
+    @Test
+    public void requestCoalescing()
+            throws InterruptedException, ExecutionException
+    {
+        server.setRequestCoalescingPolicy(RequestCoalescingPolicy.builder()
+                .addPathPrefix("/counter/")
+                .build());
+        startServer(Optional.empty());
+
+        // More requests than worker threads. Waiting requests don't use workers
+        int requests = WORKER_THREADS_IN_TEST * 2;
+        String first;
+        ExecutorService executorService = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                futures.add(executorService.submit(() -> getHttpResponse("/counter/c?delay=2000").readEntity(String.class)));
+            }
+            first = futures.get(0).get();
+            for (Future<String> future : futures) {
+                assertThat(future.get(), is(first));
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        assertThat(server.getMetrics().getRequestCoalescedCount(), is((long) requests - 1));
+
+        // Not coalesced after the first request completes
+        assertThat(getHttpResponse("/counter/c").readEntity(String.class), is(not(first)));
+    }
+
+    @Test
+    public void requestCoalescingSkipsCredentials()
+            throws InterruptedException, ExecutionException
+    {
+        server.setRequestCoalescingPolicy(RequestCoalescingPolicy.builder()
+                .addPathPrefix("/counter/")
+                .build());
+        startServer(Optional.empty());
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> alice = executorService.submit(() ->
+                    createTarget("/counter/e?delay=1000").request().header("Authorization", "Bearer alice").get().readEntity(String.class));
+            Future<String> bob = executorService.submit(() ->
+                    createTarget("/counter/e?delay=1000").request().header("Authorization", "Bearer bob").get().readEntity(String.class));
+            assertThat(alice.get(), is(not(bob.get())));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        assertThat(server.getMetrics().getRequestCoalescedCount(), is(0L));
+    }
+
+    @Test
+    public void requestCoalescingSharesOnlySuccess()
+            throws InterruptedException, ExecutionException
+    {
+        server.setRequestCoalescingPolicy(RequestCoalescingPolicy.builder()
+                .addPathPrefix("/unavailable")
+                .build());
+        startServer(Optional.empty());
+
+        int requests = 3;
+        Set<String> bodies = new HashSet<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<Response>> futures = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                futures.add(executorService.submit(() -> getHttpResponse("/unavailable?delay=1000")));
+            }
+            for (Future<Response> future : futures) {
+                Response response = future.get();
+                assertThat(response.getStatus(), is(503));
+                bodies.add(response.readEntity(String.class));
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        // Waiting requests are handled by themselves
+        assertThat(bodies.size(), is(requests));
+        assertThat(server.getMetrics().getRequestCoalescedCount(), is(0L));
+        assertThat(server.getMetrics().getRequestCoalescingUnsharedCount(), is((long) requests - 1));
+    }
+
+    @Test
+    public void deadline()
+            throws InterruptedException
+    {
+        server.setDeadlinePolicy(DeadlinePolicy.builder()
+                .setHeader("X-Request-Timeout")
+                .setTimeout("/counter/", 1, TimeUnit.HOURS)
+                .build());
+        server.setConcurrencyLimit(AdaptiveConcurrencyLimit.builder()
+                .setInitialLimit(1)
+                .setMaxLimit(1)
+                .build());
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/deadline").readEntity(String.class), is("none"));
+        assertThat(createTarget("/deadline").request().header("X-Request-Timeout", "10000").get().readEntity(String.class), is("default:true"));
+
+        // The requests above are released when their exchanges complete, which can be after the client receives them
+        awaitCondition(() -> server.getMetrics().getConcurrencyLimitInFlightCount() == 0);
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            Future<Response> slow = executorService.submit(() -> getHttpResponse("/counter/d?delay=1000"));
+            awaitCondition(() -> server.getMetrics().getConcurrencyLimitInFlightCount() > 0);
+            // Waits for the slow request in the queue of the concurrency limit, and expires there
+            Response expired = createTarget("/hello").request().header("X-Request-Timeout", "100").get();
+            assertThat(expired.getStatus(), is(504));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        assertThat(server.getMetrics().getDeadlineDroppedCountsByRoute(), is(Collections.singletonMap(DeadlinePolicy.DEFAULT_ROUTE, 1L)));
+    }
+
+    @Test
+    public void bulkhead()
+            throws InterruptedException, ExecutionException
+    {
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/thread").readEntity(String.class), startsWith("underwrap-bulkhead-isolated-"));
+        // The thread can still be busy with the first request after the client receives the response
+        awaitCondition(() -> server.getMetrics().getBulkheadSnapshots().get("isolated").getBusyWorkerThreadCount() == 0);
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            Future<Response> slow = executorService.submit(() -> getHttpResponse("/thread?delay=1000"));
+            awaitCondition(() -> server.getMetrics().getBulkheadSnapshots().get("isolated").getBusyWorkerThreadCount() > 0);
+            // The only thread of the bulkhead is busy, but other resources still run on the worker pool
+            assertThat(getHttpResponse("/thread").getStatus(), is(503));
+            assertThat(getHttpResponse("/overloaded/42").getStatus(), is(503));
+            assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+            // Not matching the regex of the route
+            assertThat(getHttpResponse("/overloaded/abc").readEntity(String.class), is("abc"));
+            assertThat(slow.get().getStatus(), is(200));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+
+        UnderwrapMetrics m = server.getMetrics();
+        assertThat(m.getBulkheadSnapshots().get("isolated").getMaxWorkerPoolSize(), is(1));
+        assertThat(m.getBulkheadRejectedCounts().get("isolated"), is(2L));
+    }
+
+    @Test
+    public void phaseTiming()
+            throws IOException, InterruptedException
+    {
+        server.setServerTimingEnabled(true);
+        server.setAccessLogEnabled(true);
+        server.setAccessLogPath(temporaryFolder.getRoot().toPath());
+        server.setAccessLogOutputFormat(AccessLogFormatter.OutputFormat.JSON);
+        startServer(Optional.empty());
+
+        Response response = getHttpResponse("/hello");
+        assertThat(response.readEntity(String.class), is("hello"));
+        assertTrue(response.getHeaderString("Server-Timing").matches("queue;dur=\\d+\\.\\d{3}, dispatch;dur=\\d+\\.\\d{3}, resource;dur=\\d+\\.\\d{3}"));
+
+        // Recorded when the exchange completes, which can be after the client receives the response
+        UnderwrapMetrics m = server.getMetrics();
+        for (int i = 0; i < 100 && m.getPhaseLatencies().get("write").getCount() == 0; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        for (LatencyHistogram.Snapshot latency : m.getPhaseLatencies().values()) {
+            assertThat(latency.getCount(), is(1L));
+        }
+
+        server.stop();
+        server = null;
+
+        List<String> lines = Files.readAllLines(temporaryFolder.getRoot().toPath().resolve("access.log"), StandardCharsets.UTF_8);
+        assertTrue(lines.get(0), lines.get(0).matches(".*\"queue_us\":\\d+,\"dispatch_us\":\\d+,\"resource_us\":\\d+,\"write_us\":\\d+}"));
+    }
+
+    @Test
+    public void slowRequest()
+            throws InterruptedException
+    {
+        server.setSlowRequestPolicy(SlowRequestPolicy.builder()
+                .setThreshold(100, TimeUnit.MILLISECONDS)
+                .setSampleInterval(20, TimeUnit.MILLISECONDS)
+                .build());
+        server.setSlowRequestEndpointPath("/slow-requests");
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+        assertThat(getHttpResponse("/counter/slow?delay=500").readEntity(String.class), startsWith("slow:"));
+
+        // Reported when the worker thread returns, which can be after the client receives the response
+        UnderwrapMetrics m = server.getMetrics();
+        for (int i = 0; i < 100 && m.getSlowRequestCount() == 0; i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(m.getSlowRequestCount(), is(1L));
+        List<SlowRequestReport> reports = m.getSlowRequestReports();
+        assertThat(reports.size(), is(1));
+        SlowRequestReport report = reports.get(0);
+        assertThat(report.getMethod(), is("GET"));
+        assertThat(report.getPath(), is("/counter/slow?delay=500"));
+        assertTrue(report.getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(report.getSampleCount() > 0);
+        assertThat(report.getStacks().get(0).getFrames().stream()
+                .anyMatch(frame -> frame.getClassName().equals(TestResource.class.getName()) && frame.getMethodName().equals("counter")), is(true));
+
+        String body = getHttpResponse("/slow-requests").readEntity(String.class);
+        assertThat(body, startsWith("GET /counter/slow?delay=500 "));
+        assertThat(body, containsString("TestResource.counter"));
+    }
+
+    @Test
+    public void parallelStartup()
+    {
+        server.setParallelStartup(true);
+        server.setAccessLogEnabled(true);
+        server.setAccessLogPath(temporaryFolder.getRoot().toPath());
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/hello").readEntity(String.class), is("hello"));
+        // Routed with the resource index built during startup
+        assertThat(getHttpResponse("/thread").readEntity(String.class), startsWith("underwrap-bulkhead-isolated-"));
+
+        StartupReport report = server.getStartupReport();
+        assertTrue(report.isParallel());
+        assertThat(report.getTotalNanos(), is(greaterThan(0L)));
+        Set<String> names = new HashSet<>();
+        for (StartupReport.Step step : report.getSteps()) {
+            names.add(step.getName());
+            if (step.getName().equals("resource_index") || step.getName().equals("access_log") || step.getName().equals("xnio")) {
+                assertThat(step.getThreadName(), startsWith("underwrap-startup-"));
+            }
+        }
+        assertThat(names, is(new HashSet<>(Arrays.asList("application", "resource_index", "access_log", "xnio", "servlet_deploy", "servlet_start", "handlers", "listener"))));
+        assertThat(report.toString(), startsWith("Started in "));
+    }
+
+    private static String gunzip(byte[] bytes)
+            throws IOException
+    {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void compression()
+            throws IOException
+    {
+        server.setCompressionPolicy(CompressionPolicy.builder()
+                .setMinBytes(100)
+                .setMaxBufferBytes(10000)
+                .build());
+        startServer(Optional.empty());
+
+        Response compressed = createTarget("/text?size=1000").request().header("Accept-Encoding", "gzip, deflate").get();
+        assertThat(compressed.getHeaderString("Content-Encoding"), is("gzip"));
+        assertThat(compressed.getHeaderString("Vary"), is("Accept-Encoding"));
+        byte[] body = compressed.readEntity(byte[].class);
+        assertThat(compressed.getLength(), is(body.length));
+        assertThat(gunzip(body), is(Strings.repeat("underwrap ", 100)));
+
+        // Not accepted, or too small
+        Response identity = createTarget("/text?size=1000").request().header("Accept-Encoding", "gzip;q=0").get();
+        assertThat(identity.getHeaderString("Content-Encoding"), is(nullValue()));
+        assertThat(identity.readEntity(String.class), is(Strings.repeat("underwrap ", 100)));
+        Response small = createTarget("/text?size=50").request().header("Accept-Encoding", "gzip").get();
+        assertThat(small.getHeaderString("Content-Encoding"), is(nullValue()));
+        assertThat(small.readEntity(String.class), is(Strings.repeat("underwrap ", 5)));
+
+        // Larger than the buffer, so streamed
+        Response streamed = createTarget("/text?size=100000").request().header("Accept-Encoding", "gzip").get();
+        assertThat(streamed.getHeaderString("Content-Encoding"), is("gzip"));
+        byte[] streamedBody = streamed.readEntity(byte[].class);
+        assertThat(gunzip(streamedBody), is(Strings.repeat("underwrap ", 10000)));
+
+        // Flushed before the body ends, so streamed from the flush
+        Response flushed = createTarget("/flushed").request().header("Accept-Encoding", "gzip").get();
+        assertThat(flushed.getHeaderString("Content-Encoding"), is("gzip"));
+        byte[] flushedBody = flushed.readEntity(byte[].class);
+        assertThat(gunzip(flushedBody), is(Strings.repeat("first ", 100) + Strings.repeat("second ", 100)));
+
+        UnderwrapMetrics m = server.getMetrics();
+        assertThat(m.getCompressedResponseCount(), is(1L));
+        assertThat(m.getCompressionStreamedCount(), is(2L));
+        assertThat(m.getCompressionInputBytes(), is(1000L + 100000L + 1300L));
+        assertThat(m.getCompressionOutputBytes(), is((long) body.length + streamedBody.length + flushedBody.length));
+        assertThat(m.getCompressionRatio(), is(lessThan(0.5)));
+    }
+
+    @Test
+    public void precompressedResponseCache()
+            throws IOException
+    {
+        server.setResponseCachePolicy(ResponseCachePolicy.builder().build());
+        server.setCompressionPolicy(CompressionPolicy.builder()
+                .setMinBytes(100)
+                .setPrecompressCachedResponses(true)
+                .build());
+        startServer(Optional.empty());
+
+        String text = Strings.repeat("underwrap ", 100);
+        // The entry is stored when the first exchange completes, which can be after the client receives the response
+        Response hit = null;
+        for (int i = 0; i < 100 && hit == null; i++) {
+            Response response = createTarget("/text?size=1000").request().header("Accept-Encoding", "gzip").get();
+            assertThat(response.getHeaderString("Content-Encoding"), is("gzip"));
+            if (server.getMetrics().getResponseCacheHitCount() > 0) {
+                hit = response;
+            }
+            else {
+                assertThat(gunzip(response.readEntity(byte[].class)), is(text));
+            }
+        }
+        assertThat(hit.getHeaderString("ETag"), endsWith("-gzip\""));
+        assertThat(gunzip(hit.readEntity(byte[].class)), is(text));
+
+        Response identity = getHttpResponse("/text?size=1000");
+        assertThat(identity.getHeaderString("Content-Encoding"), is(nullValue()));
+        assertThat(identity.getHeaderString("ETag"), not(endsWith("-gzip\"")));
+        assertThat(identity.readEntity(String.class), is(text));
+
+        // Hits aren't compressed again
+        long compressedCount = server.getMetrics().getCompressedResponseCount();
+        assertThat(createTarget("/text?size=1000").request().header("Accept-Encoding", "gzip").get().getHeaderString("Content-Encoding"), is("gzip"));
+        assertThat(server.getMetrics().getCompressedResponseCount(), is(compressedCount));
+    }
+
+    @Test
+    public void http2Upgrade()
+            throws IOException
+    {
+        server.setHttp2Enabled(true);
+        startServer(Optional.empty());
+
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            socket.getOutputStream().write(("GET /hello HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Connection: Upgrade, HTTP2-Settings\r\n" +
+                    "Upgrade: h2c\r\n" +
+                    "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n" +
+                    "\r\n").getBytes(StandardCharsets.US_ASCII));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertThat(reader.readLine(), is("HTTP/1.1 101 Switching Protocols"));
+        }
+    }
+
+    @Test
+    public void fileMount()
+            throws IOException
+    {
+        java.nio.file.Path directory = temporaryFolder.newFolder("files").toPath();
+        byte[] large = new byte[200_000];
+        new java.util.Random(0).nextBytes(large);
+        Files.write(directory.resolve("large.bin"), large);
+        Files.write(directory.resolve("small.txt"), "hello underwrap".getBytes(StandardCharsets.UTF_8));
+        server.addFileMount("/files", directory, FileMountPolicy.builder()
+                .setMaxCachedFileBytes(1024)
+                .build());
+        startServer(Optional.empty());
+
+        Response full = getHttpResponse("/files/large.bin");
+        assertThat(full.getStatus(), is(200));
+        assertThat(full.getHeaderString("Content-Type"), is("application/octet-stream"));
+        assertThat(full.getHeaderString("Accept-Ranges"), is("bytes"));
+        assertThat(full.readEntity(byte[].class), is(large));
+        String etag = full.getHeaderString("ETag");
+
+        Response range = createTarget("/files/large.bin").request().header("Range", "bytes=100-199").get();
+        assertThat(range.getStatus(), is(206));
+        assertThat(range.getHeaderString("Content-Range"), is("bytes 100-199/200000"));
+        assertThat(range.readEntity(byte[].class), is(Arrays.copyOfRange(large, 100, 200)));
+
+        Response unsatisfiable = createTarget("/files/large.bin").request().header("Range", "bytes=300000-").get();
+        assertThat(unsatisfiable.getStatus(), is(416));
+        Response notModified = createTarget("/files/large.bin").request().header("If-None-Match", etag).get();
+        assertThat(notModified.getStatus(), is(304));
+        assertThat(server.getMetrics().getFileTransferCount(), is(4L));
+
+        // Read into the cache, then served from it
+        for (int i = 0; i < 3; i++) {
+            Response small = getHttpResponse("/files/small.txt");
+            assertThat(small.getHeaderString("Content-Type"), is("text/plain; charset=utf-8"));
+            assertThat(small.readEntity(String.class), is("hello underwrap"));
+        }
+        Response smallRange = createTarget("/files/small.txt").request().header("Range", "bytes=-9").get();
+        assertThat(smallRange.getStatus(), is(206));
+        assertThat(smallRange.readEntity(String.class), is("underwrap"));
+        assertThat(server.getMetrics().getFileCacheHitCount(), is(3L));
+        assertThat(server.getMetrics().getFileCacheBytes(), is(15L));
+        assertThat(server.getMetrics().getFileTransferCount(), is(4L));
+
+        assertThat(getHttpResponse("/files/missing.txt").getStatus(), is(404));
+        assertThat(getHttpResponse("/files/").getStatus(), is(404));
+        assertThat(getHttpResponse("/files/small.txt/child").getStatus(), is(404));
+        assertThat(createTarget("/files/small.txt").request().delete().getStatus(), is(405));
+
+        // Symbolic links are followed only within the directory
+        java.nio.file.Path outside = temporaryFolder.newFile("secret.txt").toPath();
+        Files.write(outside, "secret".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(directory.resolve("escape.txt"), outside);
+        Files.createSymbolicLink(directory.resolve("link.txt"), directory.resolve("small.txt"));
+        assertThat(getHttpResponse("/files/escape.txt").getStatus(), is(404));
+        assertThat(getHttpResponse("/files/link.txt").readEntity(String.class), is("hello underwrap"));
+    }
+
+    @Test
+    public void fileMountWithCompression()
+            throws IOException
+    {
+        java.nio.file.Path directory = temporaryFolder.newFolder("files").toPath();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("hello underwrap\n");
+        }
+        Files.write(directory.resolve("large.txt"), text.toString().getBytes(StandardCharsets.UTF_8));
+        server.addFileMount("/files", directory, FileMountPolicy.builder()
+                .setMaxCachedFileBytes(1024)
+                .build());
+        server.setCompressionPolicy(CompressionPolicy.builder().build());
+        startServer(Optional.empty());
+
+        // Sent from the file as it is, while other responses are still compressed
+        Response file = createTarget("/files/large.txt").request().header("Accept-Encoding", "gzip").get();
+        assertThat(file.getHeaderString("Content-Encoding"), is(nullValue()));
+        assertThat(file.getHeaderString("Content-Length"), is(String.valueOf(text.length())));
+        assertThat(file.readEntity(String.class), is(text.toString()));
+        assertThat(server.getMetrics().getFileTransferCount(), is(1L));
+
+        Response resource = createTarget("/text?size=10000").request().header("Accept-Encoding", "gzip").get();
+        assertThat(resource.getHeaderString("Content-Encoding"), is("gzip"));
+    }
+
+    @Test
+    public void bufferPoolMetrics()
+    {
+        server.setWorkload(ServerTuning.Workload.CPU_BOUND);
+        server.setBufferPoolMetricsEnabled(true);
+        startServer(Optional.empty());
+        assertThat(server.getServerTuning().getWorkload(), is(ServerTuning.Workload.CPU_BOUND));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(getHttpResponse("/hello").getStatus(), is(200));
+        }
+        BufferPoolSnapshot buffers = server.getMetrics().getBufferPoolSnapshot();
+        assertThat(buffers.getBufferSize(), is(server.getServerTuning().getBufferSize()));
+        assertThat(buffers.getAllocationCount(), is(greaterThan(10L)));
+        assertThat(buffers.getMissCount(), is(greaterThan(0L)));
+        assertThat(buffers.getMissCount(), is(lessThan(buffers.getAllocationCount())));
+        assertThat(buffers.getAllocatedBufferCount(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void priorityMatchesPathRegex()
+    {
+        server.setPrioritySchedulingPolicy(PrioritySchedulingPolicy.builder().build());
+        startServer(Optional.empty());
+
+        assertThat(getHttpResponse("/items/42").readEntity(String.class), startsWith("42:"));
+        // Served by "/items/{name}", which has no @RequestPriority
+        assertThat(getHttpResponse("/items/abc").readEntity(String.class), startsWith("abc:"));
+
+        Map<String, LatencyHistogram.Snapshot> waits = server.getMetrics().getPriorityQueueWaits();
+        assertThat(waits.get("low").getCount(), is(1L));
+        assertThat(waits.get("normal").getCount(), is(1L));
+    }
+
+    @Test
+    public void priorityScheduling()
+            throws InterruptedException, ExecutionException
+    {
+        server.setPrioritySchedulingPolicy(PrioritySchedulingPolicy.builder()
+                .setThreads(1)
+                .setMaxQueueSize(Priority.LOW, 1)
+                .setPriorityHeader("X-Priority")
+                .build());
+        startServer(Optional.empty());
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            Future<String> blocker = executorService.submit(() -> getHttpResponse("/sequence?delay=500").readEntity(String.class));
+            awaitCondition(() -> server.getMetrics().getPrioritySchedulerSnapshot().getBusyWorkerThreadCount() > 0);
+            Future<String> low = executorService.submit(() -> getHttpResponse("/sequence").readEntity(String.class));
+            awaitCondition(() -> server.getMetrics().getPriorityQueueSizes().get("low") > 0);
+            // The queue of LOW is full
+            assertThat(getHttpResponse("/sequence").getStatus(), is(503));
+            Future<String> normal = executorService.submit(() -> createTarget("/sequence").request().header("X-Priority", "normal").get().readEntity(String.class));
+            awaitCondition(() -> server.getMetrics().getPriorityQueueSizes().get("normal") > 0);
+            Future<String> critical = executorService.submit(() -> createTarget("/sequence").request().header("X-Priority", "critical").get().readEntity(String.class));
+            awaitCondition(() -> server.getMetrics().getPriorityQueueSizes().get("critical") > 0);
+
+            // Queued requests run by priority, not in arrival order
+            int first = Integer.parseInt(blocker.get());
+            assertThat(Integer.parseInt(critical.get()), is(first + 1));
+            assertThat(Integer.parseInt(normal.get()), is(first + 2));
+            assertThat(Integer.parseInt(low.get()), is(first + 3));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+
+        UnderwrapMetrics m = server.getMetrics();
+        assertThat(m.getPriorityRejectedCounts().get("low"), is(1L));
+        assertThat(m.getPriorityPromotedCounts().get("low"), is(0L));
+        assertThat(m.getPriorityQueueWaits().get("critical").getMax(), is(greaterThan(TimeUnit.MILLISECONDS.toNanos(100))));
+        assertThat(m.getPrioritySchedulerSnapshot().getMaxWorkerPoolSize(), is(1));
+    }
+
+    @Test
+    public void loadSheddingWithPriorityScheduling()
+            throws InterruptedException, ExecutionException
+    {
+        server.setPrioritySchedulingPolicy(PrioritySchedulingPolicy.builder()
+                .setThreads(1)
+                .build());
+        server.setLoadSheddingPolicy(LoadSheddingPolicy.builder()
+                .setMaxQueueSize(1)
+                .build());
+        startServer(Optional.empty());
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> blocker = executorService.submit(() -> getHttpResponse("/sequence?delay=500").getStatus());
+            awaitCondition(() -> server.getMetrics().getPrioritySchedulerSnapshot().getBusyWorkerThreadCount() > 0);
+            Future<Integer> queued = executorService.submit(() -> getHttpResponse("/sequence").getStatus());
+            awaitCondition(() -> server.getMetrics().getPrioritySchedulerSnapshot().getWorkerQueueSize() > 0);
+
+            // Rejected by load shedding for the queue of the scheduler, while the XNIO worker pool is idle
+            Response rejected = getHttpResponse("/sequence");
+            assertThat(rejected.getStatus(), is(503));
+            assertThat(rejected.getHeaderString("Retry-After"), is("1"));
+            assertThat(blocker.get(), is(200));
+            assertThat(queued.get(), is(200));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        assertThat(server.getMetrics().getLoadSheddingRejectedCount(), is(1L));
+        assertThat(server.getMetrics().getPriorityRejectedCounts().get("low"), is(0L));
     }
 }